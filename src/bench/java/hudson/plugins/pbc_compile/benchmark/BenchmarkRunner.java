@@ -0,0 +1,84 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Map;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link ConsoleBenchmark} with the GC profiler and prints MB/s and
+ * allocated bytes per line for every parameter combination. Any argument is
+ * passed on to JMH, e.g. {@code -p charset=UTF-8 -f 0}.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(ConsoleBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        System.out.println();
+        System.out.println(String.format("%-18s %-8s %-8s %-6s %-14s %12s %12s", "Benchmark", "Errors", "Warnings",
+                "Length", "Charset", "MB/s", "B/line"));
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            double errorDensity = Double.parseDouble(params.getParam("errorDensity"));
+            double warningDensity = Double.parseDouble(params.getParam("warningDensity"));
+            int lineLength = Integer.parseInt(params.getParam("lineLength"));
+            String charset = params.getParam("charset");
+            int logLength = new SyntheticLog(ConsoleBenchmark.LINES, errorDensity, warningDensity, lineLength,
+                    Charset.forName(charset)).getBytes().length;
+
+            double opsPerSecond = result.getPrimaryResult().getScore();
+            double allocPerOp = Double.NaN;
+            for (Map.Entry<String, Result> e : result.getSecondaryResults().entrySet()) {
+                if (e.getKey().endsWith("gc.alloc.rate.norm")) {
+                    allocPerOp = e.getValue().getScore();
+                }
+            }
+
+            String benchmark = params.getBenchmark();
+            System.out.println(String.format("%-18s %-8s %-8s %-6d %-14s %12.1f %12.1f",
+                    benchmark.substring(benchmark.lastIndexOf('.') + 1), params.getParam("errorDensity"),
+                    params.getParam("warningDensity"), lineLength, charset, opsPerSecond * logLength / 1e6,
+                    allocPerOp / ConsoleBenchmark.LINES));
+        }
+    }
+}
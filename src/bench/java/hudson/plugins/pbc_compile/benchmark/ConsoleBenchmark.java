@@ -0,0 +1,177 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile.benchmark;
+
+import hudson.console.LineTransformationOutputStream;
+import hudson.plugins.pbc_compile.PbcCompileConsoleParser;
+import hudson.plugins.pbc_compile.PbcCompileErrorNote;
+import hudson.plugins.pbc_compile.PbcCompileLineScanner;
+import hudson.plugins.pbc_compile.PbcCompileWarningNote;
+import hudson.plugins.pbc_compile.PbcCompilerConsoleAnnotator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the console stages over a synthetic PBC log. One operation
+ * pushes the whole log through a stage, in pipe sized chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsoleBenchmark {
+    static final int LINES = 20000;
+    static final int CHUNK = 8192;
+
+    @Param({ "0.001", "0.05" })
+    public double errorDensity;
+
+    @Param({ "0.01", "0.2" })
+    public double warningDensity;
+
+    @Param({ "80", "200" })
+    public int lineLength;
+
+    @Param({ "UTF-8", "windows-1252", "UTF-16" })
+    public String charset;
+
+    private Charset cs;
+    private byte[] log;
+    private byte[] line;
+
+    @Setup
+    public void setUp() {
+        cs = Charset.forName(charset);
+        log = new SyntheticLog(LINES, errorDensity, warningDensity, lineLength, cs).getBytes();
+        line = new byte[log.length];
+    }
+
+    @Benchmark
+    public int consoleParser(Blackhole bh) throws IOException {
+        PbcCompileConsoleParser parser = new PbcCompileConsoleParser(new NullOutputStream(bh), cs);
+        feed(parser);
+        return parser.getNumberOfWarnings();
+    }
+
+    @Benchmark
+    public int consoleAnnotator(Blackhole bh) throws IOException {
+        PbcCompilerConsoleAnnotator annotator = new PbcCompilerConsoleAnnotator(new NullOutputStream(bh), cs);
+        feed(annotator);
+        return annotator.getNumberOfWarnings();
+    }
+
+    @Benchmark
+    public int lineScanner() {
+        PbcCompileLineScanner scanner = new PbcCompileLineScanner(cs);
+        int matches = 0;
+        int start = 0;
+        for (int i = 0; i < log.length; i++) {
+            if (log[i] == '\n') {
+                // Same shape as LineTransformationOutputStream: the line at the start of a reused buffer
+                int len = i + 1 - start;
+                System.arraycopy(log, start, line, 0, len);
+                if (scanner.scan(line, len) != 0) {
+                    matches++;
+                }
+                start = i + 1;
+            }
+        }
+        return matches;
+    }
+
+    /** The decode and regex per line approach, as a reference point */
+    @Benchmark
+    public int regexBaseline(Blackhole bh) throws IOException {
+        RegexBaseline baseline = new RegexBaseline(new NullOutputStream(bh), cs);
+        feed(baseline);
+        return baseline.matches;
+    }
+
+    private void feed(OutputStream out) throws IOException {
+        for (int off = 0; off < log.length; off += CHUNK) {
+            out.write(log, off, Math.min(CHUNK, log.length - off));
+        }
+        out.flush();
+    }
+
+    private static final class RegexBaseline extends LineTransformationOutputStream {
+        private final OutputStream out;
+        private final Charset charset;
+        int matches;
+
+        RegexBaseline(OutputStream out, Charset charset) {
+            this.out = out;
+            this.charset = charset;
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            String line = trimEOL(charset.decode(ByteBuffer.wrap(b, 0, len)).toString());
+            if (PbcCompileErrorNote.PATTERN.matcher(line).matches()) {
+                matches++;
+            }
+            if (PbcCompileWarningNote.PATTERN.matcher(line).matches()) {
+                matches++;
+            }
+            out.write(b, 0, len);
+        }
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        private final Blackhole bh;
+
+        NullOutputStream(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(int b) {
+            bh.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bh.consume(len);
+        }
+    }
+}
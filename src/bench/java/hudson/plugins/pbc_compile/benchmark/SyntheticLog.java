@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Synthetic PBC console output with a configurable mix of lines.
+ */
+final class SyntheticLog {
+    private final byte[] bytes;
+    private final int lines;
+
+    /**
+     * @param lines
+     *            Number of lines, including the trailing summary
+     * @param errorDensity
+     *            Fraction of lines that are errors
+     * @param warningDensity
+     *            Fraction of lines that are warnings
+     * @param lineLength
+     *            Approximate length of every line, in characters
+     * @param charset
+     *            Encoding of the generated bytes
+     */
+    SyntheticLog(int lines, double errorDensity, double warningDensity, int lineLength, Charset charset) {
+        Random random = new Random(lines ^ lineLength);
+        StringBuilder sb = new StringBuilder(lines * (lineLength + 2));
+        int errors = 0;
+        int warnings = 0;
+        for (int i = 0; i < lines - 2; i++) {
+            int start = sb.length();
+            double r = random.nextDouble();
+            String object = "w_object_" + random.nextInt(500) + ".of_function_" + random.nextInt(20);
+            if (r < errorDensity) {
+                sb.append(object).append(" Error C").append(1000 + random.nextInt(100)).append(": ");
+                errors++;
+            } else if (r < errorDensity + warningDensity) {
+                sb.append(object).append('(').append(1 + random.nextInt(2000)).append(',')
+                        .append(1 + random.nextInt(80)).append("): Warning C").append(1000 + random.nextInt(100))
+                        .append(": ");
+                warnings++;
+            } else {
+                sb.append("Compiling ").append(object).append(' ');
+            }
+            int prefixEnd = sb.length();
+            do {
+                sb.append("lorem ipsum dolor sit amet ");
+            } while (sb.length() - start < lineLength);
+            sb.setLength(Math.max(prefixEnd + 1, start + lineLength));
+            sb.append("\r\n");
+        }
+        sb.append("    ").append(warnings).append(" Warning(s)\r\n");
+        sb.append("    ").append(errors).append(" Error(s)\r\n");
+
+        this.bytes = sb.toString().getBytes(charset);
+        this.lines = lines;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    int getLines() {
+        return lines;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Which console lines of a build are PBC errors and warnings, so that they
+ * can be annotated when the log is rendered without classifying every line
+ * again. Lines are identified by a 64 bit hash of their text, without the
+ * line terminator.
+ *
+ * The file holds, big endian: magic, version, then the sorted error hashes
+ * and the sorted warning hashes, each preceded by their count.
+ */
+final class PbcCompileAnnotationIndex {
+    private static final int MAGIC = 0x50424341; // "PBCA"
+    private static final int VERSION = 1;
+
+    private final long[] errors;
+    private final long[] warnings;
+
+    private PbcCompileAnnotationIndex(long[] errors, long[] warnings) {
+        this.errors = errors;
+        this.warnings = warnings;
+    }
+
+    /**
+     * @return {@link PbcCompileLineScanner#ERROR} and/or
+     *         {@link PbcCompileLineScanner#WARNING}, or 0
+     */
+    int kind(CharSequence line) {
+        long hash = hash(line);
+        int kind = 0;
+        if (Arrays.binarySearch(errors, hash) >= 0) {
+            kind |= PbcCompileLineScanner.ERROR;
+        }
+        if (Arrays.binarySearch(warnings, hash) >= 0) {
+            kind |= PbcCompileLineScanner.WARNING;
+        }
+        return kind;
+    }
+
+    /** FNV-1a over the characters of a line, ignoring the line terminator */
+    static long hash(CharSequence line) {
+        int end = line.length();
+        while (end > 0 && (line.charAt(end - 1) == '\n' || line.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < end; i++) {
+            hash ^= line.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static PbcCompileAnnotationIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported annotation index " + file);
+            }
+            long[] errors = readHashes(in);
+            long[] warnings = readHashes(in);
+            return new PbcCompileAnnotationIndex(errors, warnings);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long[] readHashes(DataInputStream in) throws IOException {
+        long[] hashes = new long[in.readInt()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = in.readLong();
+        }
+        return hashes;
+    }
+
+    /**
+     * Collects the error and warning lines of a build step; shared by the
+     * targets compiled concurrently.
+     */
+    static final class Recorder {
+        private long[] errors = new long[64];
+        private long[] warnings = new long[64];
+        private int errorCount;
+        private int warningCount;
+
+        synchronized void add(int kind, CharSequence line) {
+            long hash = hash(line);
+            if ((kind & PbcCompileLineScanner.ERROR) != 0) {
+                if (errorCount == errors.length) {
+                    errors = Arrays.copyOf(errors, errorCount * 2);
+                }
+                errors[errorCount++] = hash;
+            }
+            if ((kind & PbcCompileLineScanner.WARNING) != 0) {
+                if (warningCount == warnings.length) {
+                    warnings = Arrays.copyOf(warnings, warningCount * 2);
+                }
+                warnings[warningCount++] = hash;
+            }
+        }
+
+        synchronized void write(File file) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeHashes(out, errors, errorCount);
+                writeHashes(out, warnings, warningCount);
+            } finally {
+                out.close();
+            }
+        }
+
+        private static void writeHashes(DataOutputStream out, long[] hashes, int count) throws IOException {
+            long[] sorted = Arrays.copyOf(hashes, count);
+            Arrays.sort(sorted);
+            int unique = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[unique++] = sorted[i];
+                }
+            }
+            out.writeInt(unique);
+            for (int i = 0; i < unique; i++) {
+                out.writeLong(sorted[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Marks a build whose PBC output was written without console notes, to be
+ * annotated by {@link PbcCompileConsoleAnnotatorFactory} when rendered.
+ * One per build step.
+ */
+public class PbcCompileAnnotationsAction extends InvisibleAction implements RunAction2 {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileAnnotationsAction.class.getName());
+
+    private final String fileName;
+
+    private transient Run<?, ?> run;
+    private transient Reference<PbcCompileAnnotationIndex> index;
+    private transient boolean failed;
+
+    /**
+     * @param fileName
+     *            Annotation index, relative to the build directory, or null if
+     *            the lines are classified while rendering
+     */
+    public PbcCompileAnnotationsAction(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Writes the index collected by a recorder, if any, next to the build
+     * and creates the matching action.
+     */
+    static PbcCompileAnnotationsAction save(Run<?, ?> run, PbcCompileAnnotationIndex.Recorder recorder)
+            throws IOException {
+        if (recorder == null) {
+            return new PbcCompileAnnotationsAction(null);
+        }
+        int index = PbcCompileRunFiles.allocate(run, "pbc-annotations-", ".bin");
+        String fileName = "pbc-annotations-" + index + ".bin";
+        recorder.write(new File(run.getRootDir(), fileName));
+        return new PbcCompileAnnotationsAction(fileName);
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    /**
+     * @return the index, loaded on first use, or null if there is none
+     */
+    synchronized PbcCompileAnnotationIndex getIndex() {
+        if (fileName == null || failed) {
+            return null;
+        }
+        PbcCompileAnnotationIndex result = index != null ? index.get() : null;
+        if (result == null) {
+            File file = new File(run.getRootDir(), fileName);
+            try {
+                result = PbcCompileAnnotationIndex.read(file);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+                failed = true;
+                return null;
+            }
+            index = new SoftReference<PbcCompileAnnotationIndex>(result);
+        }
+        return result;
+    }
+}
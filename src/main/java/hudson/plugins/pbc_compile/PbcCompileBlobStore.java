@@ -0,0 +1,354 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content addressed store of archived PBC outputs on the controller. Each
+ * distinct file is kept once, as {@code <store>/<2 hex>/<sha256>}, whatever
+ * the number of builds that produced it.
+ *
+ * Blobs are reference counted in a {@code <sha256>.refs} file next to them.
+ * The store also keeps, under {@code refs/<job>/<build>-<step>}, the blobs
+ * each build step holds, so that references are released when builds or
+ * whole jobs are deleted even though the build directories are gone by then.
+ */
+final class PbcCompileBlobStore {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileBlobStore.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final String NAME = "pbc-blobs";
+    static final String REFS = "refs";
+
+    /** Guards reference counts and reference lists of the store */
+    private static final Object LOCK = new Object();
+
+    private PbcCompileBlobStore() {
+    }
+
+    static File root() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            throw new IllegalStateException("Jenkins is not running");
+        }
+        return new File(jenkins.getRootDir(), NAME);
+    }
+
+    static File blob(File root, String hash) {
+        return new File(new File(root, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Takes a reference on the blob of a file, uploading it if the store
+     * doesn't have it yet.
+     *
+     * @return the number of bytes uploaded, 0 if the blob was there
+     */
+    static long acquire(File root, String hash, FilePath source) throws IOException, InterruptedException {
+        File blob = blob(root, hash);
+        synchronized (LOCK) {
+            if (blob.isFile()) {
+                addRefs(blob, 1);
+                return 0;
+            }
+        }
+        File dir = blob.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        File tmp = File.createTempFile(hash, ".tmp", dir);
+        try {
+            MessageDigest md = PbcCompileFingerprint.sha256();
+            OutputStream out = new DigestOutputStream(new FileOutputStream(tmp), md);
+            try {
+                source.copyTo(out);
+            } finally {
+                out.close();
+            }
+            if (!PbcCompileFingerprint.toHex(md.digest()).equals(hash)) {
+                throw new IOException(source + " changed while it was archived");
+            }
+            synchronized (LOCK) {
+                // Another build may have stored it meanwhile
+                if (!blob.isFile() && !tmp.renameTo(blob)) {
+                    throw new IOException("Failed to store " + blob);
+                }
+                addRefs(blob, 1);
+            }
+            return blob.length();
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                LOGGER.log(Level.WARNING, "Failed to delete {0}", tmp);
+            }
+        }
+    }
+
+    /** Drops a reference on each blob, deleting the ones nothing refers to anymore */
+    static void release(File root, Collection<String> hashes) throws IOException {
+        synchronized (LOCK) {
+            for (String hash : hashes) {
+                File blob = blob(root, hash);
+                if (addRefs(blob, -1) <= 0 && blob.exists() && !blob.delete()) {
+                    LOGGER.log(Level.WARNING, "Failed to delete {0}", blob);
+                }
+            }
+        }
+    }
+
+    /** @return the number of references on a blob, 0 if the store doesn't have it */
+    static int refs(File root, String hash) throws IOException {
+        File refs = new File(blob(root, hash).getPath() + ".refs");
+        synchronized (LOCK) {
+            return refs.isFile() ? Integer.parseInt(readFirstLine(refs)) : 0;
+        }
+    }
+
+    /** @return the new count; the refs file is removed when it drops to 0 */
+    private static int addRefs(File blob, int delta) throws IOException {
+        File refs = new File(blob.getPath() + ".refs");
+        int count = 0;
+        if (refs.isFile()) {
+            try {
+                count = Integer.parseInt(readFirstLine(refs));
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Malformed " + refs + ", starting over", e);
+            }
+        }
+        count = Math.max(0, count + delta);
+        if (count == 0) {
+            if (refs.exists() && !refs.delete()) {
+                throw new IOException("Failed to delete " + refs);
+            }
+        } else {
+            write(refs, Collections.singletonList(String.valueOf(count)));
+        }
+        return count;
+    }
+
+    /**
+     * Records the blobs held by a build step, once they were acquired.
+     */
+    static void register(File root, Run<?, ?> run, int index, Collection<String> hashes) throws IOException {
+        register(root, run.getParent().getFullName(), run.getNumber(), index, hashes);
+    }
+
+    static void register(File root, String job, int build, int index, Collection<String> hashes)
+            throws IOException {
+        File dir = refsDir(root, job);
+        synchronized (LOCK) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            write(new File(dir, build + "-" + index), new ArrayList<String>(hashes));
+        }
+    }
+
+    /** Releases the blobs of the steps of a deleted build */
+    static void unregister(File root, Run<?, ?> run) throws IOException {
+        unregister(root, run.getParent().getFullName(), run.getNumber());
+    }
+
+    static void unregister(File root, String job, int build) throws IOException {
+        unregister(root, refsDir(root, job), build + "-");
+    }
+
+    /** Releases the blobs of every build of a deleted job */
+    static void unregister(File root, String job) throws IOException {
+        File dir = refsDir(root, job);
+        unregister(root, dir, "");
+        if (dir.isDirectory() && !dir.delete()) {
+            LOGGER.log(Level.WARNING, "Failed to delete {0}", dir);
+        }
+    }
+
+    private static void unregister(File root, File dir, String prefix) throws IOException {
+        synchronized (LOCK) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (file.getName().startsWith(prefix)) {
+                    release(root, readLines(file));
+                    if (!file.delete()) {
+                        LOGGER.log(Level.WARNING, "Failed to delete {0}", file);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Follows a renamed or moved job */
+    static void rename(File root, String oldName, String newName) {
+        synchronized (LOCK) {
+            File from = refsDir(root, oldName);
+            if (from.isDirectory() && !from.renameTo(refsDir(root, newName))) {
+                LOGGER.log(Level.WARNING, "Failed to rename {0}", from);
+            }
+        }
+    }
+
+    private static File refsDir(File root, String job) {
+        try {
+            return new File(new File(root, REFS), URLEncoder.encode(job, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String readFirstLine(File file) throws IOException {
+        List<String> lines = readLines(file);
+        return lines.isEmpty() ? "" : lines.get(0);
+    }
+
+    static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            r.close();
+        }
+        return lines;
+    }
+
+    /** Writes next to the file and renames into place */
+    static void write(File file, List<String> lines) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8);
+        try {
+            for (String line : lines) {
+                w.write(line);
+                w.write('\n');
+            }
+        } finally {
+            w.close();
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * Hashes the files of the workspace matching a pattern.
+     * Returns {sha256, size} by relative path.
+     */
+    static final class Hash extends MasterToSlaveFileCallable<TreeMap<String, String[]>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String includes;
+
+        Hash(String includes) {
+            this.includes = includes;
+        }
+
+        @Override
+        public TreeMap<String, String[]> invoke(File ws, VirtualChannel channel)
+                throws IOException, InterruptedException {
+            TreeMap<String, String[]> files = new TreeMap<String, String[]>();
+            for (String path : Util.createFileSet(ws, includes).getDirectoryScanner().getIncludedFiles()) {
+                File file = new File(ws, path);
+                files.put(path.replace('\\', '/'), new String[] {
+                        PbcCompileFingerprint.toHex(PbcCompileFingerprint.digest(file)),
+                        String.valueOf(file.length()) });
+            }
+            return files;
+        }
+    }
+
+    /**
+     * Releases the blobs of deleted builds.
+     */
+    @Extension
+    public static final class Cleanup extends RunListener<Run<?, ?>> {
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            try {
+                unregister(root(), run);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to release the PBC outputs of " + run, e);
+            }
+        }
+    }
+
+    /**
+     * Releases the blobs of deleted jobs, and follows renamed ones.
+     */
+    @Extension
+    public static final class JobCleanup extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof Job) {
+                try {
+                    unregister(root(), item.getFullName());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to release the PBC outputs of " + item.getFullName(), e);
+                }
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof Job) {
+                rename(root(), oldFullName, newFullName);
+            }
+        }
+    }
+}
@@ -23,36 +23,77 @@
  */
 package hudson.plugins.pbc_compile;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.output.TeeOutputStream;
 
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
 
+import hudson.AbortException;
 import hudson.CopyOnWrite;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.Util;
 import hudson.model.AbstractBuild;
+import hudson.model.Action;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Node;
+import hudson.model.Project;
 import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.scm.ChangeLogSet;
 //import hudson.plugins.pbc_compile.
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.tools.ToolInstallation;
 import hudson.util.ArgumentListBuilder;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.tasks.SimpleBuildStep;
 
 /**
  * @author kyle.sweeney@valtech.com
  */
-public class PbcCompileBuilder extends Builder {
+public class PbcCompileBuilder extends Builder implements SimpleBuildStep {
+	/** Exit code of cmd.exe when the command is not found */
+	private static final int COMMAND_NOT_FOUND = 9009;
+	/** How long a build waits for the warm-up of its installation */
+	private static final long WARM_UP_WAIT_SECONDS = 60;
+
 	/**
 	 * GUI fields
 	 */
@@ -61,6 +102,26 @@ public class PbcCompileBuilder extends Builder {
 	private final String cmdLineArgs;
 	private final boolean continueOnBuildFailure;
 	private final boolean unstableIfWarnings;
+	private boolean incremental;
+	private boolean useOutputCache;
+	private List<PbcCompileTarget> additionalTargets;
+	private int maxParallel;
+	private int failFastErrors;
+	private String failFastCodes;
+	private int stallTimeout;
+	private int stallRetries;
+	private String diagnosticsFile;
+	private String sarifFile;
+	private boolean renderTimeAnnotations;
+	private boolean annotationIndex;
+	private boolean collapseDuplicates;
+	private boolean archiveRawOutput;
+	private boolean directLaunch;
+	private String stagingDirectory;
+	private String archiveOutputs;
+	private boolean affectedTargetsOnly;
+	private boolean sampleResources;
+	private boolean profileObjects;
 
 	/**
 	 * When this builder is created in the project configuration step, the
@@ -106,117 +167,1253 @@ public class PbcCompileBuilder extends Builder {
 		return unstableIfWarnings;
 	}
 
+	public boolean getIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * @param incremental
+	 *            If true, the compile is skipped when its inputs are unchanged
+	 *            since the last successful build
+	 */
+	@DataBoundSetter
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	public boolean getUseOutputCache() {
+		return useOutputCache;
+	}
+
+	/**
+	 * @param useOutputCache
+	 *            If true, outputs are restored from and published to the
+	 *            shared output cache configured globally
+	 */
+	@DataBoundSetter
+	public void setUseOutputCache(boolean useOutputCache) {
+		this.useOutputCache = useOutputCache;
+	}
+
+	public List<PbcCompileTarget> getAdditionalTargets() {
+		return additionalTargets == null ? Collections.<PbcCompileTarget>emptyList()
+				: Collections.unmodifiableList(additionalTargets);
+	}
+
+	/**
+	 * @param additionalTargets
+	 *            Targets compiled alongside the main one, each by its own PBC
+	 *            process
+	 */
+	@DataBoundSetter
+	public void setAdditionalTargets(List<PbcCompileTarget> additionalTargets) {
+		this.additionalTargets = additionalTargets == null || additionalTargets.isEmpty() ? null
+				: new ArrayList<PbcCompileTarget>(additionalTargets);
+	}
+
+	public int getMaxParallel() {
+		return maxParallel;
+	}
+
+	/**
+	 * @param maxParallel
+	 *            Maximum number of concurrent PBC processes; 0 for one per
+	 *            processor of the node
+	 */
+	@DataBoundSetter
+	public void setMaxParallel(int maxParallel) {
+		this.maxParallel = Math.max(0, maxParallel);
+	}
+
+	public int getFailFastErrors() {
+		return failFastErrors;
+	}
+
+	/**
+	 * @param failFastErrors
+	 *            Number of errors after which the compile is stopped; 0 to
+	 *            let it run to the end
+	 */
+	@DataBoundSetter
+	public void setFailFastErrors(int failFastErrors) {
+		this.failFastErrors = Math.max(0, failFastErrors);
+	}
+
+	public String getFailFastCodes() {
+		return failFastCodes;
+	}
+
+	/**
+	 * @param failFastCodes
+	 *            Whitespace or comma separated error codes that stop the
+	 *            compile as soon as one is reported
+	 */
+	@DataBoundSetter
+	public void setFailFastCodes(String failFastCodes) {
+		this.failFastCodes = Util.fixEmptyAndTrim(failFastCodes);
+	}
+
+	public int getStallTimeout() {
+		return stallTimeout;
+	}
+
+	/**
+	 * @param stallTimeout
+	 *            Minutes without output and CPU activity after which the
+	 *            compile is stopped as stalled; 0 to never stop it
+	 */
+	@DataBoundSetter
+	public void setStallTimeout(int stallTimeout) {
+		this.stallTimeout = Math.max(0, stallTimeout);
+	}
+
+	public int getStallRetries() {
+		return stallRetries;
+	}
+
+	/**
+	 * @param stallRetries
+	 *            Number of times a stalled compile is run again before the
+	 *            build fails
+	 */
+	@DataBoundSetter
+	public void setStallRetries(int stallRetries) {
+		this.stallRetries = Math.max(0, stallRetries);
+	}
+
+	public String getDiagnosticsFile() {
+		return diagnosticsFile;
+	}
+
+	/**
+	 * @param diagnosticsFile
+	 *            Workspace file receiving the errors and warnings as JSON
+	 *            lines while PBC runs, or null
+	 */
+	@DataBoundSetter
+	public void setDiagnosticsFile(String diagnosticsFile) {
+		this.diagnosticsFile = Util.fixEmptyAndTrim(diagnosticsFile);
+	}
+
+	public String getSarifFile() {
+		return sarifFile;
+	}
+
+	/**
+	 * @param sarifFile
+	 *            Workspace file receiving the errors and warnings as a SARIF
+	 *            document, or null
+	 */
+	@DataBoundSetter
+	public void setSarifFile(String sarifFile) {
+		this.sarifFile = Util.fixEmptyAndTrim(sarifFile);
+	}
+
+	public boolean getRenderTimeAnnotations() {
+		return renderTimeAnnotations;
+	}
+
+	/**
+	 * @param renderTimeAnnotations
+	 *            If true, errors and warnings are logged as plain lines and
+	 *            annotated when the log is rendered
+	 */
+	@DataBoundSetter
+	public void setRenderTimeAnnotations(boolean renderTimeAnnotations) {
+		this.renderTimeAnnotations = renderTimeAnnotations;
+	}
+
+	public boolean getAnnotationIndex() {
+		return annotationIndex;
+	}
+
+	/**
+	 * @param annotationIndex
+	 *            If true, render time annotations look the error and warning
+	 *            lines up in an index kept with the build, instead of
+	 *            classifying every line
+	 */
+	@DataBoundSetter
+	public void setAnnotationIndex(boolean annotationIndex) {
+		this.annotationIndex = annotationIndex;
+	}
+
+	public boolean getCollapseDuplicates() {
+		return collapseDuplicates;
+	}
+
+	/**
+	 * @param collapseDuplicates
+	 *            If true, repetitions of an error or warning are left out of
+	 *            the console and summarized at the end
+	 */
+	@DataBoundSetter
+	public void setCollapseDuplicates(boolean collapseDuplicates) {
+		this.collapseDuplicates = collapseDuplicates;
+	}
+
+	public boolean getArchiveRawOutput() {
+		return archiveRawOutput;
+	}
+
+	/**
+	 * @param archiveRawOutput
+	 *            If true, the complete output of PBC is kept gzipped with the
+	 *            build
+	 */
+	@DataBoundSetter
+	public void setArchiveRawOutput(boolean archiveRawOutput) {
+		this.archiveRawOutput = archiveRawOutput;
+	}
+
+	public boolean getDirectLaunch() {
+		return directLaunch;
+	}
+
+	/**
+	 * @param directLaunch
+	 *            If true, the pbc utility is launched without cmd.exe and chcp,
+	 *            and its output transcoded to the encoding of the build log
+	 */
+	@DataBoundSetter
+	public void setDirectLaunch(boolean directLaunch) {
+		this.directLaunch = directLaunch;
+	}
+
+	public String getStagingDirectory() {
+		return stagingDirectory;
+	}
+
+	/**
+	 * @param stagingDirectory
+	 *            Directory on a local disk of the node where the workspace is
+	 *            mirrored and compiled, or null to compile in the workspace
+	 */
+	@DataBoundSetter
+	public void setStagingDirectory(String stagingDirectory) {
+		this.stagingDirectory = Util.fixEmptyAndTrim(stagingDirectory);
+	}
+
+	public String getArchiveOutputs() {
+		return archiveOutputs;
+	}
+
+	/**
+	 * @param archiveOutputs
+	 *            Ant pattern of the outputs to keep in the
+	 *            {@link PbcCompileBlobStore}, or null
+	 */
+	@DataBoundSetter
+	public void setArchiveOutputs(String archiveOutputs) {
+		this.archiveOutputs = Util.fixEmptyAndTrim(archiveOutputs);
+	}
+
+	public boolean getAffectedTargetsOnly() {
+		return affectedTargetsOnly;
+	}
+
+	/**
+	 * @param affectedTargetsOnly
+	 *            If true, only the targets whose libraries changed since the
+	 *            last successful build are compiled, in dependency order
+	 */
+	@DataBoundSetter
+	public void setAffectedTargetsOnly(boolean affectedTargetsOnly) {
+		this.affectedTargetsOnly = affectedTargetsOnly;
+	}
+
+	public boolean getSampleResources() {
+		return sampleResources;
+	}
+
+	/**
+	 * @param sampleResources
+	 *            If true, the CPU time, working set and I/O of the PBC
+	 *            processes are sampled on the node and kept with the build
+	 */
+	@DataBoundSetter
+	public void setSampleResources(boolean sampleResources) {
+		this.sampleResources = sampleResources;
+	}
+
+	public boolean getProfileObjects() {
+		return profileObjects;
+	}
+
+	/**
+	 * @param profileObjects
+	 *            If true, the time spent on each object is measured from the
+	 *            progress lines of the output and kept with the build
+	 */
+	@DataBoundSetter
+	public void setProfileObjects(boolean profileObjects) {
+		this.profileObjects = profileObjects;
+	}
+
 	public PbcCompileInstallation getPbcCompile() {
 		DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
-		for (PbcCompileInstallation i : descriptor.getInstallations()) {
+		// Read the array once, instead of copying it through getInstallations()
+		PbcCompileInstallation[] installations = descriptor.installations;
+		for (PbcCompileInstallation i : installations) {
 			if (pbcCompileName != null && i.getName().equals(pbcCompileName))
 				return i;
 		}
-		if ( descriptor.getInstallations().length == 1 ) {
-			return descriptor.getInstallations()[0];
+		if ( installations.length == 1 ) {
+			return installations[0];
 		}
 		return null;
 	}
 
+	@Override
+	public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
+		// All PBC steps of a project share one trend, added by the first one
+		if (project instanceof Project) {
+			List<PbcCompileBuilder> builders = ((Project<?, ?>) project).getBuildersList()
+					.getAll(PbcCompileBuilder.class);
+			if (!builders.isEmpty() && builders.get(0) != this) {
+				return Collections.emptyList();
+			}
+		}
+		return Collections.singletonList(new PbcCompileTrendAction(project));
+	}
+
 	@Override
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
 			throws InterruptedException, IOException {
 			return runPbcCompile(build, launcher, listener);
 	}
 
+	/**
+	 * Runs the build step in any kind of build, such as a Pipeline step.
+	 * Failures are reported by an {@link AbortException}.
+	 */
+	@Override
+	public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener)
+			throws InterruptedException, IOException {
+		if (!runPbcCompile(run, workspace, launcher, listener)) {
+			throw new AbortException(Messages.PbcCompileBuilder_Failed());
+		}
+	}
+
 	public boolean runPbcCompile(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
 			throws InterruptedException, IOException {
-		ArgumentListBuilder args = new ArgumentListBuilder();
+		return runPbcCompile(build, build.getModuleRoot(), launcher, listener);
+	}
+
+	/**
+	 * @param workspace
+	 *            Directory the PBC utility runs from
+	 * @return false if the build should fail
+	 */
+	public boolean runPbcCompile(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener)
+			throws InterruptedException, IOException {
+		long start = System.nanoTime();
+		PbcCompileTimingsAction timings = new PbcCompileTimingsAction();
+		PbcCompileResultAction result = new PbcCompileResultAction(timings);
+		run.addAction(timings);
+		run.addAction(result);
+		try {
+			boolean success = runPbcCompile(run, workspace, launcher, listener, timings, result, start);
+			result.setSuccess(success);
+			return success;
+		} finally {
+			timings.setTotal(System.nanoTime() - start);
+		}
+	}
+
+	private boolean runPbcCompile(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+			PbcCompileTimingsAction timings, PbcCompileResultAction resultAction, long start)
+			throws InterruptedException, IOException {
 		PbcCompileInstallation ai = getPbcCompile();
+		EnvVars env = build.getEnvironment(listener);
+		// Build variables are specific to freestyle builds
+		Map<String, String> buildVariables = build instanceof AbstractBuild
+				? ((AbstractBuild<?, ?>) build).getBuildVariables() : null;
+		long phase = timings.record(null, PbcCompileTimingsAction.ENVIRONMENT, start);
+		// The workspace tells the node, also when the step doesn't own an executor
+		Computer computer = workspace.toComputer();
+		if (computer == null) {
+			computer = Computer.currentComputer();
+		}
+		Node node = computer != null ? computer.getNode() : null;
+		String nodeName = computer != null ? computer.getName() : "";
+		List<PbcCompileTarget> targets = getTargets();
+		List<String[]> targetArgs = new ArrayList<String[]>();
+		for (PbcCompileTarget target : targets) {
+			targetArgs.add(expandArgs(target, env, buildVariables));
+		}
+
+		// Compile on a local disk of the node, in sync with the workspace
+		FilePath pwd = workspace;
+		String staging = null;
+		if (stagingDirectory != null) {
+			staging = new FilePath(workspace.getChannel(), Util.replaceMacro(stagingDirectory, env))
+					.child(Util.getDigestOf(workspace.getRemote()).substring(0, 16)).getRemote();
+			try {
+				PbcCompileStaging.Stats stats = workspace.act(new PbcCompileStaging.Sync(staging));
+				listener.getLogger().println("> Staged the workspace in " + staging + ": " + stats);
+			} catch (IOException e) {
+				listener.fatalError("Failed to stage the workspace in " + staging);
+				Util.displayIOException(e, listener);
+				return false;
+			}
+			pwd = new FilePath(workspace.getChannel(), staging);
+			phase = timings.record(null, PbcCompileTimingsAction.STAGING, phase);
+		}
+
+		// Names follow the configuration, whatever gets compiled
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < targets.size(); i++) {
+			names.add(targets.size() > 1 ? targetName(targets.get(i), i + 1) : null);
+		}
+		List<Set<Integer>> dependencies = null;
+		if (affectedTargetsOnly && targets.size() > 1) {
+			PbcCompileDependencyGraph graph;
+			try {
+				graph = PbcCompileDependencyGraph.load(pwd, nodeName + "\0" + pwd.getRemote(), targetArgs);
+			} catch (IOException e) {
+				listener.getLogger().println("> Failed to read the target files, compiling every target: " + e);
+				graph = null;
+			}
+			if (graph != null && graph.isComplete()) {
+				Set<String> changed = changedPaths(build);
+				// SCM paths laid out differently from the workspace would select nothing
+				if (changed != null && !changed.isEmpty()) {
+					boolean found;
+					try {
+						found = pwd.act(new PbcCompileDependencyGraph.Locate(changed));
+					} catch (IOException e) {
+						found = false;
+					}
+					if (!found) {
+						listener.getLogger().println(
+								"> None of the changed files is found in the workspace, compiling every target.");
+						changed = null;
+					}
+				}
+				List<Integer> order = changed != null ? graph.affected(changed) : graph.order();
+				if (order.isEmpty()) {
+					listener.getLogger().println("> No PBC target affected by the changes, nothing to compile.");
+					return true;
+				}
+				List<String> selected = new ArrayList<String>();
+				for (int i : order) {
+					selected.add(names.get(i));
+				}
+				listener.getLogger().println(String.format("> Compiling %s target(s) in dependency order: %s",
+						changed != null ? order.size() + " of " + targets.size() + " affected" : "all",
+						Util.join(selected, ", ")));
+				// Keep the selected targets, dependencies pointing at their new positions
+				List<PbcCompileTarget> selectedTargets = new ArrayList<PbcCompileTarget>();
+				List<String[]> selectedArgs = new ArrayList<String[]>();
+				dependencies = new ArrayList<Set<Integer>>();
+				for (int i : order) {
+					selectedTargets.add(targets.get(i));
+					selectedArgs.add(targetArgs.get(i));
+					Set<Integer> deps = new HashSet<Integer>();
+					for (int d : graph.getDependencies(i)) {
+						if (order.contains(d)) {
+							deps.add(order.indexOf(d));
+						}
+					}
+					dependencies.add(deps);
+				}
+				targets = selectedTargets;
+				targetArgs = selectedArgs;
+				names = selected;
+			} else if (graph != null) {
+				listener.getLogger().println("> Not every target names a .pbt file, compiling every target.");
+			}
+			phase = timings.record(null, PbcCompileTimingsAction.DEPENDENCIES, phase);
+		}
+
+		ResolvedTool tool = resolveTool(launcher, listener, env, pwd, ai, node, nodeName, targetArgs, false);
+		timings.record(null, PbcCompileTimingsAction.PREFLIGHT, phase);
+		if (tool == null) {
+			return false;
+		}
+
+		CompileContext context = new CompileContext(build, launcher, listener, env, pwd, node, nodeName, ai, tool,
+				timings);
+		List<TargetResult> results = new ArrayList<TargetResult>();
+
+		try {
+			if (renderTimeAnnotations && annotationIndex) {
+				context.annotationIndex = new PbcCompileAnnotationIndex.Recorder();
+			}
+			if (diagnosticsFile != null || sarifFile != null) {
+				context.diagnosticsWriter = new PbcCompileDiagnosticsWriter(
+						diagnosticsFile != null ? workspace.child(Util.replaceMacro(diagnosticsFile, env)) : null,
+						sarifFile != null ? workspace.child(Util.replaceMacro(sarifFile, env)) : null,
+						tool.version, listener);
+			}
+			try {
+				if (targets.size() == 1) {
+					results.add(compileTarget(context, targetArgs.get(0), names.get(0)));
+				} else {
+					results.addAll(compileTargets(context, targetArgs, names, dependencies));
+				}
+			} finally {
+				if (staging != null) {
+					long copyBack = System.nanoTime();
+					PbcCompileStaging.Stats stats = workspace.act(new PbcCompileStaging.CopyBack(staging));
+					listener.getLogger().println("> Copied the outputs back to the workspace: " + stats);
+					timings.record(null, PbcCompileTimingsAction.STAGING, copyBack);
+				}
+				if (context.diagnosticsWriter != null) {
+					context.diagnosticsWriter.close();
+				}
+				// Whatever was logged needs its annotations
+				if (renderTimeAnnotations) {
+					build.addAction(PbcCompileAnnotationsAction.save(build, context.annotationIndex));
+				}
+			}
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			build.setResult(Result.FAILURE);
+			return false;
+		}
+
+		boolean success = true;
+		int warnings = 0;
+		int errors = 0;
+		phase = System.nanoTime();
+		PbcCompileResourceAction resources = new PbcCompileResourceAction();
+		for (TargetResult result : results) {
+			if (result.resources != null) {
+				resources.add(result.name, result.resources);
+			}
+			for (Action action : result.actions) {
+				build.addAction(action);
+			}
+			if (result.diagnostics != null) {
+				build.addAction(PbcCompileDiagnosticsAction.save(build, result.diagnostics));
+			}
+			if (result.rawOutput != null) {
+				build.addAction(new PbcCompileRawOutputAction(result.rawOutput, result.name));
+			}
+			if (result.profiler != null && result.profiler.size() > 0) {
+				build.addAction(PbcCompileProfileAction.save(build, result.profiler));
+			}
+			if (result.stopped || result.stalled) {
+				success = false;
+				build.setResult(Result.FAILURE);
+			} else if (result.skipped) {
+				success = false;
+			} else if (result.exitCode != 0) {
+				success = false;
+				if (targets.size() > 1) {
+					listener.getLogger().println("> " + result.name + " failed with exit code " + result.exitCode);
+				}
+			}
+			warnings += result.warnings;
+			errors += result.errors;
+			resultAction.add(result.name, result.exitCode, result.errors, result.warnings, result.stopped,
+					result.stalled, result.skipped);
+		}
+		if (!resources.getTargets().isEmpty()) {
+			build.addAction(resources);
+		}
+		phase = timings.record(null, PbcCompileTimingsAction.DIAGNOSTICS, phase);
+		// Each distinct output is stored once, whatever the number of builds
+		if (archiveOutputs != null && success) {
+			try {
+				Map<String, String[]> outputs = workspace
+						.act(new PbcCompileBlobStore.Hash(Util.replaceMacro(archiveOutputs, env)));
+				PbcCompileOutputsAction action = PbcCompileOutputsAction.save(build, workspace, outputs);
+				build.addAction(action);
+				listener.getLogger().println(String.format("> Archived %d PBC output(s), %d KB, of which %d KB new.",
+						action.getCount(), action.getSize() / 1024, action.getUploaded() / 1024));
+			} catch (IOException e) {
+				listener.fatalError("Failed to archive the PBC outputs");
+				Util.displayIOException(e, listener);
+				build.setResult(Result.FAILURE);
+				success = false;
+			}
+			timings.record(null, PbcCompileTimingsAction.ARCHIVE, phase);
+		}
+		try {
+			PbcCompileTrend.append(build.getParent().getRootDir(), new PbcCompileTrend.Record(build.getNumber(),
+					errors, warnings, success, build.getTimeInMillis(),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+		} catch (IOException e) {
+			listener.getLogger().println("> Failed to record the PBC trend: " + e);
+		}
+		// Check the number of warnings
+		if (unstableIfWarnings && warnings > 0) {
+			listener.getLogger().println("> Set build UNSTABLE because there are warnings.");
+			build.setResult(Result.UNSTABLE);
+		}
+		// Return the result of the compilation
+		return continueOnBuildFailure ? true : success;
+	}
+
+	/**
+	 * Resolves the pbc utility of an installation for the node and checks the
+	 * target files, in a single {@link PbcCompilePreflight} round trip. The
+	 * home and the pbc utility found on the node are remembered in
+	 * {@link PbcCompileToolCache}, so that later builds only check the
+	 * targets.
+	 *
+	 * @param targetArgs
+	 *            Command line arguments of the targets to check
+	 * @param verify
+	 *            If true, the cache is bypassed and the pbc utility checked
+	 *            again
+	 * @return the pbc utility with its default arguments, or null if the
+	 *         compile can't run
+	 */
+	private ResolvedTool resolveTool(Launcher launcher, TaskListener listener, EnvVars env, FilePath pwd,
+			PbcCompileInstallation ai, Node node, String nodeName, List<String[]> targetArgs, boolean verify)
+			throws InterruptedException, IOException {
+		ResolvedTool resolved = new ResolvedTool();
+		PbcCompilePreflight.Tool tool = null;
+
+		if (ai != null && node != null) {
+			if (!verify) {
+				// A node that just connected may still be resolving it
+				PbcCompileWarmUp.await(nodeName, ai, WARM_UP_WAIT_SECONDS, TimeUnit.SECONDS);
+			}
+			String home = verify ? null : PbcCompileToolCache.getHome(nodeName, ai);
+			if (home == null) {
+				home = ai.forNode(node, listener).getHome();
+				PbcCompileToolCache.putHome(nodeName, ai, home);
+			}
+			resolved.installation = ai.withHome(home).forEnvironment(env);
+			tool = verify ? null : PbcCompileToolCache.getTool(nodeName, resolved.installation.getHome(), execName);
+			resolved.cached = tool != null;
+		}
+
+		String checkedHome = resolved.installation != null && tool == null ? resolved.installation.getHome() : null;
+		if (checkedHome != null || !targetArgs.isEmpty()) {
+			PbcCompilePreflight.Result preflight;
+			try {
+				preflight = pwd.act(new PbcCompilePreflight(checkedHome, execName, targetArgs));
+			} catch (IOException e) {
+				listener.fatalError("Failed checking for existence of the pbc utility and targets");
+				Util.displayIOException(e, listener);
+				return null;
+			}
+			if (!preflight.getProblems().isEmpty()) {
+				for (String problem : preflight.getProblems()) {
+					listener.fatalError(problem);
+				}
+				return null;
+			}
+			if (checkedHome != null) {
+				tool = preflight.getTool();
+				PbcCompileToolCache.putTool(nodeName, checkedHome, execName, tool);
+			}
+		}
 
 		if (ai == null) {
 			listener.getLogger().println("Path To pbc utility: " + execName);
-			args.add(execName);
-		} else {
-			EnvVars env = build.getEnvironment(listener);
-			Node node = Computer.currentComputer().getNode();
-			if (node != null) {
-				ai = ai.forNode(node, listener);
-				ai = ai.forEnvironment(env);
-				String pathToPbcCompile = getToolFullPath(launcher, ai.getHome(), execName);
-				FilePath exec = new FilePath(launcher.getChannel(), pathToPbcCompile);
+			resolved.tool.add(execName);
+		} else if (tool != null) {
+			listener.getLogger().println("Path To pbc utility: " + tool.getPath());
+			if (tool.getVersion() != null) {
+				listener.getLogger().println("PBC version: " + tool.getVersion());
+			}
+			resolved.tool.add(tool.getPath());
+			resolved.version = tool.getVersion();
+
+			if (ai.getDefaultArgs() != null) {
+				resolved.tool.add(tokenizeArgs(ai.getDefaultArgs()));
+			}
+		}
+		return resolved;
+	}
 
+	/**
+	 * Called when the pbc utility could not be launched. If its path came from
+	 * the cache, the path is forgotten and resolved again.
+	 *
+	 * @return true if the launch should be retried with
+	 *         {@link CompileContext#tool}
+	 */
+	private boolean reverifyTool(CompileContext context, ResolvedTool failed)
+			throws InterruptedException, IOException {
+		synchronized (context) {
+			if (context.tool != failed) {
+				// Another target already resolved it again
+				return context.tool != null;
+			}
+			if (!failed.cached) {
+				return false;
+			}
+			context.listener.getLogger().println("> Cached path of the pbc utility failed, checking it again.");
+			PbcCompileToolCache.removeTool(context.nodeName, failed.installation.getHome(), execName);
+			context.tool = resolveTool(context.launcher, context.listener, context.env, context.pwd,
+					context.configuredInstallation, context.node, context.nodeName,
+					Collections.<String[]>emptyList(), true);
+			return context.tool != null;
+		}
+	}
+
+	/**
+	 * @return the main target followed by the additional ones
+	 */
+	List<PbcCompileTarget> getTargets() {
+		List<PbcCompileTarget> targets = new ArrayList<PbcCompileTarget>();
+		targets.add(new PbcCompileTarget(null, cmdLineArgs));
+		if (additionalTargets != null) {
+			targets.addAll(additionalTargets);
+		}
+		return targets;
+	}
+
+	/**
+	 * Compiles several targets as concurrent PBC processes, at most
+	 * {@link #getMaxParallel()} at a time.
+	 *
+	 * @param dependencies
+	 *            Earlier targets each target waits for, or null
+	 */
+	private List<TargetResult> compileTargets(final CompileContext context, List<String[]> targetArgs,
+			List<String> names, List<Set<Integer>> dependencies) throws InterruptedException, IOException {
+		TaskListener listener = context.listener;
+		int parallel = maxParallel > 0 ? maxParallel : context.launcher.getChannel().call(new ProcessorCount());
+		parallel = Math.max(1, Math.min(parallel, targetArgs.size()));
+		listener.getLogger().println(String.format("Compiling %d targets, %d at a time", targetArgs.size(), parallel));
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallel);
+		try {
+			List<Future<TargetResult>> futures = new ArrayList<Future<TargetResult>>();
+			for (int i = 0; i < targetArgs.size(); i++) {
+				final String[] args = targetArgs.get(i);
+				final String name = names.get(i);
+				// Tasks start in submission order, so waiting on earlier ones can't deadlock
+				final List<Future<TargetResult>> before = new ArrayList<Future<TargetResult>>();
+				if (dependencies != null) {
+					for (int d : dependencies.get(i)) {
+						if (d < i) {
+							before.add(futures.get(d));
+						}
+					}
+				}
+				futures.add(executor.submit(new Callable<TargetResult>() {
+					@Override
+					public TargetResult call() throws Exception {
+						for (Future<TargetResult> dependency : before) {
+							TargetResult d = dependency.get();
+							if (d.skipped || d.stopped || d.stalled || d.exitCode != 0) {
+								TargetResult skipped = new TargetResult(name);
+								skipped.skipped = true;
+								context.listener.getLogger().println("[" + name + "] > Skipped, " + d.name
+										+ " it depends on failed.");
+								return skipped;
+							}
+						}
+						return compileTarget(context, args, name);
+					}
+				}));
+			}
+			List<TargetResult> results = new ArrayList<TargetResult>();
+			for (Future<TargetResult> future : futures) {
 				try {
-					if (!exec.exists()) {
-						listener.fatalError(pathToPbcCompile + " doesn't exist");
-						return false;
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
 					}
-				} catch (IOException e) {
-					listener.fatalError("Failed checking for existence of " + pathToPbcCompile);
-					return false;
+					if (cause instanceof InterruptedException) {
+						throw (InterruptedException) cause;
+					}
+					throw new IOException(cause);
 				}
+			}
+			return results;
+		} finally {
+			// Interrupting the workers kills the PBC processes still running
+			executor.shutdownNow();
+		}
+	}
 
-				listener.getLogger().println("Path To pbc utility: " + pathToPbcCompile);
-				args.add(pathToPbcCompile);
+	/**
+	 * @return the files changed in the builds since the last successful one,
+	 *         or null if they are unknown
+	 */
+	private static Set<String> changedPaths(Run<?, ?> build) {
+		Run<?, ?> previous = build.getPreviousSuccessfulBuild();
+		if (previous == null) {
+			return null;
+		}
+		Set<String> paths = new HashSet<String>();
+		for (Run<?, ?> r = build; r != null && r.getNumber() > previous.getNumber(); r = r.getPreviousBuild()) {
+			// Change sets of other kinds of builds aren't available here
+			if (!(r instanceof AbstractBuild)) {
+				return null;
+			}
+			for (ChangeLogSet.Entry entry : ((AbstractBuild<?, ?>) r).getChangeSet()) {
+				paths.addAll(entry.getAffectedPaths());
+			}
+		}
+		return paths;
+	}
 
-				if (ai.getDefaultArgs() != null) {
-					args.add(tokenizeArgs(ai.getDefaultArgs()));
+	/**
+	 * @return the console prefix of a target: its name, or the .pbt file it
+	 *         builds, or its position
+	 */
+	static String targetName(PbcCompileTarget target, int position) {
+		if (target.getName() != null) {
+			return target.getName();
+		}
+		String[] args = tokenizeArgs(target.getCmdLineArgs());
+		if (args != null) {
+			for (String arg : args) {
+				if (arg.toLowerCase().endsWith(".pbt")) {
+					return arg.substring(Math.max(arg.lastIndexOf('\\'), arg.lastIndexOf('/')) + 1);
 				}
 			}
 		}
+		return "target " + position;
+	}
 
-		EnvVars env = build.getEnvironment(listener);
-		String normalizedArgs = cmdLineArgs.replaceAll("[\t\r\n]+", " ");
+	/**
+	 * @param buildVariables
+	 *            Variables of a freestyle build, or null
+	 * @return the command line arguments of a target, with the environment and
+	 *         build variables replaced
+	 */
+	private static String[] expandArgs(PbcCompileTarget target, EnvVars env, Map<String, String> buildVariables) {
+		String normalizedArgs = Util.fixNull(target.getCmdLineArgs()).replaceAll("[\t\r\n]+", " ");
 		normalizedArgs = Util.replaceMacro(normalizedArgs, env);
-		normalizedArgs = Util.replaceMacro(normalizedArgs, build.getBuildVariables());
+		if (buildVariables != null) {
+			normalizedArgs = Util.replaceMacro(normalizedArgs, buildVariables);
+		}
 
 		if (normalizedArgs.trim().length() > 0)
-			args.add(tokenizeArgs(normalizedArgs));
+			return tokenizeArgs(normalizedArgs);
+		return new String[0];
+	}
+
+	/**
+	 * Compiles a target, again as long as it stalls and retries are left.
+	 */
+	private TargetResult compileTarget(CompileContext context, String[] targetArgs, String name)
+			throws InterruptedException, IOException {
+		TargetResult result = runTarget(context, targetArgs, name);
+		for (int retry = 1; result.stalled && retry <= stallRetries; retry++) {
+			context.listener.getLogger().println((name != null ? "[" + name + "] " : "")
+					+ "> Running the stalled PBC compile again (" + retry + " of " + stallRetries + ").");
+			// Only the last attempt is kept
+			if (result.rawOutput != null) {
+				new File(context.build.getRootDir(), result.rawOutput).delete();
+			}
+			result = runTarget(context, targetArgs, name);
+		}
+		return result;
+	}
+
+	/**
+	 * Runs one PBC process for a target.
+	 *
+	 * @param targetArgs
+	 *            Command line arguments of the target, see
+	 *            {@link #expandArgs(PbcCompileTarget, EnvVars, Map)}
+	 * @param name
+	 *            Prefix for the console output when several targets run
+	 *            concurrently, or null
+	 */
+	private TargetResult runTarget(CompileContext context, String[] targetArgs, String name)
+			throws InterruptedException, IOException {
+		Run<?, ?> build = context.build;
+		Launcher launcher = context.launcher;
+		EnvVars env = context.env;
+		FilePath pwd = context.pwd;
+		ResolvedTool tool = context.tool;
+		PbcCompileInstallation ai = tool.installation;
+		TargetResult result = new TargetResult(name);
+		String prefix = name != null ? "[" + name + "] " : "";
+		PrintStream logger = context.listener.getLogger();
+		PbcCompileTimingsAction timings = context.timings;
+		long phase = System.nanoTime();
 
-		FilePath pwd = build.getModuleRoot();
+		ArgumentListBuilder args = tool.tool.clone().add(targetArgs);
+
+		// Skip the compile if nothing changed since the last successful build
+		DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
+		String cacheDirectory = useOutputCache ? descriptor.getCacheDirectory() : null;
+		PbcCompileFingerprint fingerprint = null;
+		if (incremental || cacheDirectory != null) {
+			String key = execName + "\n" + (ai != null ? ai.getHome() : "") + "\n" + Util.fixNull(tool.version);
+			fingerprint = pwd.act(new PbcCompileFingerprint.Inputs(args.toList(), key));
+		}
+		if (incremental) {
+			Run<?, ?> previous = build.getPreviousSuccessfulBuild();
+			PbcCompileFingerprintAction last = PbcCompileFingerprintAction.find(previous, fingerprint.getHash());
+			if (last != null && last.getOutputs()
+					.equals(pwd.act(new PbcCompileFingerprint.Outputs(last.getOutputs().keySet())))) {
+				logger.println(prefix + "> Inputs unchanged since " + previous.getFullDisplayName()
+						+ ", skipping the PBC compile.");
+				// Report what the skipped compile reported, so a skip doesn't clear its warnings
+				result.warnings = last.getWarnings();
+				result.errors = last.getErrors();
+				result.actions.add(new PbcCompileFingerprintAction(fingerprint.getHash(), last.getOutputs(),
+						result.warnings, result.errors));
+				timings.record(name, PbcCompileTimingsAction.FINGERPRINT, phase);
+				return result;
+			}
+		}
+		if (cacheDirectory != null) {
+			int[] restored = pwd.act(new PbcCompileOutputCache.Restore(cacheDirectory, fingerprint.getHash()));
+			if (restored != null) {
+				logger.println(prefix + "> Restored " + restored[0]
+						+ " output(s) from the PBC output cache, skipping the PBC compile.");
+				result.warnings = restored[1];
+				result.errors = restored[2];
+				result.actions.add(new PbcCompileFingerprintAction(fingerprint.getHash(),
+						pwd.act(new PbcCompileFingerprint.Outputs(fingerprint.getOutputs())), result.warnings,
+						result.errors));
+				timings.record(name, PbcCompileTimingsAction.FINGERPRINT, phase);
+				return result;
+			}
+		}
+		if (fingerprint != null) {
+			phase = timings.record(name, PbcCompileTimingsAction.FINGERPRINT, phase);
+		}
 
+		if (!directLaunch) {
+			wrapCommand(launcher, build.getCharset(), args);
+		}
+		logger.println(prefix + String.format("Executing the command %s from %s", args.toStringWithQuote(), pwd));
+		// Single pass parser/annotator to find the number of Warnings/Errors
+		PbcCompilerConsoleAnnotator annotator = new PbcCompilerConsoleAnnotator(logger, build.getCharset(),
+				name != null ? prefix : null);
+		if (renderTimeAnnotations) {
+			annotator.setEmbedNotes(false);
+			annotator.setAnnotationIndex(context.annotationIndex);
+		}
+		// Structured errors/warnings, kept with the build
+		result.diagnostics = new PbcCompileDiagnosticsRecorder();
+		annotator.addDiagnosticListener(result.diagnostics);
+		if (context.diagnosticsWriter != null) {
+			annotator.addDiagnosticListener(context.diagnosticsWriter.forTarget(name));
+		}
+		// Time spent per object, from the progress lines
+		if (profileObjects) {
+			result.profiler = new PbcCompileProfiler();
+			annotator.setProfiler(result.profiler);
+		}
+		// Repeated errors/warnings are only counted
+		if (collapseDuplicates) {
+			result.duplicates = new PbcCompileDuplicateFilter();
+			annotator.setDuplicateFilter(result.duplicates);
+		}
+		// Without chcp, the output is in the encoding of the pbc utility
+		OutputStream stdout = annotator;
+		PbcCompileOutputDecoder decoder = null;
+		if (directLaunch) {
+			Charset charset = ai != null ? ai.getOutputCharset(build.getCharset()) : build.getCharset();
+			decoder = new PbcCompileOutputDecoder(annotator, charset, build.getCharset());
+			stdout = decoder;
+		}
+		// The complete output, before anything is left out
+		OutputStream console = stdout;
+		OutputStream rawOutput = null;
+		File rawFile = null;
+		// Stop the compile early on too many errors
+		PbcCompileFailFast failFast = null;
+		if (failFastErrors > 0 || failFastCodes != null) {
+			failFast = new PbcCompileFailFast(failFastErrors, PbcCompileFailFast.parseCodes(failFastCodes));
+			annotator.addDiagnosticListener(failFast);
+		}
+		// Wait for a free PBC slot on the node, then launch the pbc utility
+		PbcCompileInstallation configured = context.configuredInstallation;
+		PbcCompileThrottle.Permit permit = PbcCompileThrottle.acquire(context.nodeName,
+				configured != null && configured.getLimitPerInstallation() ? configured.getName() : null,
+				configured != null ? configured.getMaxConcurrentCompiles() : 0, context.listener, prefix);
+		phase = timings.record(name, PbcCompileTimingsAction.THROTTLE, phase);
+		EnvVars launchEnv = env;
+		String cookie = null;
+		PbcCompileWatchdog watchdog = null;
+		boolean launched = false;
+		try {
+			if (archiveRawOutput) {
+				int index = PbcCompileRunFiles.allocate(build, "pbc-output-", ".log.gz");
+				rawFile = new File(build.getRootDir(), "pbc-output-" + index + ".log.gz");
+				result.rawOutput = rawFile.getName();
+				rawOutput = new GZIPOutputStream(new FileOutputStream(rawFile), 64 * 1024);
+				stdout = new TeeOutputStream(console, rawOutput);
+			}
+			// The processes are found on the node by a cookie in their environment
+			if (sampleResources || stallTimeout > 0) {
+				cookie = startSampling(context, prefix);
+				if (cookie != null) {
+					launchEnv = new EnvVars(env);
+					launchEnv.put(PbcCompileResourceSampler.COOKIE, cookie);
+				}
+			}
+			// Stop the compile once it neither writes nor uses the CPU
+			if (stallTimeout > 0) {
+				annotator.setTail(PbcCompileWatchdog.TAIL);
+				watchdog = new PbcCompileWatchdog(annotator, launcher.getChannel(), cookie, stallTimeout,
+						TimeUnit.MINUTES);
+			}
+			for (;;) {
+				IOException failure = null;
+				try {
+					Proc proc = launcher.launch().cmds(args).envs(launchEnv).stdout(stdout).pwd(pwd).start();
+					if (failFast != null) {
+						failFast.setProc(proc);
+					}
+					if (watchdog != null) {
+						watchdog.setProc(proc);
+					}
+					result.exitCode = proc.join();
+				} catch (IOException e) {
+					failure = e;
+				}
+				if (failure == null && (launcher.isUnix() || directLaunch || result.exitCode != COMMAND_NOT_FOUND
+						|| watchdog != null && watchdog.isStalled())) {
+					break;
+				}
+				// Only a cached path is worth checking again
+				if (!reverifyTool(context, tool)) {
+					if (failure != null) {
+						throw failure;
+					}
+					break;
+				}
+				tool = context.tool;
+				args = tool.tool.clone().add(targetArgs);
+				if (!directLaunch) {
+					wrapCommand(launcher, build.getCharset(), args);
+				}
+				// The archive only keeps the output of the last attempt
+				if (rawOutput != null) {
+					rawOutput.close();
+					rawOutput = new GZIPOutputStream(new FileOutputStream(rawFile), 64 * 1024);
+					stdout = new TeeOutputStream(console, rawOutput);
+				}
+				logger.println(prefix + String.format("Executing the command %s from %s", args.toStringWithQuote(), pwd));
+			}
+			launched = true;
+		} finally {
+			permit.release();
+			if (watchdog != null) {
+				watchdog.close();
+			}
+			if (cookie != null) {
+				PbcCompileResourceUsage usage = stopSampling(context, cookie, prefix);
+				if (sampleResources && usage != null) {
+					logger.println(prefix + "> PBC resources: " + usage);
+					result.resources = usage;
+				}
+			}
+			if (rawOutput != null) {
+				rawOutput.close();
+			}
+			// No results refer to the output of a launch that failed
+			if (!launched && rawFile != null) {
+				rawFile.delete();
+				result.rawOutput = null;
+			}
+		}
+		if (decoder != null) {
+			decoder.finish();
+		}
+		annotator.finish();
+		result.warnings = annotator.getNumberOfWarnings();
+		result.errors = annotator.getNumberOfErrors();
+		if (result.duplicates != null && result.duplicates.getCollapsed() > 0) {
+			logger.println(prefix + "> Left " + result.duplicates.getCollapsed()
+					+ " repeated error/warning line(s) out of the console, most repeated:");
+			for (PbcCompileDuplicateFilter.Entry entry : result.duplicates.getMostRepeated(10)) {
+				logger.println(prefix + ">   " + entry.getCount() + "x " + entry.getText());
+			}
+		}
+		if (watchdog != null && watchdog.isStalled()) {
+			result.stalled = true;
+			logger.println(prefix + "> Stopped PBC, stalled without output or CPU activity for " + stallTimeout
+					+ " minute(s). Last lines:");
+			for (String line : annotator.getTail()) {
+				logger.println(prefix + ">   " + line);
+			}
+			if (!watchdog.getProcesses().isEmpty()) {
+				logger.println(prefix + "> Processes:");
+				for (String process : watchdog.getProcesses()) {
+					logger.println(prefix + ">   " + process);
+				}
+			}
+		}
+		if (failFast != null && failFast.isTriggered()) {
+			result.stopped = true;
+			PbcCompileDiagnostic trigger = failFast.getTrigger();
+			logger.println(prefix + "> Stopped PBC after " + failFast.getCount() + " error(s)"
+					+ (trigger.getCode() != null ? ", last one " + trigger.getCode() : "") + ":");
+			for (PbcCompileDiagnostic error : failFast.getErrors()) {
+				logger.println(prefix + ">   " + error);
+			}
+		}
+		long exited = System.nanoTime();
+		if (annotator.getLines() > 0) {
+			timings.add(name, PbcCompileTimingsAction.STARTUP, annotator.getFirstLineNanos() - phase);
+			timings.add(name, PbcCompileTimingsAction.COMPILE, exited - annotator.getFirstLineNanos());
+		} else {
+			timings.add(name, PbcCompileTimingsAction.STARTUP, exited - phase);
+		}
+		timings.add(name, PbcCompileTimingsAction.CONSOLE, annotator.getConsoleNanos());
+		timings.addOutput(annotator.getBytes(), annotator.getLines());
+
+		if (fingerprint != null && result.exitCode == 0 && !result.stopped && !result.stalled) {
+			result.actions.add(new PbcCompileFingerprintAction(fingerprint.getHash(),
+					pwd.act(new PbcCompileFingerprint.Outputs(fingerprint.getOutputs())), result.warnings,
+					result.errors));
+			if (cacheDirectory != null && pwd.act(new PbcCompileOutputCache.Publish(cacheDirectory,
+					fingerprint.getHash(), fingerprint.getOutputs(), result.warnings, result.errors,
+					descriptor.getCacheMaxSize() * 1024 * 1024))) {
+				logger.println(prefix + "> Published the outputs to the PBC output cache.");
+			}
+			timings.record(name, PbcCompileTimingsAction.PUBLISH, exited);
+		}
+		return result;
+	}
+
+	/**
+	 * Starts sampling the resources of the processes launched with the
+	 * returned cookie in their environment.
+	 *
+	 * @return the cookie, or null if the node can't be sampled
+	 */
+	private static String startSampling(CompileContext context, String prefix) throws InterruptedException {
+		PrintStream logger = context.listener.getLogger();
+		String cookie = UUID.randomUUID().toString();
+		try {
+			if (context.launcher.getChannel()
+					.call(new PbcCompileResourceSampler.Start(cookie, PbcCompileResourceSampler.INTERVAL))) {
+				return cookie;
+			}
+			logger.println(prefix + "> PBC resources can't be sampled on this node.");
+		} catch (IOException e) {
+			logger.println(prefix + "> Failed to start sampling the PBC resources: " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * @return what was sampled, or null if the compile ended before the
+	 *         first sample
+	 */
+	private static PbcCompileResourceUsage stopSampling(CompileContext context, String cookie, String prefix)
+			throws InterruptedException {
+		PrintStream logger = context.listener.getLogger();
+		try {
+			PbcCompileResourceUsage usage = context.launcher.getChannel()
+					.call(new PbcCompileResourceSampler.Stop(cookie));
+			return usage;
+		} catch (IOException e) {
+			logger.println(prefix + "> Failed to collect the PBC resources: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * On Windows, runs the command through cmd.exe with the code page of the
+	 * build log.
+	 */
+	private static void wrapCommand(Launcher launcher, Charset charset, ArgumentListBuilder args) {
 		if (!launcher.isUnix()) {
-			final int cpi = getCodePageIdentifier(build.getCharset());
+			final int cpi = getCodePageIdentifier(charset);
 			if (cpi != 0)
 				args.prepend("cmd.exe", "/C", "\"", "chcp", String.valueOf(cpi), "&&");
 			else
 				args.prepend("cmd.exe", "/C", "\"");
 			args.add("\"", "&&", "exit", "%%ERRORLEVEL%%");
 		}
+	}
 
-		try {
-			listener.getLogger()
-					.println(String.format("Executing the command %s from %s", args.toStringWithQuote(), pwd));
-			// Parser to find the number of Warnings/Errors
-			PbcCompileConsoleParser mbcp = new PbcCompileConsoleParser(listener.getLogger(), build.getCharset());
-			PbcCompilerConsoleAnnotator annotator = new PbcCompilerConsoleAnnotator(listener.getLogger(),
-					build.getCharset());
-			// Launch the pbc utility
-			int r = launcher.launch().cmds(args).envs(env).stdout(mbcp).stdout(annotator).pwd(pwd).join();
-			// Check the number of warnings
-			if (unstableIfWarnings && mbcp.getNumberOfWarnings() > 0) {
-				listener.getLogger().println("> Set build UNSTABLE because there are warnings.");
-				build.setResult(Result.UNSTABLE);
-			}
-			// Return the result of the compilation
-			return continueOnBuildFailure ? true : (r == 0);
-		} catch (IOException e) {
-			Util.displayIOException(e, listener);
-			build.setResult(Result.FAILURE);
-			return false;
+	/**
+	 * Everything the targets of one build step share.
+	 */
+	private static final class CompileContext {
+		final Run<?, ?> build;
+		final Launcher launcher;
+		final TaskListener listener;
+		final EnvVars env;
+		final FilePath pwd;
+		final Node node;
+		final String nodeName;
+		/** The installation as configured, or null */
+		final PbcCompileInstallation configuredInstallation;
+		/** The pbc utility, replaced if it has to be resolved again */
+		volatile ResolvedTool tool;
+		final PbcCompileTimingsAction timings;
+		/** Streams the diagnostics into the workspace, or null */
+		PbcCompileDiagnosticsWriter diagnosticsWriter;
+		/** Error and warning lines for render time annotation, or null */
+		PbcCompileAnnotationIndex.Recorder annotationIndex;
+
+		CompileContext(Run<?, ?> build, Launcher launcher, TaskListener listener, EnvVars env,
+				FilePath pwd, Node node, String nodeName, PbcCompileInstallation configuredInstallation,
+				ResolvedTool tool, PbcCompileTimingsAction timings) {
+			this.build = build;
+			this.launcher = launcher;
+			this.listener = listener;
+			this.env = env;
+			this.pwd = pwd;
+			this.node = node;
+			this.nodeName = nodeName;
+			this.configuredInstallation = configuredInstallation;
+			this.tool = tool;
+			this.timings = timings;
 		}
 	}
 
 	/**
-	 * Get the full path of the tool to run. If given path is a directory, this
-	 * will append the executable name.
+	 * The pbc utility as resolved for a node.
 	 */
-	static String getToolFullPath(Launcher launcher, String pathToTool, String execName)
-			throws IOException, InterruptedException {
-		String fullPath = pathToTool;
-		FilePath exec = new FilePath(launcher.getChannel(), fullPath);
-		if (exec.isDirectory()) {
-			if (!fullPath.endsWith("\\")) {
-				fullPath = fullPath + "\\";
-			}
-			fullPath = fullPath + execName;
+	private static final class ResolvedTool {
+		/** The pbc utility and its default arguments */
+		final ArgumentListBuilder tool = new ArgumentListBuilder();
+		/** The installation translated for the node and environment, or null */
+		PbcCompileInstallation installation;
+		/** File version of the pbc utility, or null if unknown */
+		String version;
+		/** True if the path came from {@link PbcCompileToolCache} */
+		boolean cached;
+	}
+
+	/**
+	 * Outcome of the compile of one target.
+	 */
+	private static final class TargetResult {
+		final String name;
+		final List<Action> actions = new ArrayList<Action>();
+		PbcCompileDiagnosticsRecorder diagnostics;
+		PbcCompileProfiler profiler;
+		PbcCompileDuplicateFilter duplicates;
+		/** Gzipped raw output in the build directory, or null */
+		String rawOutput;
+		/** Resources of the process tree, or null if not sampled */
+		PbcCompileResourceUsage resources;
+		int exitCode;
+		int warnings;
+		int errors;
+		/** True if fail-fast stopped the compile */
+		boolean stopped;
+		/** True if the watchdog stopped the compile */
+		boolean stalled;
+		/** True if a target it depends on failed, so it wasn't compiled */
+		boolean skipped;
+
+		TargetResult(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Number of processors of the node running the build.
+	 */
+	private static final class ProcessorCount extends MasterToSlaveCallable<Integer, RuntimeException> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Integer call() {
+			return Runtime.getRuntime().availableProcessors();
 		}
-		return fullPath;
 	}
 
 	@Override
@@ -250,6 +1447,8 @@ public class PbcCompileBuilder extends Builder {
 	public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
 		@CopyOnWrite
 		private volatile PbcCompileInstallation[] installations = new PbcCompileInstallation[0];
+		private String cacheDirectory;
+		private long cacheMaxSize;
 
 		public DescriptorImpl() {
 			super(PbcCompileBuilder.class);
@@ -273,7 +1472,31 @@ public class PbcCompileBuilder extends Builder {
 
 		public void setInstallations(PbcCompileInstallation... antInstallations) {
 			this.installations = antInstallations;
+			PbcCompileToolCache.invalidateAll();
+			save();
+		}
+
+		/**
+		 * @return directory of the shared output cache, as seen from the
+		 *         nodes, or null if there is none
+		 */
+		public String getCacheDirectory() {
+			return cacheDirectory;
+		}
+
+		/**
+		 * @return size limit of the shared output cache in MB, 0 for no limit
+		 */
+		public long getCacheMaxSize() {
+			return cacheMaxSize;
+		}
+
+		@Override
+		public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+			cacheDirectory = Util.fixEmptyAndTrim(json.optString("cacheDirectory"));
+			cacheMaxSize = Math.max(0, json.optLong("cacheMaxSize", 0));
 			save();
+			return true;
 		}
 
 		public PbcCompileInstallation.DescriptorImpl getToolDescriptor() {
@@ -281,157 +1504,95 @@ public class PbcCompileBuilder extends Builder {
 		}
 	}
 
+	/**
+	 * Windows code pages by lower case name of the Java charset, see
+	 * {@link #getCodePageIdentifier(Charset)}
+	 */
+	private static final Map<String, Integer> CODE_PAGES = new HashMap<String, Integer>();
+
+	static {
+		CODE_PAGES.put("utf-8", 65001); // Unicode
+		CODE_PAGES.put("ibm437", 437); // US
+		CODE_PAGES.put("ibm850", 850); // OEM Multilingual Latin 1
+		CODE_PAGES.put("ibm852", 852); // OEM Latin2
+		CODE_PAGES.put("shift_jis", 932); // Japanese
+		CODE_PAGES.put("windows-31j", 932); // Japanese
+		CODE_PAGES.put("us-ascii", 20127); // US-ASCII
+		CODE_PAGES.put("euc-jp", 20932); // Japanese
+		CODE_PAGES.put("iso-8859-1", 28591); // Latin 1
+		CODE_PAGES.put("iso-8859-2", 28592); // Latin 2
+		CODE_PAGES.put("ibm00858", 858);
+		CODE_PAGES.put("ibm775", 775);
+		CODE_PAGES.put("ibm855", 855);
+		CODE_PAGES.put("ibm857", 857);
+		CODE_PAGES.put("iso-8859-4", 28594);
+		CODE_PAGES.put("iso-8859-5", 28595);
+		CODE_PAGES.put("iso-8859-7", 28597);
+		CODE_PAGES.put("iso-8859-9", 28599);
+		CODE_PAGES.put("iso-8859-13", 28603);
+		CODE_PAGES.put("iso-8859-15", 28605);
+		CODE_PAGES.put("koi8-r", 20866);
+		CODE_PAGES.put("koi8-u", 21866);
+		CODE_PAGES.put("utf-16", 1200);
+		CODE_PAGES.put("utf-32", 12000);
+		CODE_PAGES.put("utf-32be", 12001);
+		CODE_PAGES.put("windows-1250", 1250);
+		CODE_PAGES.put("windows-1251", 1251);
+		CODE_PAGES.put("windows-1252", 1252);
+		CODE_PAGES.put("windows-1253", 1253);
+		CODE_PAGES.put("windows-1254", 1254);
+		CODE_PAGES.put("windows-1257", 1257);
+		CODE_PAGES.put("big5", 950);
+		CODE_PAGES.put("euc-kr", 51949);
+		CODE_PAGES.put("gb18030", 54936);
+		CODE_PAGES.put("gb2312", 936);
+		CODE_PAGES.put("ibm-thai", 20838);
+		CODE_PAGES.put("ibm01140", 1140);
+		CODE_PAGES.put("ibm01141", 1141);
+		CODE_PAGES.put("ibm01142", 1142);
+		CODE_PAGES.put("ibm01143", 1143);
+		CODE_PAGES.put("ibm01144", 1144);
+		CODE_PAGES.put("ibm01145", 1145);
+		CODE_PAGES.put("ibm01146", 1146);
+		CODE_PAGES.put("ibm01147", 1147);
+		CODE_PAGES.put("ibm01148", 1148);
+		CODE_PAGES.put("ibm01149", 1149);
+		CODE_PAGES.put("ibm037", 37);
+		CODE_PAGES.put("ibm1026", 1026);
+		CODE_PAGES.put("ibm273", 20273);
+		CODE_PAGES.put("ibm277", 20277);
+		CODE_PAGES.put("ibm278", 20278);
+		CODE_PAGES.put("ibm280", 20280);
+		CODE_PAGES.put("ibm284", 20284);
+		CODE_PAGES.put("ibm285", 20285);
+		CODE_PAGES.put("ibm297", 20297);
+		CODE_PAGES.put("ibm420", 20420);
+		CODE_PAGES.put("ibm424", 20424);
+		CODE_PAGES.put("ibm500", 500);
+		CODE_PAGES.put("ibm860", 860);
+		CODE_PAGES.put("ibm861", 861);
+		CODE_PAGES.put("ibm863", 863);
+		CODE_PAGES.put("ibm864", 864);
+		CODE_PAGES.put("ibm865", 865);
+		CODE_PAGES.put("ibm869", 869);
+		CODE_PAGES.put("ibm870", 870);
+		CODE_PAGES.put("ibm871", 20871);
+		CODE_PAGES.put("iso-2022-jp", 50220);
+		CODE_PAGES.put("iso-2022-kr", 50225);
+		CODE_PAGES.put("iso-8859-3", 28593);
+		CODE_PAGES.put("iso-8859-6", 28596);
+		CODE_PAGES.put("iso-8859-8", 28598);
+		CODE_PAGES.put("windows-1255", 1255);
+		CODE_PAGES.put("windows-1256", 1256);
+		CODE_PAGES.put("windows-1258", 1258);
+	}
+
+	/**
+	 * @return the Windows code page of a charset, or 0 if there is none
+	 */
 	private static int getCodePageIdentifier(Charset charset) {
-		final String s_charset = charset.name();
-		if (s_charset.equalsIgnoreCase("utf-8")) // Unicode
-			return 65001;
-		else if (s_charset.equalsIgnoreCase("ibm437")) // US
-			return 437;
-		else if (s_charset.equalsIgnoreCase("ibm850")) // OEM Multilingual Latin
-														// 1
-			return 850;
-		else if (s_charset.equalsIgnoreCase("ibm852")) // OEM Latin2
-			return 852;
-		else if (s_charset.equalsIgnoreCase("shift_jis") || s_charset.equalsIgnoreCase("windows-31j")) // Japanese
-			return 932;
-		else if (s_charset.equalsIgnoreCase("us-ascii")) // US-ASCII
-			return 20127;
-		else if (s_charset.equalsIgnoreCase("euc-jp")) // Japanese
-			return 20932;
-		else if (s_charset.equalsIgnoreCase("iso-8859-1")) // Latin 1
-			return 28591;
-		else if (s_charset.equalsIgnoreCase("iso-8859-2")) // Latin 2
-			return 28592;
-		else if (s_charset.equalsIgnoreCase("IBM00858"))
-			return 858;
-		else if (s_charset.equalsIgnoreCase("IBM775"))
-			return 775;
-		else if (s_charset.equalsIgnoreCase("IBM855"))
-			return 855;
-		else if (s_charset.equalsIgnoreCase("IBM857"))
-			return 857;
-		else if (s_charset.equalsIgnoreCase("ISO-8859-4"))
-			return 28594;
-		else if (s_charset.equalsIgnoreCase("ISO-8859-5"))
-			return 28595;
-		else if (s_charset.equalsIgnoreCase("ISO-8859-7"))
-			return 28597;
-		else if (s_charset.equalsIgnoreCase("ISO-8859-9"))
-			return 28599;
-		else if (s_charset.equalsIgnoreCase("ISO-8859-13"))
-			return 28603;
-		else if (s_charset.equalsIgnoreCase("ISO-8859-15"))
-			return 28605;
-		else if (s_charset.equalsIgnoreCase("KOI8-R"))
-			return 20866;
-		else if (s_charset.equalsIgnoreCase("KOI8-U"))
-			return 21866;
-		else if (s_charset.equalsIgnoreCase("UTF-16"))
-			return 1200;
-		else if (s_charset.equalsIgnoreCase("UTF-32"))
-			return 12000;
-		else if (s_charset.equalsIgnoreCase("UTF-32BE"))
-			return 12001;
-		else if (s_charset.equalsIgnoreCase("windows-1250"))
-			return 1250;
-		else if (s_charset.equalsIgnoreCase("windows-1251"))
-			return 1251;
-		else if (s_charset.equalsIgnoreCase("windows-1252"))
-			return 1252;
-		else if (s_charset.equalsIgnoreCase("windows-1253"))
-			return 1253;
-		else if (s_charset.equalsIgnoreCase("windows-1254"))
-			return 1254;
-		else if (s_charset.equalsIgnoreCase("windows-1257"))
-			return 1257;
-		else if (s_charset.equalsIgnoreCase("Big5"))
-			return 950;
-		else if (s_charset.equalsIgnoreCase("EUC-KR"))
-			return 51949;
-		else if (s_charset.equalsIgnoreCase("GB18030"))
-			return 54936;
-		else if (s_charset.equalsIgnoreCase("GB2312"))
-			return 936;
-		else if (s_charset.equalsIgnoreCase("IBM-Thai"))
-			return 20838;
-		else if (s_charset.equalsIgnoreCase("IBM01140"))
-			return 1140;
-		else if (s_charset.equalsIgnoreCase("IBM01141"))
-			return 1141;
-		else if (s_charset.equalsIgnoreCase("IBM01142"))
-			return 1142;
-		else if (s_charset.equalsIgnoreCase("IBM01143"))
-			return 1143;
-		else if (s_charset.equalsIgnoreCase("IBM01144"))
-			return 1144;
-		else if (s_charset.equalsIgnoreCase("IBM01145"))
-			return 1145;
-		else if (s_charset.equalsIgnoreCase("IBM01146"))
-			return 1146;
-		else if (s_charset.equalsIgnoreCase("IBM01147"))
-			return 1147;
-		else if (s_charset.equalsIgnoreCase("IBM01148"))
-			return 1148;
-		else if (s_charset.equalsIgnoreCase("IBM01149"))
-			return 1149;
-		else if (s_charset.equalsIgnoreCase("IBM037"))
-			return 37;
-		else if (s_charset.equalsIgnoreCase("IBM1026"))
-			return 1026;
-		else if (s_charset.equalsIgnoreCase("IBM273"))
-			return 20273;
-		else if (s_charset.equalsIgnoreCase("IBM277"))
-			return 20277;
-		else if (s_charset.equalsIgnoreCase("IBM278"))
-			return 20278;
-		else if (s_charset.equalsIgnoreCase("IBM280"))
-			return 20280;
-		else if (s_charset.equalsIgnoreCase("IBM284"))
-			return 20284;
-		else if (s_charset.equalsIgnoreCase("IBM285"))
-			return 20285;
-		else if (s_charset.equalsIgnoreCase("IBM297"))
-			return 20297;
-		else if (s_charset.equalsIgnoreCase("IBM420"))
-			return 20420;
-		else if (s_charset.equalsIgnoreCase("IBM424"))
-			return 20424;
-		else if (s_charset.equalsIgnoreCase("IBM500"))
-			return 500;
-		else if (s_charset.equalsIgnoreCase("IBM860"))
-			return 860;
-		else if (s_charset.equalsIgnoreCase("IBM861"))
-			return 861;
-		else if (s_charset.equalsIgnoreCase("IBM863"))
-			return 863;
-		else if (s_charset.equalsIgnoreCase("IBM864"))
-			return 864;
-		else if (s_charset.equalsIgnoreCase("IBM865"))
-			return 865;
-		else if (s_charset.equalsIgnoreCase("IBM869"))
-			return 869;
-		else if (s_charset.equalsIgnoreCase("IBM870"))
-			return 870;
-		else if (s_charset.equalsIgnoreCase("IBM871"))
-			return 20871;
-		else if (s_charset.equalsIgnoreCase("ISO-2022-JP"))
-			return 50220;
-		else if (s_charset.equalsIgnoreCase("ISO-2022-KR"))
-			return 50225;
-		else if (s_charset.equalsIgnoreCase("ISO-8859-3"))
-			return 28593;
-		else if (s_charset.equalsIgnoreCase("ISO-8859-6"))
-			return 28596;
-		else if (s_charset.equalsIgnoreCase("ISO-8859-8"))
-			return 28598;
-		else if (s_charset.equalsIgnoreCase("windows-1255"))
-			return 1255;
-		else if (s_charset.equalsIgnoreCase("windows-1256"))
-			return 1256;
-		else if (s_charset.equalsIgnoreCase("windows-1258"))
-			return 1258;
-		else
-			return 0;
+		Integer cpi = CODE_PAGES.get(charset.name().toLowerCase(Locale.ENGLISH));
+		return cpi != null ? cpi : 0;
 	}
 
 }
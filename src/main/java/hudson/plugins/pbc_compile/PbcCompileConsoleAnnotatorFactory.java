@@ -0,0 +1,100 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Extension;
+import hudson.MarkupText;
+import hudson.console.ConsoleAnnotator;
+import hudson.console.ConsoleAnnotatorFactory;
+import hudson.model.Run;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Annotates the PBC errors and warnings of builds that were logged without
+ * console notes, while the log is rendered. Builds that have an annotation
+ * index are looked up by line hash; the others are classified with
+ * {@link PbcCompileLineScanner}. Other builds are left alone.
+ */
+@Extension
+public class PbcCompileConsoleAnnotatorFactory extends ConsoleAnnotatorFactory<Object> {
+
+    @Override
+    public ConsoleAnnotator<Object> newInstance(Object context) {
+        if (context instanceof Run && !((Run<?, ?>) context).getActions(PbcCompileAnnotationsAction.class).isEmpty()) {
+            return new Annotator();
+        }
+        return null;
+    }
+
+    /**
+     * Serialized between the chunks of a progressively rendered log, so it
+     * only keeps what it can look up again from the build.
+     */
+    private static final class Annotator extends ConsoleAnnotator<Object> {
+        private static final long serialVersionUID = 1L;
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        private transient List<PbcCompileAnnotationIndex> indexes;
+        private transient PbcCompileLineScanner scanner;
+
+        @Override
+        public ConsoleAnnotator<Object> annotate(Object context, MarkupText text) {
+            if (indexes == null) {
+                load((Run<?, ?>) context);
+            }
+            String line = text.getText();
+            int kind = 0;
+            if (scanner != null) {
+                byte[] b = line.getBytes(UTF_8);
+                kind = scanner.scan(b, b.length);
+            } else {
+                for (PbcCompileAnnotationIndex index : indexes) {
+                    kind |= index.kind(line);
+                }
+            }
+            if ((kind & PbcCompileLineScanner.ERROR) != 0) {
+                text.addMarkup(0, text.length(), "<span class=error-inline>", "</span>");
+            } else if ((kind & PbcCompileLineScanner.WARNING) != 0) {
+                text.addMarkup(0, text.length(), "<span class=warning-inline>", "</span>");
+            }
+            return this;
+        }
+
+        private void load(Run<?, ?> run) {
+            indexes = new ArrayList<PbcCompileAnnotationIndex>();
+            for (PbcCompileAnnotationsAction action : run.getActions(PbcCompileAnnotationsAction.class)) {
+                PbcCompileAnnotationIndex index = action.getIndex();
+                if (index == null) {
+                    // A step without index: classify every line
+                    scanner = new PbcCompileLineScanner(UTF_8);
+                    return;
+                }
+                indexes.add(index);
+            }
+        }
+    }
+}
@@ -27,10 +27,7 @@ import hudson.console.LineTransformationOutputStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Parser to find the number of Warnings/Errors of PBC compilation
@@ -39,14 +36,14 @@ import java.util.regex.Pattern;
  */
 public class PbcCompileConsoleParser extends LineTransformationOutputStream {
     private final OutputStream out;
-    private final Charset charset;
+    private final PbcCompileLineScanner scanner;
 
     private int numberOfWarnings = -1;
     private int numberOfErrors = -1;
 
     public PbcCompileConsoleParser(OutputStream out, Charset charset) {
         this.out = out;
-        this.charset = charset;
+        this.scanner = new PbcCompileLineScanner(charset);
     }
 
     public int getNumberOfWarnings() {
@@ -59,31 +56,12 @@ public class PbcCompileConsoleParser extends LineTransformationOutputStream {
 
     @Override
     protected void eol(byte[] b, int len) throws IOException {
-        String line = charset.decode(ByteBuffer.wrap(b, 0, len)).toString();
+        int kind = scanner.scan(b, len);
 
-        // trim off CR/LF from the end
-        line = trimEOL(line);
-
-        Pattern patternWarnings = Pattern.compile(".*\\d+\\sWarning\\(s\\).*");
-        Pattern patternErrors = Pattern.compile(".*\\d+\\sError\\(s\\).*");
-
-        Matcher mWarnings = patternWarnings.matcher(line);
-        Matcher mErrors = patternErrors.matcher(line);
-
-        if (mWarnings.matches()) { // Match the number of warnings
-            String[] part = line.split(" ");
-            try {
-                numberOfWarnings = Integer.parseInt(part[4]);
-            } catch (NumberFormatException e) {
-
-            }
-        } else if (mErrors.matches()) { // Match the number of errors
-            String[] part = line.split(" ");
-            try {
-                numberOfErrors = Integer.parseInt(part[4]);
-            } catch (NumberFormatException e) {
-
-            }
+        if ((kind & PbcCompileLineScanner.SUMMARY_WARNINGS) != 0) { // Match the number of warnings
+            numberOfWarnings = scanner.getSummaryCount();
+        } else if ((kind & PbcCompileLineScanner.SUMMARY_ERRORS) != 0) { // Match the number of errors
+            numberOfErrors = scanner.getSummaryCount();
         }
 
         // Write to output
@@ -0,0 +1,373 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which targets of a build step depend on which libraries and on each other,
+ * from their .pbt files.
+ *
+ * Target B depends on target A when the library list of B holds the
+ * application library of A. A changed file affects the targets whose .pbt
+ * or library it is, whose library directory (PowerBuilder 2019 R2 and later)
+ * contains it, or, for exported sources such as .srw and .pbg files, whose
+ * library sits in the same directory; and in turn every target depending on
+ * those. Parsed .pbt files are cached per workspace and parsed again when
+ * their timestamp changes.
+ */
+final class PbcCompileDependencyGraph {
+    /** Parsed .pbt files by node and workspace, then by command line argument */
+    private static final Map<String, Map<String, Parsed>> CACHE = new LinkedHashMap<String, Map<String, Parsed>>(16,
+            0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, Parsed>> eldest) {
+            return size() > 200;
+        }
+    };
+
+    /** Files of each target: its .pbt and its libraries, normalized */
+    private final List<Set<String>> files = new ArrayList<Set<String>>();
+    /** Targets each target depends on */
+    private final List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>();
+    private final boolean complete;
+
+    /**
+     * @param targets
+     *            Parsed .pbt file of every target, null for a target without
+     *            one
+     */
+    PbcCompileDependencyGraph(List<Parsed> targets) {
+        boolean complete = true;
+        for (Parsed target : targets) {
+            Set<String> f = new HashSet<String>();
+            if (target != null) {
+                f.add(target.pbt);
+                f.addAll(target.libraries);
+            } else {
+                complete = false;
+            }
+            files.add(f);
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            Set<Integer> deps = new HashSet<Integer>();
+            for (int j = 0; j < targets.size(); j++) {
+                Parsed other = targets.get(j);
+                if (i != j && other != null && other.appLib != null && files.get(i).contains(other.appLib)) {
+                    deps.add(j);
+                }
+            }
+            dependencies.add(deps);
+        }
+        this.complete = complete;
+    }
+
+    /**
+     * Reads the .pbt files of the targets in a workspace, reusing what was
+     * parsed before for the .pbt files that didn't change.
+     *
+     * @param key
+     *            Identifies the workspace, such as node name and path
+     */
+    static PbcCompileDependencyGraph load(FilePath ws, String key, List<String[]> targetArgs)
+            throws IOException, InterruptedException {
+        Map<String, Parsed> cached;
+        synchronized (CACHE) {
+            cached = CACHE.get(key);
+            cached = cached != null ? new HashMap<String, Parsed>(cached) : new HashMap<String, Parsed>();
+        }
+        Map<String, Long> known = new HashMap<String, Long>();
+        List<String> pbts = new ArrayList<String>();
+        for (String[] args : targetArgs) {
+            String pbt = pbtOf(args);
+            pbts.add(pbt);
+            if (pbt != null) {
+                Parsed p = cached.get(pbt);
+                known.put(pbt, p != null ? p.mtime : -1L);
+            }
+        }
+        if (!known.isEmpty()) {
+            Map<String, Parsed> changed = ws.act(new Parse(known));
+            cached.putAll(changed);
+            for (Map.Entry<String, Parsed> e : changed.entrySet()) {
+                if (e.getValue() == null) {
+                    cached.remove(e.getKey());
+                }
+            }
+            synchronized (CACHE) {
+                CACHE.put(key, cached);
+            }
+        }
+        List<Parsed> targets = new ArrayList<Parsed>();
+        for (String pbt : pbts) {
+            targets.add(pbt != null ? cached.get(pbt) : null);
+        }
+        return new PbcCompileDependencyGraph(targets);
+    }
+
+    /** @return the .pbt file of a command line, or null */
+    static String pbtOf(String[] args) {
+        for (String arg : args) {
+            if (arg.toLowerCase(Locale.ENGLISH).endsWith(".pbt")) {
+                return arg;
+            }
+        }
+        return null;
+    }
+
+    /** @return false if some target has no .pbt to tell its libraries */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /** @return the targets a target depends on */
+    Set<Integer> getDependencies(int target) {
+        return Collections.unmodifiableSet(dependencies.get(target));
+    }
+
+    /**
+     * @param changed
+     *            Changed files, relative to the workspace or to a directory
+     *            of it
+     * @return the targets affected by the changes, in dependency order
+     */
+    List<Integer> affected(Collection<String> changed) {
+        Set<Integer> affected = new HashSet<Integer>();
+        for (String path : changed) {
+            String p = normalize(path);
+            for (int i = 0; i < files.size(); i++) {
+                if (!affected.contains(i) && affects(p, files.get(i))) {
+                    affected.add(i);
+                }
+            }
+        }
+        // Dependents of affected targets
+        boolean grown;
+        do {
+            grown = false;
+            for (int i = 0; i < dependencies.size(); i++) {
+                if (!affected.contains(i) && !Collections.disjoint(dependencies.get(i), affected)) {
+                    affected.add(i);
+                    grown = true;
+                }
+            }
+        } while (grown);
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i : order()) {
+            if (affected.contains(i)) {
+                order.add(i);
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @return every target, dependencies first, otherwise in their configured
+     *         order; a cycle is broken at its first target
+     */
+    List<Integer> order() {
+        List<Integer> order = new ArrayList<Integer>();
+        Set<Integer> done = new HashSet<Integer>();
+        while (order.size() < dependencies.size()) {
+            int next = -1;
+            for (int i = 0; i < dependencies.size() && next < 0; i++) {
+                if (!done.contains(i) && done.containsAll(dependencies.get(i))) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                // A cycle: take the first one left
+                for (int i = 0; next < 0; i++) {
+                    if (!done.contains(i)) {
+                        next = i;
+                    }
+                }
+            }
+            order.add(next);
+            done.add(next);
+        }
+        return order;
+    }
+
+    private static boolean affects(String changed, Set<String> files) {
+        for (String file : files) {
+            if (matches(changed, file)) {
+                return true;
+            }
+            int slash = file.lastIndexOf('/');
+            String dir = slash >= 0 ? file.substring(0, slash + 1) : "";
+            // Exported sources next to the library
+            if (isSource(changed) && matches(changed, dir + changed.substring(changed.lastIndexOf('/') + 1))) {
+                return true;
+            }
+            // Library folder of PowerBuilder 2019 R2 and later
+            for (int i = changed.indexOf('/'); i >= 0; i = changed.indexOf('/', i + 1)) {
+                if (matches(changed.substring(0, i), file)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** SCM paths may be relative to a directory of the workspace */
+    private static boolean matches(String changed, String file) {
+        return file.equals(changed) || file.endsWith("/" + changed);
+    }
+
+    private static boolean isSource(String path) {
+        int dot = path.lastIndexOf('.');
+        String ext = dot >= 0 ? path.substring(dot + 1) : "";
+        return ext.length() == 3 && ext.startsWith("sr") || ext.equals("pbg");
+    }
+
+    static String normalize(String path) {
+        String p = path.replace('\\', '/').toLowerCase(Locale.ENGLISH);
+        while (p.startsWith("./")) {
+            p = p.substring(2);
+        }
+        return p;
+    }
+
+    /**
+     * Tells whether any of the changed files, or for deleted ones their
+     * directory, is found in the workspace.
+     */
+    static final class Locate extends MasterToSlaveFileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> changed;
+
+        Locate(Collection<String> changed) {
+            this.changed = new ArrayList<String>(changed);
+        }
+
+        @Override
+        public Boolean invoke(File ws, VirtualChannel channel) {
+            return locate(ws, changed);
+        }
+
+        static boolean locate(File ws, Collection<String> changed) {
+            for (String path : changed) {
+                String p = path.replace('\\', '/');
+                while (p.startsWith("./")) {
+                    p = p.substring(2);
+                }
+                int slash = p.lastIndexOf('/');
+                if (p.length() > 0 && new File(ws, p).exists()
+                        || slash > 0 && new File(ws, p.substring(0, slash)).isDirectory()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A .pbt file as parsed on the node, its paths relative to the workspace
+     * when inside it.
+     */
+    static final class Parsed implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long mtime;
+        final String pbt;
+        final String appLib;
+        final List<String> libraries;
+
+        Parsed(long mtime, String pbt, String appLib, List<String> libraries) {
+            this.mtime = mtime;
+            this.pbt = pbt;
+            this.appLib = appLib;
+            this.libraries = libraries;
+        }
+    }
+
+    /**
+     * Parses the .pbt files whose timestamp differs from the known one.
+     * Returns the new ones, and null for the ones that don't exist.
+     */
+    static final class Parse extends MasterToSlaveFileCallable<Map<String, Parsed>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, Long> known;
+
+        Parse(Map<String, Long> known) {
+            this.known = new HashMap<String, Long>(known);
+        }
+
+        @Override
+        public Map<String, Parsed> invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            Map<String, Parsed> changed = new HashMap<String, Parsed>();
+            for (Map.Entry<String, Long> e : known.entrySet()) {
+                File pbt = PbcTargetFile.resolve(ws, e.getKey());
+                if (!pbt.isFile()) {
+                    changed.put(e.getKey(), null);
+                    continue;
+                }
+                long mtime = pbt.lastModified();
+                if (mtime == e.getValue()) {
+                    continue;
+                }
+                PbcTargetFile target = PbcTargetFile.parse(pbt);
+                List<String> libraries = new ArrayList<String>();
+                for (File library : target.resolveLibraries(pbt)) {
+                    libraries.add(relativize(ws, library));
+                }
+                String appLib = target.getAppLib() != null
+                        ? relativize(ws, PbcTargetFile.resolve(pbt.getParentFile(), target.getAppLib())) : null;
+                changed.put(e.getKey(), new Parsed(mtime, relativize(ws, pbt), appLib, libraries));
+            }
+            return changed;
+        }
+
+        private static String relativize(File ws, File file) throws IOException {
+            // Library lists often go through ..\
+            String base = normalize(ws.getCanonicalPath());
+            String path = normalize(file.getCanonicalPath());
+            if (!base.endsWith("/")) {
+                base = base + "/";
+            }
+            return path.startsWith(base) ? path.substring(base.length()) : path;
+        }
+    }
+}
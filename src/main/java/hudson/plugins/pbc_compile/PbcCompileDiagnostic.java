@@ -0,0 +1,108 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import java.io.Serializable;
+
+/**
+ * A single error or warning reported by PBC.
+ */
+public final class PbcCompileDiagnostic implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+        ERROR, WARNING
+    }
+
+    private final Kind kind;
+    private final String object;
+    private final int line;
+    private final int column;
+    private final String code;
+    private final String message;
+
+    /**
+     * @param kind
+     *            Error or warning
+     * @param object
+     *            The object or file the diagnostic refers to, may be empty
+     * @param line
+     *            Line number, or -1 if PBC did not report one
+     * @param column
+     *            Column number, or -1 if PBC did not report one
+     * @param code
+     *            Diagnostic code such as C0014, or null
+     * @param message
+     *            The message text
+     */
+    public PbcCompileDiagnostic(Kind kind, String object, int line, int column, String code, String message) {
+        this.kind = kind;
+        this.object = object;
+        this.line = line;
+        this.column = column;
+        this.code = code;
+        this.message = message;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getObject() {
+        return object;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(object);
+        if (line >= 0) {
+            sb.append('(').append(line);
+            if (column >= 0) {
+                sb.append(',').append(column);
+            }
+            sb.append(')');
+        }
+        sb.append(": ").append(kind == Kind.ERROR ? "error" : "warning");
+        if (code != null) {
+            sb.append(' ').append(code);
+        }
+        return sb.append(": ").append(message).toString();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Errors and warnings of one PBC build step. Only the counts are kept in
+ * build.xml; the diagnostics themselves are read from their file the first
+ * time the page is viewed, and can be dropped again under memory pressure.
+ */
+@ExportedBean
+public class PbcCompileDiagnosticsAction implements RunAction2 {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileDiagnosticsAction.class.getName());
+
+    /** Number of diagnostics shown per page */
+    static final int PAGE_SIZE = 500;
+
+    private final String fileName;
+    private final int index;
+    private final int errors;
+    private final int warnings;
+
+    private transient Run<?, ?> run;
+    private transient Reference<List<PbcCompileDiagnostic>> diagnostics;
+
+    /**
+     * @param fileName
+     *            Diagnostics file, relative to the build directory
+     * @param index
+     *            Position of the build step among the PBC steps of the build,
+     *            starting at 1
+     */
+    public PbcCompileDiagnosticsAction(String fileName, int index, int errors, int warnings) {
+        this.fileName = fileName;
+        this.index = index;
+        this.errors = errors;
+        this.warnings = warnings;
+    }
+
+    /**
+     * Writes the diagnostics collected by a recorder next to the build and
+     * creates the matching action.
+     */
+    static PbcCompileDiagnosticsAction save(Run<?, ?> run, PbcCompileDiagnosticsRecorder recorder)
+            throws IOException {
+        int index = PbcCompileRunFiles.allocate(run, "pbc-diagnostics-", ".bin");
+        String fileName = "pbc-diagnostics-" + index + ".bin";
+        recorder.write(new File(run.getRootDir(), fileName));
+        return new PbcCompileDiagnosticsAction(fileName, index, recorder.getNumberOfErrors(),
+                recorder.getNumberOfWarnings());
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return index == 1 ? Messages.PbcCompileDiagnosticsAction_DisplayName()
+                : Messages.PbcCompileDiagnosticsAction_DisplayNameIndexed(index);
+    }
+
+    @Override
+    public String getUrlName() {
+        return index == 1 ? "pbcDiagnostics" : "pbcDiagnostics" + index;
+    }
+
+    @Exported
+    public int getNumberOfErrors() {
+        return errors;
+    }
+
+    @Exported
+    public int getNumberOfWarnings() {
+        return warnings;
+    }
+
+    /**
+     * @return all diagnostics of the step, loaded on first use
+     */
+    public synchronized List<PbcCompileDiagnostic> getDiagnostics() {
+        List<PbcCompileDiagnostic> result = diagnostics != null ? diagnostics.get() : null;
+        if (result == null) {
+            File file = new File(run.getRootDir(), fileName);
+            try {
+                result = Collections.unmodifiableList(PbcCompileDiagnosticsRecorder.read(file));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+                result = Collections.emptyList();
+            }
+            diagnostics = new SoftReference<List<PbcCompileDiagnostic>>(result);
+        }
+        return result;
+    }
+
+    /**
+     * @return one page of diagnostics, for the index page
+     */
+    public List<PbcCompileDiagnostic> getDiagnostics(int start) {
+        List<PbcCompileDiagnostic> all = getDiagnostics();
+        int from = Math.max(0, Math.min(start, all.size()));
+        return all.subList(from, Math.min(all.size(), from + PAGE_SIZE));
+    }
+
+    /**
+     * @return the first diagnostic to show, from the start query parameter
+     */
+    public int getRequestedStart() {
+        StaplerRequest req = Stapler.getCurrentRequest();
+        String start = req != null ? req.getParameter("start") : null;
+        if (start == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(start));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Collects diagnostics column by column and stores them in a compact file.
+ *
+ * Object names, codes and messages go into one string table, so a warning
+ * repeated for thousands of objects costs a few bytes per occurrence. The
+ * file is a gzipped sequence of: magic, version, record count, the string
+ * table, then one column each for kind, object, line, column, code and
+ * message, as variable length integers.
+ */
+public class PbcCompileDiagnosticsRecorder implements PbcCompileDiagnosticListener {
+    private static final int MAGIC = 0x50424344; // "PBCD"
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** Deflate inflates data at most about 1032 times */
+    private static final long MAX_INFLATION = 1032;
+    /** Kind and five columns of at least one byte */
+    private static final int MIN_RECORD_SIZE = 6;
+
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+    private final List<String> table = new ArrayList<String>();
+
+    private byte[] kinds = new byte[64];
+    private int[] objects = new int[64];
+    private int[] lines = new int[64];
+    private int[] columns = new int[64];
+    private int[] codes = new int[64];
+    private int[] messages = new int[64];
+    private int size;
+
+    private int errors;
+    private int warnings;
+
+    @Override
+    public void onDiagnostic(PbcCompileDiagnostic diagnostic) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+            codes = Arrays.copyOf(codes, capacity);
+            messages = Arrays.copyOf(messages, capacity);
+        }
+        kinds[size] = (byte) diagnostic.getKind().ordinal();
+        objects[size] = intern(diagnostic.getObject());
+        // -1 (none) is stored as 0
+        lines[size] = diagnostic.getLine() + 1;
+        columns[size] = diagnostic.getColumn() + 1;
+        codes[size] = intern(diagnostic.getCode());
+        messages[size] = intern(diagnostic.getMessage());
+        size++;
+
+        if (diagnostic.getKind() == PbcCompileDiagnostic.Kind.ERROR) {
+            errors++;
+        } else {
+            warnings++;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getNumberOfErrors() {
+        return errors;
+    }
+
+    public int getNumberOfWarnings() {
+        return warnings;
+    }
+
+    /** Index 0 is reserved for null */
+    private int intern(String s) {
+        if (s == null) {
+            return 0;
+        }
+        Integer index = strings.get(s);
+        if (index == null) {
+            table.add(s);
+            index = table.size();
+            strings.put(s, index);
+        }
+        return index;
+    }
+
+    public void write(File file) throws IOException {
+        OutputStream os = new GZIPOutputStream(new FileOutputStream(file));
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(table.size());
+            for (String s : table) {
+                byte[] b = s.getBytes(UTF_8);
+                writeVarInt(out, b.length);
+                out.write(b);
+            }
+            out.write(kinds, 0, size);
+            writeColumn(out, objects);
+            writeColumn(out, lines);
+            writeColumn(out, columns);
+            writeColumn(out, codes);
+            writeColumn(out, messages);
+            out.flush();
+        } finally {
+            os.close();
+        }
+    }
+
+    private void writeColumn(DataOutputStream out, int[] column) throws IOException {
+        for (int i = 0; i < size; i++) {
+            writeVarInt(out, column[i]);
+        }
+    }
+
+    /**
+     * Reads a file written by {@link #write(File)}.
+     *
+     * @throws IOException
+     *             also if the file is damaged
+     */
+    public static List<PbcCompileDiagnostic> read(File file) throws IOException {
+        // Sizes are checked against what the file can hold before anything
+        // is allocated for them
+        long max = maxInflatedSize(file);
+        InputStream is = new GZIPInputStream(new FileInputStream(file));
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported diagnostics file " + file);
+            }
+            int count = check(in.readInt(), max / MIN_RECORD_SIZE, "record count");
+            String[] table = new String[check(in.readInt(), max, "string count") + 1];
+            for (int i = 1; i < table.length; i++) {
+                byte[] b = new byte[check(readVarInt(in), max, "string length")];
+                in.readFully(b);
+                table[i] = new String(b, UTF_8);
+            }
+            byte[] kinds = new byte[count];
+            in.readFully(kinds);
+            int[] objects = readColumn(in, count);
+            int[] lines = readColumn(in, count);
+            int[] columns = readColumn(in, count);
+            int[] codes = readColumn(in, count);
+            int[] messages = readColumn(in, count);
+
+            PbcCompileDiagnostic.Kind[] values = PbcCompileDiagnostic.Kind.values();
+            List<PbcCompileDiagnostic> result = new ArrayList<PbcCompileDiagnostic>(count);
+            for (int i = 0; i < count; i++) {
+                check(kinds[i], values.length - 1, "kind");
+                result.add(new PbcCompileDiagnostic(values[kinds[i]],
+                        table[check(objects[i], table.length - 1, "string index")], lines[i] - 1, columns[i] - 1,
+                        table[check(codes[i], table.length - 1, "string index")],
+                        table[check(messages[i], table.length - 1, "string index")]));
+            }
+            return result;
+        } finally {
+            is.close();
+        }
+    }
+
+    private static int[] readColumn(DataInputStream in, int count) throws IOException {
+        int[] column = new int[count];
+        for (int i = 0; i < count; i++) {
+            column[i] = readVarInt(in);
+        }
+        return column;
+    }
+
+    /**
+     * @return an upper bound of the size of a gzipped file once inflated
+     */
+    static long maxInflatedSize(File file) {
+        return file.length() * MAX_INFLATION;
+    }
+
+    /**
+     * @return value, if it is in [0, max]
+     * @throws IOException
+     *             if it is not, as the file is damaged
+     */
+    static int check(int value, long max, String what) throws IOException {
+        if (value < 0 || value > max) {
+            throw new IOException("Malformed " + what + " " + value);
+        }
+        return value;
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+}
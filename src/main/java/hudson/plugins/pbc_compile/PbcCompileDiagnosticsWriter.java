@@ -0,0 +1,254 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Streams the diagnostics of a build step into workspace files while PBC
+ * runs: one JSON object per line, and optionally a SARIF 2.1.0 document.
+ * Both files are written through a fixed size buffer and nothing is kept
+ * in memory; the SARIF document is closed when the step ends.
+ *
+ * A failure to write disables the file and is reported once, without
+ * disturbing the compile.
+ */
+final class PbcCompileDiagnosticsWriter implements Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TaskListener listener;
+    private Writer jsonLines;
+    private Writer sarif;
+    private boolean firstResult = true;
+
+    /**
+     * @param jsonLines
+     *            JSON lines file, or null
+     * @param sarif
+     *            SARIF file, or null
+     * @param version
+     *            Version of the pbc utility, or null
+     */
+    PbcCompileDiagnosticsWriter(FilePath jsonLines, FilePath sarif, String version, TaskListener listener)
+            throws IOException, InterruptedException {
+        this.listener = listener;
+        if (jsonLines != null) {
+            this.jsonLines = open(jsonLines);
+        }
+        if (sarif != null) {
+            boolean opened = false;
+            try {
+                this.sarif = open(sarif);
+                StringBuilder sb = new StringBuilder();
+                sb.append("{\"$schema\":\"https://json.schemastore.org/sarif-2.1.0.json\",\"version\":\"2.1.0\",");
+                sb.append("\"runs\":[{\"tool\":{\"driver\":{\"name\":\"PBC\"");
+                if (version != null) {
+                    sb.append(",\"version\":");
+                    string(sb, version);
+                }
+                sb.append("}},\"results\":[\n");
+                this.sarif.write(sb.toString());
+                opened = true;
+            } finally {
+                if (!opened) {
+                    closeQuietly(this.sarif);
+                    closeQuietly(this.jsonLines);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(Writer writer) {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+                // Failing already
+            }
+        }
+    }
+
+    private static Writer open(FilePath file) throws IOException, InterruptedException {
+        return new OutputStreamWriter(new BufferedOutputStream(file.write(), BUFFER_SIZE), UTF_8);
+    }
+
+    /**
+     * @param target
+     *            Target the diagnostics belong to, or null
+     * @return a listener writing the diagnostics of one target
+     */
+    PbcCompileDiagnosticListener forTarget(final String target) {
+        return new PbcCompileDiagnosticListener() {
+            @Override
+            public void onDiagnostic(PbcCompileDiagnostic diagnostic) {
+                write(target, diagnostic);
+            }
+        };
+    }
+
+    synchronized void write(String target, PbcCompileDiagnostic d) {
+        if (jsonLines != null) {
+            StringBuilder sb = new StringBuilder(128);
+            sb.append("{\"kind\":\"").append(d.getKind() == PbcCompileDiagnostic.Kind.ERROR ? "error" : "warning");
+            sb.append("\",\"object\":");
+            string(sb, d.getObject());
+            if (d.getLine() >= 0) {
+                sb.append(",\"line\":").append(d.getLine());
+            }
+            if (d.getColumn() >= 0) {
+                sb.append(",\"column\":").append(d.getColumn());
+            }
+            if (d.getCode() != null) {
+                sb.append(",\"code\":");
+                string(sb, d.getCode());
+            }
+            sb.append(",\"message\":");
+            string(sb, d.getMessage());
+            if (target != null) {
+                sb.append(",\"target\":");
+                string(sb, target);
+            }
+            sb.append("}\n");
+            try {
+                jsonLines.write(sb.toString());
+            } catch (IOException e) {
+                jsonLines = abandon(jsonLines, e);
+            }
+        }
+        if (sarif != null) {
+            StringBuilder sb = new StringBuilder(256);
+            if (!firstResult) {
+                sb.append(",\n");
+            }
+            firstResult = false;
+            sb.append("{\"level\":\"").append(d.getKind() == PbcCompileDiagnostic.Kind.ERROR ? "error" : "warning");
+            sb.append('"');
+            if (d.getCode() != null) {
+                sb.append(",\"ruleId\":");
+                string(sb, d.getCode());
+            }
+            // SARIF requires a message text
+            sb.append(",\"message\":{\"text\":");
+            string(sb, Util.fixNull(d.getMessage()));
+            sb.append("},\"locations\":[{\"logicalLocations\":[{\"fullyQualifiedName\":");
+            string(sb, d.getObject());
+            sb.append("}]}],\"properties\":{");
+            // PBC positions are within a script, not a file
+            String separator = "";
+            if (d.getLine() >= 0) {
+                sb.append("\"line\":").append(d.getLine());
+                separator = ",";
+            }
+            if (d.getColumn() >= 0) {
+                sb.append(separator).append("\"column\":").append(d.getColumn());
+                separator = ",";
+            }
+            if (target != null) {
+                sb.append(separator).append("\"target\":");
+                string(sb, target);
+            }
+            sb.append("}}");
+            try {
+                sarif.write(sb.toString());
+            } catch (IOException e) {
+                sarif = abandon(sarif, e);
+            }
+        }
+    }
+
+    private Writer abandon(Writer writer, IOException e) {
+        listener.error("Failed to write the PBC diagnostics file: " + e);
+        try {
+            writer.close();
+        } catch (IOException ignored) {
+            // Already reported
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (jsonLines != null) {
+                jsonLines.close();
+            }
+        } finally {
+            jsonLines = null;
+            if (sarif != null) {
+                try {
+                    sarif.write("\n]}]}\n");
+                } finally {
+                    sarif.close();
+                    sarif = null;
+                }
+            }
+        }
+    }
+
+    /** Appends a JSON string, or null */
+    static void string(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which diagnostics were already logged, by a hash of their kind,
+ * object, code and message, so that repetitions can be left out of the
+ * console. Only the most recently seen diagnostics are remembered; one that
+ * was forgotten is logged again.
+ */
+final class PbcCompileDuplicateFilter {
+    /** Number of distinct diagnostics remembered */
+    static final int CAPACITY = 10000;
+
+    private final Map<Long, Entry> seen = new LinkedHashMap<Long, Entry>(256, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private long collapsed;
+
+    /**
+     * Counts one occurrence of a diagnostic.
+     *
+     * @return the number of occurrences so far, 1 the first time
+     */
+    int add(long hash) {
+        Entry entry = seen.get(hash);
+        if (entry == null) {
+            seen.put(hash, new Entry());
+            return 1;
+        }
+        collapsed++;
+        return ++entry.count;
+    }
+
+    /**
+     * Keeps the text of a repeated diagnostic, for the summary.
+     */
+    void describe(long hash, String text) {
+        Entry entry = seen.get(hash);
+        if (entry != null) {
+            entry.text = text;
+        }
+    }
+
+    /** @return the number of lines left out */
+    long getCollapsed() {
+        return collapsed;
+    }
+
+    /**
+     * @return the remembered diagnostics that were repeated, most repeated
+     *         first
+     */
+    List<Entry> getMostRepeated(int limit) {
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : seen.values()) {
+            if (entry.count > 1) {
+                result.add(entry);
+            }
+        }
+        Collections.sort(result, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return b.count - a.count;
+            }
+        });
+        return result.subList(0, Math.min(limit, result.size()));
+    }
+
+    /**
+     * A diagnostic and how often it occurred.
+     */
+    static final class Entry {
+        private int count = 1;
+        private String text;
+
+        int getCount() {
+            return count;
+        }
+
+        /** @return the logged line, or null if it was never repeated */
+        String getText() {
+            return text;
+        }
+    }
+}
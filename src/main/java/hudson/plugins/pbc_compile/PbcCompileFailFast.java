@@ -0,0 +1,159 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Proc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+/**
+ * Stops a PBC compile once it reported a given number of errors, or an
+ * error with a given code, instead of letting it run into cascading errors.
+ *
+ * Diagnostics arrive on the thread copying the process output, which must
+ * keep reading for the process to be killed cleanly; the kill is therefore
+ * done from {@link Timer}.
+ */
+final class PbcCompileFailFast implements PbcCompileDiagnosticListener {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileFailFast.class.getName());
+
+    /** Number of errors kept to explain the stop */
+    static final int MAX_KEPT = 10;
+
+    private final int maxErrors;
+    private final Set<String> codes;
+    private final List<PbcCompileDiagnostic> errors = new ArrayList<PbcCompileDiagnostic>();
+    private int count;
+
+    private Proc proc;
+    private PbcCompileDiagnostic trigger;
+    private boolean killed;
+
+    /**
+     * @param maxErrors
+     *            Number of errors that stops the compile, 0 for no limit
+     * @param codes
+     *            Error codes that stop the compile, such as C0001
+     */
+    PbcCompileFailFast(int maxErrors, Set<String> codes) {
+        this.maxErrors = maxErrors;
+        this.codes = new HashSet<String>(codes);
+    }
+
+    /**
+     * @return the codes of a whitespace or comma separated list, upper cased
+     */
+    static Set<String> parseCodes(String codes) {
+        Set<String> result = new HashSet<String>();
+        if (codes != null) {
+            for (String code : codes.split("[\\s,;]+")) {
+                if (code.length() > 0) {
+                    result.add(code.toUpperCase());
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void onDiagnostic(PbcCompileDiagnostic diagnostic) throws IOException {
+        if (diagnostic.getKind() != PbcCompileDiagnostic.Kind.ERROR || trigger != null) {
+            return;
+        }
+        count++;
+        if (errors.size() < MAX_KEPT) {
+            errors.add(diagnostic);
+        }
+        boolean code = diagnostic.getCode() != null && codes.contains(diagnostic.getCode().toUpperCase());
+        if (code || (maxErrors > 0 && count >= maxErrors)) {
+            trigger = diagnostic;
+            // The list ends with the trigger, even when it was full
+            if (errors.get(errors.size() - 1) != diagnostic) {
+                errors.set(errors.size() - 1, diagnostic);
+            }
+            kill();
+        }
+    }
+
+    /**
+     * Sets the process to stop, which may already have reported enough
+     * errors.
+     */
+    synchronized void setProc(Proc proc) {
+        this.proc = proc;
+        if (trigger != null) {
+            kill();
+        }
+    }
+
+    private void kill() {
+        if (proc == null || killed) {
+            return;
+        }
+        killed = true;
+        final Proc p = proc;
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    p.kill();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to stop the PBC compile", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /** @return true if the compile was stopped */
+    synchronized boolean isTriggered() {
+        return trigger != null;
+    }
+
+    /** @return the error that stopped the compile, or null */
+    synchronized PbcCompileDiagnostic getTrigger() {
+        return trigger;
+    }
+
+    /** @return the number of errors seen until the compile was stopped */
+    synchronized int getCount() {
+        return count;
+    }
+
+    /** @return the first errors, ending with the one that stopped the compile */
+    synchronized List<PbcCompileDiagnostic> getErrors() {
+        return Collections.unmodifiableList(new ArrayList<PbcCompileDiagnostic>(errors));
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOUtils;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Content hash of everything a PBC compile depends on: the target and
+ * library files named on the command line, the command line itself and the
+ * PBC installation.
+ */
+public final class PbcCompileFingerprint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String hash;
+    private final List<String> inputs;
+    private final List<String> outputs;
+
+    PbcCompileFingerprint(String hash, List<String> inputs, List<String> outputs) {
+        this.hash = hash;
+        this.inputs = Collections.unmodifiableList(inputs);
+        this.outputs = Collections.unmodifiableList(outputs);
+    }
+
+    /** @return hex encoded SHA-256 of all inputs */
+    public String getHash() {
+        return hash;
+    }
+
+    /** @return absolute paths of the hashed input files */
+    public List<String> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * @return absolute paths of the files the compile may produce: the /o
+     *         executable and the PBD/DLL of every library
+     */
+    public List<String> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Computes the fingerprint on the node holding the workspace. Input files
+     * are hashed in parallel.
+     */
+    static final class Inputs extends MasterToSlaveFileCallable<PbcCompileFingerprint> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> args;
+        private final String key;
+
+        /**
+         * @param args
+         *            The PBC command line
+         * @param key
+         *            Anything else the compile depends on, such as the PBC
+         *            installation home and executable name
+         */
+        Inputs(List<String> args, String key) {
+            this.args = new ArrayList<String>(args);
+            this.key = key;
+        }
+
+        @Override
+        public PbcCompileFingerprint invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            TreeSet<String> inputs = new TreeSet<String>();
+            TreeSet<String> outputs = new TreeSet<String>();
+            for (int i = 0; i < args.size(); i++) {
+                String arg = args.get(i);
+                String lower = arg.toLowerCase();
+                if (i > 0 && args.get(i - 1).equalsIgnoreCase("/o")) {
+                    outputs.add(PbcTargetFile.resolve(ws, arg).getAbsolutePath());
+                } else if (lower.endsWith(".pbt")) {
+                    File pbt = PbcTargetFile.resolve(ws, arg);
+                    inputs.add(pbt.getAbsolutePath());
+                    if (pbt.isFile()) {
+                        for (File library : PbcTargetFile.parse(pbt).resolveLibraries(pbt)) {
+                            inputs.add(library.getAbsolutePath());
+                            String base = library.getAbsolutePath().replaceFirst("\\.[^.\\\\/]*$", "");
+                            outputs.add(base + ".pbd");
+                            outputs.add(base + ".dll");
+                        }
+                    }
+                } else if (lower.endsWith(".pbl") || lower.endsWith(".pbr") || lower.endsWith(".pbw")) {
+                    inputs.add(PbcTargetFile.resolve(ws, arg).getAbsolutePath());
+                }
+            }
+
+            // Paths inside the workspace are hashed relative to it, so the
+            // same compile gets the same fingerprint on every node
+            Map<String, byte[]> digests = digestAll(inputs);
+            MessageDigest md = sha256();
+            md.update(key.getBytes(UTF_8));
+            for (String arg : args) {
+                md.update((byte) 0);
+                md.update(relativize(ws, arg).getBytes(UTF_8));
+            }
+            for (Map.Entry<String, byte[]> e : digests.entrySet()) {
+                md.update((byte) 0);
+                md.update(relativize(ws, e.getKey()).getBytes(UTF_8));
+                md.update((byte) 0);
+                md.update(e.getValue());
+            }
+            return new PbcCompileFingerprint(toHex(md.digest()), new ArrayList<String>(inputs),
+                    new ArrayList<String>(outputs));
+        }
+    }
+
+    /**
+     * Hashes the output files that exist on the node holding the workspace.
+     */
+    static final class Outputs extends MasterToSlaveFileCallable<TreeMap<String, String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> outputs;
+
+        Outputs(Collection<String> outputs) {
+            this.outputs = new ArrayList<String>(outputs);
+        }
+
+        @Override
+        public TreeMap<String, String> invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            List<String> existing = new ArrayList<String>();
+            for (String output : outputs) {
+                if (new File(output).isFile()) {
+                    existing.add(output);
+                }
+            }
+            TreeMap<String, String> result = new TreeMap<String, String>();
+            for (Map.Entry<String, byte[]> e : digestAll(existing).entrySet()) {
+                result.put(e.getKey(), toHex(e.getValue()));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return the path relative to the workspace with forward slashes, or the
+     *         path itself if it is outside the workspace
+     */
+    static String relativize(File ws, String path) {
+        String base = ws.getAbsolutePath();
+        if (path.length() > base.length() && path.startsWith(base)
+                && (path.charAt(base.length()) == '/' || path.charAt(base.length()) == '\\')) {
+            return path.substring(base.length() + 1).replace('\\', '/');
+        }
+        return path;
+    }
+
+    /**
+     * SHA-256 of every file, computed in parallel. Missing files hash to an
+     * empty digest so that their appearance changes the fingerprint.
+     */
+    static TreeMap<String, byte[]> digestAll(Collection<String> files) throws IOException, InterruptedException {
+        TreeMap<String, byte[]> result = new TreeMap<String, byte[]>();
+        if (files.isEmpty()) {
+            return result;
+        }
+        int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Map<String, Future<byte[]>> futures = new TreeMap<String, Future<byte[]>>();
+            for (final String file : files) {
+                futures.put(file, executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        File f = new File(file);
+                        return f.isFile() ? digest(f) : new byte[0];
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<byte[]>> e : futures.entrySet()) {
+                result.put(e.getKey(), e.getValue().get());
+            }
+            return result;
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to hash " + files, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Streams a file through SHA-256 */
+    static byte[] digest(File file) throws IOException {
+        MessageDigest md = sha256();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                md.update(buf, 0, n);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return md.digest();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
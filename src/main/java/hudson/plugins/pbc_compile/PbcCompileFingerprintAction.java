@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers the input fingerprint of a successful PBC compile, the hashes of
+ * the outputs it produced and the warnings and errors it reported, so that a
+ * later build with the same inputs can skip the compile and still report
+ * them.
+ */
+public class PbcCompileFingerprintAction extends InvisibleAction {
+    private final String fingerprint;
+    private final TreeMap<String, String> outputs;
+    private final int warnings;
+    private final int errors;
+
+    public PbcCompileFingerprintAction(String fingerprint, Map<String, String> outputs) {
+        this(fingerprint, outputs, 0, 0);
+    }
+
+    public PbcCompileFingerprintAction(String fingerprint, Map<String, String> outputs, int warnings, int errors) {
+        this.fingerprint = fingerprint;
+        this.outputs = new TreeMap<String, String>(outputs);
+        this.warnings = warnings;
+        this.errors = errors;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /** @return output path to hex encoded SHA-256 */
+    public Map<String, String> getOutputs() {
+        return Collections.unmodifiableMap(outputs);
+    }
+
+    /** @return the warnings of the compile, 0 for builds recorded before they were kept */
+    public int getWarnings() {
+        return warnings;
+    }
+
+    /** @return the errors of the compile, 0 for builds recorded before they were kept */
+    public int getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the action of the given build with the given fingerprint, or
+     *         null
+     */
+    static PbcCompileFingerprintAction find(Run<?, ?> run, String fingerprint) {
+        if (run == null) {
+            return null;
+        }
+        for (PbcCompileFingerprintAction action : run.getActions(PbcCompileFingerprintAction.class)) {
+            if (action.fingerprint.equals(fingerprint)) {
+                return action;
+            }
+        }
+        return null;
+    }
+}
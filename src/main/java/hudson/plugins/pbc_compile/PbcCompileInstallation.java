@@ -32,11 +32,15 @@ import hudson.model.TaskListener;
 import hudson.slaves.NodeSpecific;
 import hudson.tools.ToolDescriptor;
 import hudson.tools.ToolInstallation;
+import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 
 /**
  * @author Gregory Boissinot
@@ -48,6 +52,11 @@ public final class PbcCompileInstallation extends ToolInstallation implements No
 	 */
 	private static final long serialVersionUID = -9032399700618715657L;
 	private final String defaultArgs;
+	private int maxConcurrentCompiles;
+	private boolean limitPerInstallation;
+	private String outputCharset;
+	private boolean warmUp;
+	private boolean primeFileCache;
 
     @DataBoundConstructor
     public PbcCompileInstallation(String name, String home, String defaultArgs) {
@@ -57,18 +66,109 @@ public final class PbcCompileInstallation extends ToolInstallation implements No
 
     @Override
     public PbcCompileInstallation forNode(Node node, TaskListener log) throws IOException, InterruptedException {
-        return new PbcCompileInstallation(getName(), translateFor(node, log), getDefaultArgs());
+        return withHome(translateFor(node, log));
     }
 
     @Override
     public PbcCompileInstallation forEnvironment(EnvVars environment) {
-        return new PbcCompileInstallation(getName(), environment.expand(getHome()), getDefaultArgs());
+        return withHome(environment.expand(getHome()));
+    }
+
+    /**
+     * @return a copy of this installation with another home
+     */
+    PbcCompileInstallation withHome(String home) {
+        PbcCompileInstallation installation = new PbcCompileInstallation(getName(), home, getDefaultArgs());
+        installation.maxConcurrentCompiles = maxConcurrentCompiles;
+        installation.limitPerInstallation = limitPerInstallation;
+        installation.outputCharset = outputCharset;
+        installation.warmUp = warmUp;
+        installation.primeFileCache = primeFileCache;
+        return installation;
     }
 
     public String getDefaultArgs() {
         return this.defaultArgs;
     }
 
+    /**
+     * @return maximum number of PBC processes running at the same time on a
+     *         node, 0 for no limit
+     */
+    public int getMaxConcurrentCompiles() {
+        return maxConcurrentCompiles;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentCompiles(int maxConcurrentCompiles) {
+        this.maxConcurrentCompiles = Math.max(0, maxConcurrentCompiles);
+    }
+
+    /**
+     * @return true if {@link #getMaxConcurrentCompiles()} only counts the
+     *         compiles of this installation, false if it counts all PBC
+     *         compiles of the node
+     */
+    public boolean getLimitPerInstallation() {
+        return limitPerInstallation;
+    }
+
+    @DataBoundSetter
+    public void setLimitPerInstallation(boolean limitPerInstallation) {
+        this.limitPerInstallation = limitPerInstallation;
+    }
+
+    /**
+     * @return encoding of the output of the PBC utility when it is launched
+     *         directly, or null for the encoding of the build log
+     */
+    public String getOutputCharset() {
+        return outputCharset;
+    }
+
+    @DataBoundSetter
+    public void setOutputCharset(String outputCharset) {
+        this.outputCharset = Util.fixEmptyAndTrim(outputCharset);
+    }
+
+    /**
+     * @return true if the installation is resolved on every node as soon as
+     *         it connects, see {@link PbcCompileWarmUp}
+     */
+    public boolean getWarmUp() {
+        return warmUp;
+    }
+
+    @DataBoundSetter
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * @return true if the warm-up also reads the pbc utility and the DLLs next
+     *         to it, to have them in the file cache of the node
+     */
+    public boolean getPrimeFileCache() {
+        return primeFileCache;
+    }
+
+    @DataBoundSetter
+    public void setPrimeFileCache(boolean primeFileCache) {
+        this.primeFileCache = primeFileCache;
+    }
+
+    /**
+     * @return {@link #getOutputCharset()}, or the given encoding if there is
+     *         none or it isn't supported
+     */
+    Charset getOutputCharset(Charset defaultCharset) {
+        try {
+            return outputCharset != null ? Charset.forName(outputCharset) : defaultCharset;
+        } catch (IllegalArgumentException e) {
+            return defaultCharset;
+        }
+    }
+
     @Extension @Symbol("pbc-compile-2019")
     public static class DescriptorImpl extends ToolDescriptor<PbcCompileInstallation> {
 
@@ -87,6 +187,18 @@ public final class PbcCompileInstallation extends ToolInstallation implements No
             getDescriptor().setInstallations(installations);
         }
         
+        public FormValidation doCheckOutputCharset(@QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            boolean supported;
+            try {
+                supported = value == null || Charset.isSupported(value);
+            } catch (IllegalArgumentException e) {
+                supported = false;
+            }
+            return supported ? FormValidation.ok()
+                    : FormValidation.error(Messages.PbcCompileInstallation_UnsupportedCharset(value));
+        }
+
         private PbcCompileBuilder.DescriptorImpl getDescriptor() {
             Jenkins jenkins = Jenkins.getInstance();
             if (jenkins != null && jenkins.getDescriptorByType(PbcCompileBuilder.DescriptorImpl.class) != null) {
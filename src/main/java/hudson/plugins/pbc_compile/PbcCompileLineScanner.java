@@ -0,0 +1,441 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Byte level classifier for PBC console lines.
+ *
+ * Gives the same answers as {@link PbcCompileErrorNote#PATTERN},
+ * {@link PbcCompileWarningNote#PATTERN} and the Warning(s)/Error(s) summary
+ * patterns, but works directly on the raw line bytes. Plain lines are
+ * rejected by a keyword pre-filter without decoding or allocating anything.
+ * Lines in charsets that are not ASCII compatible are decoded and re-encoded
+ * as UTF-8 before being scanned.
+ *
+ * The offsets of the last match are kept in the scanner so callers can decode
+ * only the parts of the line they need. A scanner is not thread safe; use one
+ * per console stream.
+ */
+public final class PbcCompileLineScanner {
+    /** The line matches {@link PbcCompileErrorNote#PATTERN} */
+    public static final int ERROR = 1;
+    /** The line matches {@link PbcCompileWarningNote#PATTERN} */
+    public static final int WARNING = 1 << 1;
+    /** The line is the "n Warning(s)" summary */
+    public static final int SUMMARY_WARNINGS = 1 << 2;
+    /** The line is the "n Error(s)" summary */
+    public static final int SUMMARY_ERRORS = 1 << 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] RROR = { 'r', 'r', 'o', 'r' };
+    private static final byte[] ARNING = { 'a', 'r', 'n', 'i', 'n', 'g' };
+    private static final byte[] SUFFIX_S = { '(', 's', ')' };
+
+    private final boolean asciiCompatible;
+    private final Charset charset;
+
+    private byte[] buf;
+    private int len;
+
+    private int summaryCount;
+    private int firstBreak;
+    private int lastBreak;
+
+    private int errorStart = -1;
+    private int errorCodeStart;
+    private int errorCodeEnd;
+    private int errorMessageStart;
+
+    private int warningStart = -1;
+    private int warningLineStart;
+    private int warningLineEnd;
+    private int warningColumnStart;
+    private int warningColumnEnd;
+    private int warningCodeStart;
+    private int warningCodeEnd;
+    private int warningMessageStart;
+
+    public PbcCompileLineScanner(Charset charset) {
+        this.charset = charset;
+        this.asciiCompatible = isAsciiCompatible(charset);
+    }
+
+    /**
+     * Classifies a line. The trailing CR/LF is ignored.
+     *
+     * @return a combination of {@link #ERROR}, {@link #WARNING},
+     *         {@link #SUMMARY_WARNINGS} and {@link #SUMMARY_ERRORS}, or 0 for a
+     *         plain line
+     */
+    public int scan(byte[] b, int length) {
+        if (!asciiCompatible) {
+            byte[] utf8 = charset.decode(ByteBuffer.wrap(b, 0, length)).toString().getBytes(UTF_8);
+            return scanBytes(utf8, utf8.length);
+        }
+        return scanBytes(b, length);
+    }
+
+    private int scanBytes(byte[] b, int length) {
+        while (length > 0 && (b[length - 1] == '\n' || b[length - 1] == '\r')) {
+            length--;
+        }
+        buf = b;
+        len = length;
+        errorStart = -1;
+        warningStart = -1;
+
+        int result = 0;
+        int lastError = -1;
+        int lastWarning = -1;
+        int summary = 0;
+        // Any CR/LF left inside the line cannot be crossed by the (.*) groups
+        firstBreak = length;
+        lastBreak = -1;
+        for (int i = 0; i < length; i++) {
+            if (b[i] == '\n' || b[i] == '\r') {
+                if (firstBreak == length) {
+                    firstBreak = i;
+                }
+                lastBreak = i;
+            }
+        }
+
+        for (int i = 0; i < length; i++) {
+            byte c = b[i];
+            if (c == 'E' || c == 'e') {
+                if (regionMatches(b, i + 1, length, RROR)) {
+                    if (c == 'E' && summary == 0 && isSummary(b, i, i + 5, length)) {
+                        summary = SUMMARY_ERRORS;
+                    }
+                    if (matchError(b, i, length) && firstBreak >= i && lastBreak < errorMessageStart) {
+                        lastError = i;
+                    }
+                    i += RROR.length;
+                }
+            } else if (c == 'W' || c == 'w') {
+                if (regionMatches(b, i + 1, length, ARNING)) {
+                    // The summary pattern is lazy, so the first summary wins
+                    if (c == 'W' && summary != SUMMARY_WARNINGS && isSummary(b, i, i + 7, length)) {
+                        summary = SUMMARY_WARNINGS;
+                    }
+                    if (matchWarning(b, i, length) && firstBreak >= warningStart
+                            && lastBreak < warningMessageStart) {
+                        lastWarning = i;
+                    }
+                    i += ARNING.length;
+                }
+            }
+        }
+
+        // The greedy (.*) prefix of the patterns selects the last match
+        if (lastError >= 0) {
+            matchError(b, lastError, length);
+            result |= ERROR;
+        } else {
+            errorStart = -1;
+        }
+        if (lastWarning >= 0) {
+            matchWarning(b, lastWarning, length);
+            result |= WARNING;
+        } else {
+            warningStart = -1;
+        }
+        return result | summary;
+    }
+
+    /**
+     * Matches "\d+\s" + keyword + "(s)" with the keyword at [kw, kwEnd), and
+     * keeps the count.
+     */
+    private boolean isSummary(byte[] b, int kw, int kwEnd, int length) {
+        if (!regionMatches(b, kwEnd, length, SUFFIX_S) || kw < 2 || !isWhitespace(b[kw - 1])) {
+            return false;
+        }
+        int end = kw - 1;
+        int start = end;
+        while (start > 0 && isDigit(b[start - 1])) {
+            start--;
+        }
+        if (start == end || firstBreak < start || lastBreak >= kwEnd + SUFFIX_S.length) {
+            return false;
+        }
+        // Match the existing parser, which ignores counts it cannot parse
+        long count = 0;
+        for (int i = start; i < end && count <= Integer.MAX_VALUE; i++) {
+            count = count * 10 + (b[i] - '0');
+        }
+        if (count > Integer.MAX_VALUE) {
+            return false;
+        }
+        summaryCount = (int) count;
+        return true;
+    }
+
+    /**
+     * Matches [Ee]rror\s(([A-Z]*)\d+){0,1}:\s with the E at position i.
+     */
+    private boolean matchError(byte[] b, int i, int length) {
+        int p = i + 5;
+        if (p >= length || !isWhitespace(b[p])) {
+            return false;
+        }
+        p++;
+        int codeStart = p;
+        int codeEnd = matchCode(b, p, length);
+        if (codeEnd < 0) {
+            return false;
+        }
+        p = codeEnd;
+        if (p + 1 >= length || b[p] != ':' || !isWhitespace(b[p + 1])) {
+            return false;
+        }
+        errorStart = i;
+        errorCodeStart = codeStart;
+        errorCodeEnd = codeEnd;
+        errorMessageStart = p + 2;
+        return true;
+    }
+
+    /**
+     * Matches \(\d+(,\d+){0,1}\):\s[Ww]arning\s(([A-Z]*)\d+){0,1}:\s with the
+     * W at position i.
+     */
+    private boolean matchWarning(byte[] b, int i, int length) {
+        // Backwards over "(line,column): "
+        int p = i - 1;
+        if (p < 0 || !isWhitespace(b[p])) {
+            return false;
+        }
+        p--;
+        if (p < 0 || b[p] != ':') {
+            return false;
+        }
+        p--;
+        if (p < 0 || b[p] != ')') {
+            return false;
+        }
+        int end = p;
+        while (p > 0 && isDigit(b[p - 1])) {
+            p--;
+        }
+        if (p == end || p == 0) {
+            return false;
+        }
+        int lineStart = p;
+        int lineEnd = end;
+        int columnStart = -1;
+        int columnEnd = -1;
+        if (b[p - 1] == ',') {
+            columnStart = lineStart;
+            columnEnd = lineEnd;
+            end = p - 1;
+            p = end;
+            while (p > 0 && isDigit(b[p - 1])) {
+                p--;
+            }
+            if (p == end || p == 0) {
+                return false;
+            }
+            lineStart = p;
+            lineEnd = end;
+        }
+        if (b[p - 1] != '(') {
+            return false;
+        }
+        int objectEnd = p - 1;
+
+        // Forwards over "arning\s(code):\s"
+        p = i + 7;
+        if (p >= length || !isWhitespace(b[p])) {
+            return false;
+        }
+        p++;
+        int codeStart = p;
+        int codeEnd = matchCode(b, p, length);
+        if (codeEnd < 0) {
+            return false;
+        }
+        p = codeEnd;
+        if (p + 1 >= length || b[p] != ':' || !isWhitespace(b[p + 1])) {
+            return false;
+        }
+        warningStart = objectEnd;
+        warningLineStart = lineStart;
+        warningLineEnd = lineEnd;
+        warningColumnStart = columnStart;
+        warningColumnEnd = columnEnd;
+        warningCodeStart = codeStart;
+        warningCodeEnd = codeEnd;
+        warningMessageStart = p + 2;
+        return true;
+    }
+
+    /**
+     * Matches the optional ([A-Z]*)\d+ group starting at p.
+     *
+     * @return the end of the code, p if the group is absent, or -1 if no
+     *         colon can follow
+     */
+    private static int matchCode(byte[] b, int p, int length) {
+        int q = p;
+        while (q < length && b[q] >= 'A' && b[q] <= 'Z') {
+            q++;
+        }
+        int digits = q;
+        while (q < length && isDigit(b[q])) {
+            q++;
+        }
+        if (q > digits) {
+            return q;
+        }
+        // Group absent: the colon has to follow immediately
+        return (p < length && b[p] == ':') ? p : -1;
+    }
+
+    private static boolean regionMatches(byte[] b, int offset, int length, byte[] keyword) {
+        if (offset + keyword.length > length) {
+            return false;
+        }
+        for (int k = 0; k < keyword.length; k++) {
+            if (b[offset + k] != keyword[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /** Same set as the regex \s */
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    /**
+     * @return true if every ASCII character is encoded as the same single
+     *         byte and no multi-byte sequence can contain an ASCII byte
+     */
+    static boolean isAsciiCompatible(Charset charset) {
+        if (charset.name().equalsIgnoreCase("UTF-8")) {
+            return true;
+        }
+        if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1.0f) {
+            return false;
+        }
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        String decoded = new String(ascii, charset);
+        if (decoded.length() != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length; i++) {
+            if (decoded.charAt(i) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the bytes scanned last; differs from the input for charsets
+     *         that are not ASCII compatible, in which case it is UTF-8
+     */
+    byte[] getBuffer() {
+        return buf;
+    }
+
+    /** @return the charset of {@link #getBuffer()} */
+    Charset getBufferCharset() {
+        return asciiCompatible ? charset : UTF_8;
+    }
+
+    /** @return the length of the scanned line, without CR/LF */
+    int getLength() {
+        return len;
+    }
+
+    /** @return the count of the last summary line */
+    public int getSummaryCount() {
+        return summaryCount;
+    }
+
+    /** @return offset of the error keyword, or -1 */
+    int getErrorStart() {
+        return errorStart;
+    }
+
+    int getErrorCodeStart() {
+        return errorCodeStart;
+    }
+
+    int getErrorCodeEnd() {
+        return errorCodeEnd;
+    }
+
+    int getErrorMessageStart() {
+        return errorMessageStart;
+    }
+
+    /** @return offset of the opening parenthesis after the object name, or -1 */
+    int getWarningStart() {
+        return warningStart;
+    }
+
+    int getWarningLineStart() {
+        return warningLineStart;
+    }
+
+    int getWarningLineEnd() {
+        return warningLineEnd;
+    }
+
+    /** @return offset of the column number, or -1 if there is none */
+    int getWarningColumnStart() {
+        return warningColumnStart;
+    }
+
+    int getWarningColumnEnd() {
+        return warningColumnEnd;
+    }
+
+    int getWarningCodeStart() {
+        return warningCodeStart;
+    }
+
+    int getWarningCodeEnd() {
+        return warningCodeEnd;
+    }
+
+    int getWarningMessageStart() {
+        return warningMessageStart;
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOUtils;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content addressed cache of PBC outputs, shared by all nodes that can reach
+ * the cache directory.
+ *
+ * Entries are keyed by the {@link PbcCompileFingerprint} of the compile and
+ * live in {@code <cache>/<2 hex>/<hash>/}, holding a manifest of
+ * {@code sha256 size path} lines, a {@code result} file with the warning and
+ * error counts of the compile and the files themselves. Entries are
+ * written to a temporary directory and renamed into place, so readers never
+ * see a partial entry. Every restore verifies the files against the manifest
+ * and touches it, which is what the least recently used eviction goes by.
+ * The {@code index} file lists the entries with their sizes, so that eviction
+ * doesn't read every manifest; it is only changed under a file lock.
+ */
+public final class PbcCompileOutputCache {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileOutputCache.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final String MANIFEST = "manifest";
+    static final String FILES = "files";
+    static final String TMP = "tmp";
+    static final String INDEX = "index";
+    static final String RESULT = "result";
+
+    private PbcCompileOutputCache() {
+    }
+
+    static File entryDir(File cache, String hash) {
+        return new File(new File(cache, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Copies the outputs of a cached compile into the workspace.
+     * Returns {files, warnings, errors} of the cached compile, or null on a
+     * cache miss.
+     */
+    static final class Restore extends MasterToSlaveFileCallable<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final String cache;
+        private final String hash;
+
+        Restore(String cache, String hash) {
+            this.cache = cache;
+            this.hash = hash;
+        }
+
+        @Override
+        public int[] invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File entry = entryDir(new File(cache), hash);
+            File manifest = new File(entry, MANIFEST);
+            if (!manifest.isFile()) {
+                return null;
+            }
+            List<String[]> lines;
+            try {
+                lines = readManifest(manifest);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Discarding corrupt cache entry " + entry, e);
+                discard(new File(cache), entry);
+                return null;
+            }
+            // Every file is copied and verified before any output is replaced
+            List<File> copies = new ArrayList<File>();
+            try {
+                for (String[] line : lines) {
+                    File source = new File(new File(entry, FILES), line[2]);
+                    File target = new File(ws, line[2]);
+                    File tmp = new File(target.getPath() + ".pbc-cache-tmp");
+                    if (!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs()) {
+                        throw new IOException("Failed to create " + target.getParentFile());
+                    }
+                    copies.add(tmp);
+                    String actual;
+                    try {
+                        actual = copy(source, tmp);
+                    } catch (IOException e) {
+                        // The entry is being evicted or is damaged
+                        LOGGER.log(Level.FINE, "Failed to read cache entry " + entry, e);
+                        return null;
+                    }
+                    if (!actual.equals(line[0])) {
+                        LOGGER.log(Level.WARNING, "Discarding corrupt cache entry {0}", entry);
+                        discard(new File(cache), entry);
+                        return null;
+                    }
+                }
+                for (int i = 0; i < lines.size(); i++) {
+                    File target = new File(ws, lines.get(i)[2]);
+                    Util.deleteFile(target);
+                    if (!copies.get(i).renameTo(target)) {
+                        throw new IOException("Failed to rename " + copies.get(i) + " to " + target);
+                    }
+                }
+                copies.clear();
+            } finally {
+                for (File tmp : copies) {
+                    if (tmp.exists()) {
+                        Util.deleteFile(tmp);
+                    }
+                }
+            }
+            if (!manifest.setLastModified(System.currentTimeMillis())) {
+                LOGGER.log(Level.FINE, "Failed to touch {0}", manifest);
+            }
+            int[] counts = readResult(new File(entry, RESULT));
+            return new int[] {lines.size(), counts[0], counts[1]};
+        }
+    }
+
+    /**
+     * Stores the outputs of a successful compile, then evicts the least
+     * recently used entries until the cache fits in its size limit.
+     */
+    static final class Publish extends MasterToSlaveFileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String cache;
+        private final String hash;
+        private final List<String> outputs;
+        private final int warnings;
+        private final int errors;
+        private final long maxBytes;
+
+        /**
+         * @param outputs
+         *            Output files; only those inside the workspace are cached
+         * @param warnings
+         *            Warnings of the compile, reported again on a restore
+         * @param errors
+         *            Errors of the compile, reported again on a restore
+         * @param maxBytes
+         *            Size limit of the whole cache, or 0 for no limit
+         */
+        Publish(String cache, String hash, Collection<String> outputs, int warnings, int errors, long maxBytes) {
+            this.cache = cache;
+            this.hash = hash;
+            this.outputs = new ArrayList<String>(outputs);
+            this.warnings = warnings;
+            this.errors = errors;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public Boolean invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File root = new File(cache);
+            File entry = entryDir(root, hash);
+            if (entry.isDirectory()) {
+                return false;
+            }
+            File tmp = new File(new File(root, TMP), hash + "-" + UUID.randomUUID());
+            if (!new File(tmp, FILES).mkdirs()) {
+                throw new IOException("Failed to create " + tmp);
+            }
+            try {
+                StringBuilder manifest = new StringBuilder();
+                long size = 0;
+                for (String output : outputs) {
+                    File file = new File(output);
+                    String relative = PbcCompileFingerprint.relativize(ws, file.getAbsolutePath());
+                    if (!file.isFile() || relative.equals(file.getAbsolutePath())) {
+                        continue;
+                    }
+                    File target = new File(new File(tmp, FILES), relative);
+                    if (!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs()) {
+                        throw new IOException("Failed to create " + target.getParentFile());
+                    }
+                    String sha = copy(file, target);
+                    size += target.length();
+                    manifest.append(sha).append(' ').append(target.length()).append(' ').append(relative)
+                            .append('\n');
+                }
+                if (manifest.length() == 0) {
+                    return false;
+                }
+                Writer w = new OutputStreamWriter(new FileOutputStream(new File(tmp, RESULT)), UTF_8);
+                try {
+                    w.write(warnings + " " + errors + "\n");
+                } finally {
+                    w.close();
+                }
+                // The manifest is written last; an entry without one is incomplete
+                w = new OutputStreamWriter(new FileOutputStream(new File(tmp, MANIFEST)), UTF_8);
+                try {
+                    w.write(manifest.toString());
+                } finally {
+                    w.close();
+                }
+                if (!entry.getParentFile().isDirectory() && !entry.getParentFile().mkdirs()) {
+                    throw new IOException("Failed to create " + entry.getParentFile());
+                }
+                if (!tmp.renameTo(entry)) {
+                    // Another node published the same entry first
+                    return false;
+                }
+                index(root, hash, size);
+                return true;
+            } finally {
+                if (tmp.exists()) {
+                    Util.deleteRecursive(tmp);
+                }
+                if (maxBytes > 0) {
+                    evict(root, maxBytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a published entry to the index.
+     */
+    static void index(File root, String hash, long size) throws IOException {
+        synchronized (PbcCompileOutputCache.class) {
+            RandomAccessFile index = new RandomAccessFile(new File(root, INDEX), "rw");
+            try {
+                FileLock lock = index.getChannel().lock();
+                try {
+                    if (index.length() == 0) {
+                        // First index of a cache: every entry, this one included
+                        writeIndex(index, scan(root));
+                    } else {
+                        index.seek(index.length());
+                        index.write((hash + ' ' + size + '\n').getBytes(UTF_8));
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the total size of the
+     * cache is at most maxBytes. Only the timestamps of the manifests are
+     * read, the sizes come from the index.
+     */
+    static void evict(File root, long maxBytes) throws IOException {
+        synchronized (PbcCompileOutputCache.class) {
+            RandomAccessFile index = new RandomAccessFile(new File(root, INDEX), "rw");
+            try {
+                FileLock lock = index.getChannel().lock();
+                try {
+                    evict(root, maxBytes, index);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    private static void evict(File root, long maxBytes, RandomAccessFile index) throws IOException {
+        Map<String, Long> sizes = index.length() == 0 ? scan(root) : readIndex(index);
+        boolean changed = index.length() == 0;
+        final Map<String, Long> used = new HashMap<String, Long>();
+        long total = 0;
+        for (Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Long> e = it.next();
+            long modified = new File(entryDir(root, e.getKey()), MANIFEST).lastModified();
+            if (modified == 0) {
+                // Discarded as corrupt, or by another node
+                it.remove();
+                changed = true;
+                continue;
+            }
+            used.put(e.getKey(), modified);
+            total += e.getValue();
+        }
+        if (total > maxBytes) {
+            String[] byAge = used.keySet().toArray(new String[used.size()]);
+            Arrays.sort(byAge, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return Long.compare(used.get(a), used.get(b));
+                }
+            });
+            for (String hash : byAge) {
+                if (total <= maxBytes) {
+                    break;
+                }
+                discard(root, entryDir(root, hash));
+                total -= sizes.remove(hash);
+                changed = true;
+            }
+        }
+        if (changed) {
+            writeIndex(index, sizes);
+        }
+    }
+
+    /** @return the size of every entry, from their manifests */
+    private static Map<String, Long> scan(File root) {
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        File[] prefixes = root.listFiles();
+        if (prefixes == null) {
+            return sizes;
+        }
+        for (File prefix : prefixes) {
+            if (prefix.getName().equals(TMP) || !prefix.isDirectory()) {
+                continue;
+            }
+            File[] children = prefix.listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File entry : children) {
+                File manifest = new File(entry, MANIFEST);
+                if (!manifest.isFile()) {
+                    continue;
+                }
+                long size = 0;
+                try {
+                    for (String[] line : readManifest(manifest)) {
+                        size += Long.parseLong(line[1]);
+                    }
+                } catch (IOException e) {
+                    continue;
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                sizes.put(entry.getName(), size);
+            }
+        }
+        return sizes;
+    }
+
+    private static Map<String, Long> readIndex(RandomAccessFile index) throws IOException {
+        byte[] bytes = new byte[(int) index.length()];
+        index.seek(0);
+        index.readFully(bytes);
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        for (String line : new String(bytes, UTF_8).split("\n")) {
+            int space = line.indexOf(' ');
+            if (space > 0) {
+                try {
+                    sizes.put(line.substring(0, space), Long.parseLong(line.substring(space + 1).trim()));
+                } catch (NumberFormatException e) {
+                    // A line cut short by a crash
+                }
+            }
+        }
+        return sizes;
+    }
+
+    private static void writeIndex(RandomAccessFile index, Map<String, Long> sizes) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : sizes.entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(UTF_8);
+        index.seek(0);
+        index.write(bytes);
+        index.setLength(bytes.length);
+    }
+
+    /**
+     * Renames an entry out of the way before deleting it, so that it
+     * disappears atomically for other nodes.
+     */
+    private static void discard(File root, File entry) throws IOException {
+        File trash = new File(new File(root, TMP), entry.getName() + "-deleted-" + UUID.randomUUID());
+        if (!trash.getParentFile().isDirectory() && !trash.getParentFile().mkdirs()) {
+            throw new IOException("Failed to create " + trash.getParentFile());
+        }
+        if (entry.renameTo(trash)) {
+            Util.deleteRecursive(trash);
+        }
+    }
+
+    /**
+     * @return {warnings, errors} of a cache entry; {0, 0} for entries
+     *         published before the counts were kept
+     */
+    static int[] readResult(File result) throws IOException {
+        if (!result.isFile()) {
+            return new int[2];
+        }
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(result), UTF_8));
+        try {
+            String line = r.readLine();
+            String[] parts = line == null ? new String[0] : line.split(" ");
+            if (parts.length == 2) {
+                try {
+                    return new int[] {Math.max(0, Integer.parseInt(parts[0])),
+                            Math.max(0, Integer.parseInt(parts[1]))};
+                } catch (NumberFormatException e) {
+                    // fall through
+                }
+            }
+            LOGGER.log(Level.WARNING, "Ignoring malformed {0}", result);
+            return new int[2];
+        } finally {
+            r.close();
+        }
+    }
+
+    /** @return manifest lines as {sha256, size, path} */
+    static List<String[]> readManifest(File manifest) throws IOException {
+        List<String[]> lines = new ArrayList<String[]>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), UTF_8));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length != 3) {
+                    throw new IOException("Malformed manifest " + manifest);
+                }
+                if (!isRelative(parts[2])) {
+                    throw new IOException("Path outside of the workspace in " + manifest + ": " + parts[2]);
+                }
+                lines.add(parts);
+            }
+        } finally {
+            r.close();
+        }
+        return lines;
+    }
+
+    /**
+     * @return true if a manifest path stays inside the directory it is
+     *         relative to: not absolute, no drive and no .. segment
+     */
+    static boolean isRelative(String path) {
+        if (path.length() == 0 || path.startsWith("/") || path.startsWith("\\") || path.indexOf(':') >= 0
+                || new File(path).isAbsolute()) {
+            return false;
+        }
+        for (String segment : path.split("[/\\\\]")) {
+            if (segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Copies a file and returns the hex encoded SHA-256 of what was copied */
+    static String copy(File from, File to) throws IOException {
+        MessageDigest md = PbcCompileFingerprint.sha256();
+        InputStream in = new DigestInputStream(new FileInputStream(from), md);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!to.setLastModified(from.lastModified())) {
+            LOGGER.log(Level.FINE, "Failed to set the timestamp of {0}", to);
+        }
+        return PbcCompileFingerprint.toHex(md.digest());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Transcodes the output of a PBC process launched without cmd.exe, which
+ * doesn't get the code page of the build log from chcp. The encoding is taken
+ * from a byte order mark at the start of the output, or else is the one
+ * given. Output already in the encoding of the log passes through untouched.
+ */
+class PbcCompileOutputDecoder extends OutputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final Charset source;
+    private final Charset target;
+    /** Start of the output, kept until the byte order mark is known */
+    private final byte[] head = new byte[3];
+    private int headLength;
+    private boolean detected;
+    /** Null when passing through */
+    private CharsetDecoder decoder;
+    private CharsetEncoder encoder;
+    private ByteBuffer in;
+    private CharBuffer chars;
+    private ByteBuffer bytes;
+    private Charset detectedCharset;
+
+    /**
+     * @param source
+     *            Encoding of the output when it has no byte order mark
+     * @param target
+     *            Encoding of the build log
+     */
+    PbcCompileOutputDecoder(OutputStream out, Charset source, Charset target) {
+        this.out = out;
+        this.source = source;
+        this.target = target;
+    }
+
+    /**
+     * @return the encoding the output was decoded with, once known
+     */
+    Charset getCharset() {
+        return detectedCharset;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!detected) {
+            while (len > 0 && headLength < head.length && !bomDecided()) {
+                head[headLength++] = b[off++];
+                len--;
+            }
+            if (!bomDecided()) {
+                return;
+            }
+            detect();
+        }
+        if (len > 0) {
+            process(b, off, len, false);
+        }
+    }
+
+    /**
+     * Writes what remains once the output ended. The underlying stream is
+     * left open.
+     */
+    void finish() throws IOException {
+        if (!detected) {
+            detect();
+        }
+        if (decoder != null) {
+            process(new byte[0], 0, 0, true);
+        }
+    }
+
+    /** @return true if the head holds enough to tell whether there is a byte order mark */
+    private boolean bomDecided() {
+        if (headLength == 0) {
+            return false;
+        }
+        int b0 = head[0] & 0xFF;
+        if (b0 == 0xFF || b0 == 0xFE) {
+            return headLength >= 2;
+        }
+        if (b0 == 0xEF) {
+            return headLength >= 3 || headLength == 2 && (head[1] & 0xFF) != 0xBB;
+        }
+        return true;
+    }
+
+    private void detect() throws IOException {
+        detected = true;
+        int b0 = headLength > 0 ? head[0] & 0xFF : -1;
+        int b1 = headLength > 1 ? head[1] & 0xFF : -1;
+        int b2 = headLength > 2 ? head[2] & 0xFF : -1;
+        int skip = 0;
+        Charset charset = source;
+        if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+            charset = Charset.forName("UTF-8");
+            skip = 3;
+        } else if (b0 == 0xFF && b1 == 0xFE) {
+            charset = Charset.forName("UTF-16LE");
+            skip = 2;
+        } else if (b0 == 0xFE && b1 == 0xFF) {
+            charset = Charset.forName("UTF-16BE");
+            skip = 2;
+        }
+        detectedCharset = charset;
+        if (!charset.equals(target)) {
+            decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoder = target.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            in = ByteBuffer.allocate(BUFFER_SIZE);
+            chars = CharBuffer.allocate(BUFFER_SIZE);
+            bytes = ByteBuffer.allocate((int) Math.ceil(BUFFER_SIZE * encoder.maxBytesPerChar()));
+        }
+        if (headLength > skip) {
+            process(head, skip, headLength - skip, false);
+        }
+    }
+
+    private void process(byte[] b, int off, int len, boolean endOfInput) throws IOException {
+        if (decoder == null) {
+            out.write(b, off, len);
+            return;
+        }
+        do {
+            int n = Math.min(len, in.remaining());
+            in.put(b, off, n);
+            off += n;
+            len -= n;
+            in.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(in, chars, endOfInput && len == 0);
+                encode(false);
+            } while (result.isOverflow());
+            in.compact();
+        } while (len > 0);
+        if (endOfInput) {
+            while (decoder.flush(chars).isOverflow()) {
+                encode(false);
+            }
+            encode(true);
+        }
+    }
+
+    /** Encodes the decoded characters into the log */
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, bytes, endOfInput);
+            drain();
+        } while (result.isOverflow());
+        if (endOfInput) {
+            while (encoder.flush(bytes).isOverflow()) {
+                drain();
+            }
+            drain();
+        }
+        chars.compact();
+    }
+
+    private void drain() throws IOException {
+        if (bytes.position() > 0) {
+            out.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.util.IOUtils;
+import jenkins.model.RunAction2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Outputs of one PBC build step, archived in the {@link PbcCompileBlobStore}.
+ * The build keeps a manifest of {@code sha256 size path} lines; the files
+ * themselves are shared with every other build that produced them.
+ */
+@ExportedBean
+public class PbcCompileOutputsAction implements RunAction2 {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileOutputsAction.class.getName());
+
+    private final String fileName;
+    private final int index;
+    private final int count;
+    private final long size;
+
+    private transient Run<?, ?> run;
+    /** Bytes uploaded by {@link #save}, not persisted */
+    private transient long uploaded;
+
+    /**
+     * @param fileName
+     *            Manifest, relative to the build directory
+     * @param index
+     *            Position of the build step among the PBC steps of the build,
+     *            starting at 1
+     */
+    public PbcCompileOutputsAction(String fileName, int index, int count, long size) {
+        this.fileName = fileName;
+        this.index = index;
+        this.count = count;
+        this.size = size;
+    }
+
+    /**
+     * Stores the outputs found in the workspace, writes their manifest next
+     * to the build and creates the matching action.
+     *
+     * @param outputs
+     *            {sha256, size} by path, see {@link PbcCompileBlobStore.Hash}
+     * @return the action, and the number of bytes uploaded in
+     *         {@link #getUploaded()}
+     */
+    static PbcCompileOutputsAction save(Run<?, ?> run, FilePath workspace, Map<String, String[]> outputs)
+            throws IOException, InterruptedException {
+        // Numbers the manifest, the references and the URL of the step at once
+        int index = PbcCompileRunFiles.allocate(run, "pbc-outputs-", ".txt");
+        String fileName = "pbc-outputs-" + index + ".txt";
+        File manifest = new File(run.getRootDir(), fileName);
+        File root = PbcCompileBlobStore.root();
+        Set<String> hashes = new TreeSet<String>();
+        List<String> lines = new ArrayList<String>();
+        long size = 0;
+        long uploaded = 0;
+        try {
+            for (Map.Entry<String, String[]> e : outputs.entrySet()) {
+                String hash = e.getValue()[0];
+                lines.add(hash + " " + e.getValue()[1] + " " + e.getKey());
+                size += Long.parseLong(e.getValue()[1]);
+                // One reference per build step, whatever the number of copies
+                if (!hashes.contains(hash)) {
+                    uploaded += PbcCompileBlobStore.acquire(root, hash, workspace.child(e.getKey()));
+                    hashes.add(hash);
+                }
+            }
+            PbcCompileBlobStore.register(root, run, index, hashes);
+        } catch (IOException e) {
+            abort(root, hashes, manifest);
+            throw e;
+        } catch (InterruptedException e) {
+            abort(root, hashes, manifest);
+            throw e;
+        }
+        PbcCompileBlobStore.write(manifest, lines);
+        PbcCompileOutputsAction action = new PbcCompileOutputsAction(fileName, index, outputs.size(), size);
+        action.uploaded = uploaded;
+        return action;
+    }
+
+    private static void abort(File root, Set<String> hashes, File manifest) throws IOException {
+        PbcCompileBlobStore.release(root, hashes);
+        if (!manifest.delete()) {
+            LOGGER.log(Level.WARNING, "Failed to delete {0}", manifest);
+        }
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    long getUploaded() {
+        return uploaded;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return run != null && run.hasPermission(Run.ARTIFACTS) ? "package.png" : null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return index == 1 ? Messages.PbcCompileOutputsAction_DisplayName()
+                : Messages.PbcCompileOutputsAction_DisplayNameIndexed(index);
+    }
+
+    @Override
+    public String getUrlName() {
+        return index == 1 ? "pbcOutputs" : "pbcOutputs" + index;
+    }
+
+    /** @return number of files archived */
+    @Exported
+    public int getCount() {
+        return count;
+    }
+
+    /** @return total size of the files archived, in bytes */
+    @Exported
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the archived files, read from the manifest
+     */
+    @Exported
+    public List<Output> getOutputs() {
+        List<Output> outputs = new ArrayList<Output>();
+        File file = new File(run.getRootDir(), fileName);
+        try {
+            for (String line : PbcCompileBlobStore.readLines(file)) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length == 3) {
+                    outputs.add(new Output(parts[2], parts[0], Long.parseLong(parts[1])));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+        }
+        return Collections.unmodifiableList(outputs);
+    }
+
+    /**
+     * Downloads one of the archived files.
+     */
+    public void doFile(StaplerRequest req, StaplerResponse rsp, @QueryParameter String path) throws IOException {
+        run.checkPermission(Run.ARTIFACTS);
+        for (Output output : getOutputs()) {
+            if (output.getPath().equals(path)) {
+                File blob = PbcCompileBlobStore.blob(PbcCompileBlobStore.root(), output.getHash());
+                if (!blob.isFile()) {
+                    break;
+                }
+                rsp.setContentType("application/octet-stream");
+                rsp.setHeader("Content-Disposition",
+                        "attachment; filename=\"" + path.substring(path.lastIndexOf('/') + 1) + "\"");
+                rsp.setHeader("Content-Length", String.valueOf(blob.length()));
+                InputStream in = new FileInputStream(blob);
+                try {
+                    IOUtils.copy(in, rsp.getOutputStream());
+                } finally {
+                    in.close();
+                }
+                return;
+            }
+        }
+        rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    /**
+     * One archived file.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Output {
+        private final String path;
+        private final String hash;
+        private final long size;
+
+        Output(String path, String hash, long size) {
+            this.path = path;
+            this.hash = hash;
+            this.size = size;
+        }
+
+        /** @return path relative to the workspace, with / separators */
+        @Exported
+        public String getPath() {
+            return path;
+        }
+
+        /** @return SHA-256 of the file, hex encoded */
+        @Exported
+        public String getHash() {
+            return hash;
+        }
+
+        @Exported
+        public long getSize() {
+            return size;
+        }
+
+        /** @return download link, relative to the page of the action */
+        public String getUrl() throws UnsupportedEncodingException {
+            return "file?path=" + URLEncoder.encode(path, "UTF-8");
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks on the node, in one round trip, everything a PBC compile needs
+ * before it is launched: the pbc utility, the working directory and the
+ * target and library files named on the command lines.
+ */
+final class PbcCompilePreflight extends MasterToSlaveFileCallable<PbcCompilePreflight.Result> {
+    private static final long serialVersionUID = 1L;
+
+    /** Signature of the VS_FIXEDFILEINFO structure of a version resource */
+    private static final int FIXED_FILE_INFO_SIGNATURE = 0xFEEF04BD;
+    /** Version resources are small; larger resource sections are not scanned past this */
+    private static final int MAX_RESOURCE_SCAN = 16 * 1024 * 1024;
+
+    private final String home;
+    private final String execName;
+    private final List<String[]> targets;
+
+    /**
+     * @param home
+     *            Installation home, or the pbc utility itself, as seen from
+     *            the node; null to skip the checks of the pbc utility
+     * @param execName
+     *            The PBC utility file name, used when the home is a directory
+     * @param targets
+     *            The command line arguments of every target
+     */
+    PbcCompilePreflight(String home, String execName, List<String[]> targets) {
+        this.home = home;
+        this.execName = execName;
+        this.targets = new ArrayList<String[]>(targets);
+    }
+
+    @Override
+    public Result invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+        Result result = new Result();
+
+        if (home != null) {
+            String path = home;
+            if (new File(path).isDirectory()) {
+                if (!path.endsWith("\\")) {
+                    path = path + "\\";
+                }
+                path = path + execName;
+            }
+            File exec = new File(path);
+            if (exec.exists()) {
+                result.tool = new Tool(path, exec.isFile() ? readFileVersion(exec) : null);
+            } else {
+                result.problems.add(path + " doesn't exist");
+            }
+        }
+
+        if (!targets.isEmpty() && !ws.isDirectory()) {
+            result.problems.add("Working directory " + ws + " doesn't exist");
+            return result;
+        }
+        for (String[] args : targets) {
+            for (String arg : args) {
+                if (!arg.toLowerCase().endsWith(".pbt")) {
+                    continue;
+                }
+                File pbt = PbcTargetFile.resolve(ws, arg);
+                if (!pbt.isFile()) {
+                    result.problems.add("Target file " + pbt + " doesn't exist");
+                    continue;
+                }
+                for (File library : PbcTargetFile.parse(pbt).resolveLibraries(pbt)) {
+                    if (!library.isFile()) {
+                        result.problems.add("Library " + library + " of " + pbt.getName() + " doesn't exist");
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the file version from the version resource of a Windows
+     * executable, such as 19.2.0.2728 for pbc190.exe.
+     *
+     * @return the version, or null if the file has none
+     */
+    static String readFileVersion(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < 0x40 || readUnsignedShort(raf, 0) != 0x5A4D) { // MZ
+                return null;
+            }
+            long pe = readInt(raf, 0x3C) & 0xFFFFFFFFL;
+            if (pe + 24 > raf.length() || readInt(raf, pe) != 0x00004550) { // PE\0\0
+                return null;
+            }
+            int sections = readUnsignedShort(raf, pe + 6);
+            int optionalHeaderSize = readUnsignedShort(raf, pe + 20);
+            long table = pe + 24 + optionalHeaderSize;
+            byte[] name = new byte[8];
+            for (int i = 0; i < sections; i++) {
+                long section = table + 40L * i;
+                if (section + 40 > raf.length()) {
+                    return null;
+                }
+                raf.seek(section);
+                raf.readFully(name);
+                if (new String(name, "US-ASCII").startsWith(".rsrc")) {
+                    long size = readInt(raf, section + 16) & 0xFFFFFFFFL;
+                    long offset = readInt(raf, section + 20) & 0xFFFFFFFFL;
+                    return findFixedFileInfo(raf, offset,
+                            Math.min(Math.min(size, raf.length() - offset), MAX_RESOURCE_SCAN));
+                }
+            }
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Scans a resource section for the VS_FIXEDFILEINFO signature, which is DWORD aligned */
+    private static String findFixedFileInfo(RandomAccessFile raf, long offset, long size) throws IOException {
+        if (size <= 0) {
+            return null;
+        }
+        byte[] b = new byte[(int) size];
+        raf.seek(offset);
+        raf.readFully(b);
+        for (int i = 0; i + 16 <= b.length; i += 4) {
+            if (littleEndian(b, i) == FIXED_FILE_INFO_SIGNATURE) {
+                int ms = littleEndian(b, i + 8);
+                int ls = littleEndian(b, i + 12);
+                return (ms >>> 16) + "." + (ms & 0xFFFF) + "." + (ls >>> 16) + "." + (ls & 0xFFFF);
+            }
+        }
+        return null;
+    }
+
+    private static int littleEndian(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    private static int readInt(RandomAccessFile raf, long position) throws IOException {
+        raf.seek(position);
+        return Integer.reverseBytes(raf.readInt());
+    }
+
+    private static int readUnsignedShort(RandomAccessFile raf, long position) throws IOException {
+        raf.seek(position);
+        return Short.reverseBytes(raf.readShort()) & 0xFFFF;
+    }
+
+    /**
+     * The pbc utility as found on the node.
+     */
+    static final class Tool implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final String version;
+
+        Tool(String path, String version) {
+            this.path = path;
+            this.version = version;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        /** @return the file version of the pbc utility, or null if unknown */
+        String getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Outcome of the checks.
+     */
+    static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private Tool tool;
+        private final List<String> problems = new ArrayList<String>();
+
+        /** @return the pbc utility, or null if it wasn't checked or doesn't exist */
+        Tool getTool() {
+            return tool;
+        }
+
+        /** @return why the compile can't run, empty if it can */
+        List<String> getProblems() {
+            return Collections.unmodifiableList(problems);
+        }
+    }
+}
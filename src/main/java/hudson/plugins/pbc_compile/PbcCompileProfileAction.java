@@ -0,0 +1,160 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Compile time per object and per library of one PBC build step. The
+ * slowest objects and the libraries are kept in build.xml for the build
+ * page; the full profile is read from its file when its page is viewed.
+ */
+@ExportedBean
+public class PbcCompileProfileAction implements RunAction2 {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileProfileAction.class.getName());
+
+    /** Number of objects shown on the build page */
+    static final int SLOWEST = 10;
+    /** Number of libraries kept in build.xml */
+    static final int LIBRARIES = 50;
+
+    private final String fileName;
+    private final int index;
+    private final int size;
+    private final List<PbcCompileProfiler.Entry> slowest;
+    private final List<PbcCompileProfiler.Entry> libraries;
+
+    private transient Run<?, ?> run;
+    private transient Reference<List<PbcCompileProfiler.Entry>> entries;
+
+    /**
+     * @param fileName
+     *            Profile file, relative to the build directory
+     * @param index
+     *            Position of the build step among the PBC steps of the build,
+     *            starting at 1
+     */
+    public PbcCompileProfileAction(String fileName, int index, int size, List<PbcCompileProfiler.Entry> slowest,
+            List<PbcCompileProfiler.Entry> libraries) {
+        this.fileName = fileName;
+        this.index = index;
+        this.size = size;
+        this.slowest = new ArrayList<PbcCompileProfiler.Entry>(slowest);
+        this.libraries = new ArrayList<PbcCompileProfiler.Entry>(libraries);
+    }
+
+    /**
+     * Writes the profile collected by a profiler next to the build and
+     * creates the matching action.
+     */
+    static PbcCompileProfileAction save(Run<?, ?> run, PbcCompileProfiler profiler) throws IOException {
+        int index = PbcCompileRunFiles.allocate(run, "pbc-profile-", ".bin");
+        String fileName = "pbc-profile-" + index + ".bin";
+        profiler.write(new File(run.getRootDir(), fileName));
+        List<PbcCompileProfiler.Entry> all = profiler.getEntries();
+        List<PbcCompileProfiler.Entry> libraries = PbcCompileProfiler.libraries(all);
+        return new PbcCompileProfileAction(fileName, index, all.size(), all.subList(0, Math.min(SLOWEST, all.size())),
+                libraries.subList(0, Math.min(LIBRARIES, libraries.size())));
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return index == 1 ? Messages.PbcCompileProfileAction_DisplayName()
+                : Messages.PbcCompileProfileAction_DisplayNameIndexed(index);
+    }
+
+    @Override
+    public String getUrlName() {
+        return index == 1 ? "pbcProfile" : "pbcProfile" + index;
+    }
+
+    /** @return number of objects compiled */
+    @Exported
+    public int getSize() {
+        return size;
+    }
+
+    /** @return the slowest objects, slowest first */
+    @Exported
+    public List<PbcCompileProfiler.Entry> getSlowest() {
+        return Collections.unmodifiableList(slowest);
+    }
+
+    /** @return the slowest libraries, slowest first */
+    @Exported
+    public List<PbcCompileProfiler.Entry> getLibraries() {
+        return Collections.unmodifiableList(libraries);
+    }
+
+    /**
+     * @return every object, slowest first, loaded on first use
+     */
+    public synchronized List<PbcCompileProfiler.Entry> getEntries() {
+        List<PbcCompileProfiler.Entry> result = entries != null ? entries.get() : null;
+        if (result == null) {
+            File file = new File(run.getRootDir(), fileName);
+            try {
+                result = Collections.unmodifiableList(PbcCompileProfiler.read(file));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+                result = Collections.emptyList();
+            }
+            entries = new SoftReference<List<PbcCompileProfiler.Entry>>(result);
+        }
+        return result;
+    }
+}
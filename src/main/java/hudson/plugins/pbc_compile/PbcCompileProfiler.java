@@ -0,0 +1,367 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Times the objects PBC compiles, from the progress lines it prints while
+ * the output streams past. An object lasts from its progress line to the
+ * next one; an object compiled in several passes adds up.
+ *
+ * Like {@link PbcCompileDiagnosticsRecorder}, names go into a string table
+ * and the profile is stored as a gzipped file of variable length integers:
+ * magic, version, entry count, the string table, then the object, library
+ * and milliseconds columns.
+ */
+public class PbcCompileProfiler {
+    private static final int MAGIC = 0x50424350; // "PBCP"
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** Object, library and time of at least one byte */
+    private static final int MIN_RECORD_SIZE = 3;
+
+    /** Verbs starting a progress line, in lower case */
+    private static final byte[][] VERBS = bytes("compiling", "regenerating", "generating", "building",
+            "processing", "optimizing", "creating");
+
+    /**
+     * The rest of a progress line after its verb: the object or library,
+     * optionally followed by its library in parentheses.
+     */
+    static final Pattern PROGRESS = Pattern.compile(
+            "[\\s:]*(?:(?:object|library)[\\s:]+)?(\\S.*?)\\s*(?:\\((.+?\\.pbl)\\))?\\s*(?:\\.\\.\\.)?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+    private final List<String> table = new ArrayList<String>();
+    private final Map<Long, Integer> entries = new HashMap<Long, Integer>();
+
+    private int[] objects = new int[64];
+    private int[] libraries = new int[64];
+    private long[] nanos = new long[64];
+    private int size;
+
+    /** Library of the objects that don't name theirs, 0 for none */
+    private int library;
+    /** Entry being compiled, or -1 */
+    private int current = -1;
+    private long currentStart;
+
+    /**
+     * Looks at one line of output.
+     *
+     * @param b
+     *            The line, in an ASCII compatible charset
+     * @param nanos
+     *            {@link System#nanoTime()} when the line was read
+     */
+    void onLine(byte[] b, int len, Charset charset, long nanos) {
+        int i = 0;
+        while (i < len && (b[i] == ' ' || b[i] == '\t')) {
+            i++;
+        }
+        if (i == len) {
+            return;
+        }
+        // The verb is matched on the bytes, only the rest of a progress line is decoded
+        int end = verb(b, i, len);
+        if (end < 0) {
+            return;
+        }
+        Matcher m = PROGRESS.matcher(new String(b, end, len - end, charset));
+        if (!m.matches()) {
+            return;
+        }
+
+        close(nanos);
+        String name = m.group(1);
+        if (name.toLowerCase().endsWith(".pbl")) {
+            library = intern(name);
+            return;
+        }
+        current = entry(intern(name), m.group(2) != null ? intern(m.group(2)) : library);
+        currentStart = nanos;
+    }
+
+    /** @return the end of the verb starting at i, or -1 if there is none */
+    private static int verb(byte[] b, int i, int len) {
+        for (byte[] verb : VERBS) {
+            int end = i + verb.length;
+            if (end > len || end < len && isWordByte(b[end])) {
+                continue;
+            }
+            int k = 0;
+            while (k < verb.length && (b[i + k] | 0x20) == verb[k]) {
+                k++;
+            }
+            if (k == verb.length) {
+                return end;
+            }
+        }
+        return -1;
+    }
+
+    /** Bytes of non ASCII characters count as letters */
+    private static boolean isWordByte(byte c) {
+        return c < 0 || c == '_' || c >= '0' && c <= '9' || (c | 0x20) >= 'a' && (c | 0x20) <= 'z';
+    }
+
+    private static byte[][] bytes(String... words) {
+        byte[][] result = new byte[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            result[i] = words[i].getBytes(UTF_8);
+        }
+        return result;
+    }
+
+    /**
+     * Ends the object being compiled, once the output ended.
+     */
+    void finish(long nanos) {
+        close(nanos);
+    }
+
+    private void close(long now) {
+        if (current >= 0) {
+            nanos[current] += now - currentStart;
+            current = -1;
+        }
+    }
+
+    private int entry(int object, int library) {
+        Long key = ((long) object << 32) | library;
+        Integer index = entries.get(key);
+        if (index != null) {
+            return index;
+        }
+        if (size == objects.length) {
+            int capacity = size * 2;
+            objects = Arrays.copyOf(objects, capacity);
+            libraries = Arrays.copyOf(libraries, capacity);
+            nanos = Arrays.copyOf(nanos, capacity);
+        }
+        objects[size] = object;
+        libraries[size] = library;
+        nanos[size] = 0;
+        entries.put(key, size);
+        return size++;
+    }
+
+    /** Index 0 is reserved for null */
+    private int intern(String s) {
+        Integer index = strings.get(s);
+        if (index == null) {
+            table.add(s);
+            index = table.size();
+            strings.put(s, index);
+        }
+        return index;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return every object, slowest first
+     */
+    public List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<Entry>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(new Entry(table.get(objects[i] - 1), libraries[i] == 0 ? null : table.get(libraries[i] - 1),
+                    TimeUnit.NANOSECONDS.toMillis(nanos[i])));
+        }
+        Collections.sort(result, SLOWEST_FIRST);
+        return result;
+    }
+
+    /**
+     * @return the time of every library, slowest first
+     */
+    public List<Entry> getLibraries() {
+        return libraries(getEntries());
+    }
+
+    static List<Entry> libraries(List<Entry> entries) {
+        Map<String, Long> totals = new HashMap<String, Long>();
+        for (Entry e : entries) {
+            Long total = totals.get(e.getLibrary());
+            totals.put(e.getLibrary(), (total != null ? total : 0L) + e.getMillis());
+        }
+        List<Entry> result = new ArrayList<Entry>(totals.size());
+        for (Map.Entry<String, Long> e : totals.entrySet()) {
+            result.add(new Entry(e.getKey(), null, e.getValue()));
+        }
+        Collections.sort(result, SLOWEST_FIRST);
+        return result;
+    }
+
+    public void write(File file) throws IOException {
+        OutputStream os = new GZIPOutputStream(new FileOutputStream(file));
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(table.size());
+            for (String s : table) {
+                byte[] b = s.getBytes(UTF_8);
+                PbcCompileDiagnosticsRecorder.writeVarInt(out, b.length);
+                out.write(b);
+            }
+            for (int i = 0; i < size; i++) {
+                PbcCompileDiagnosticsRecorder.writeVarInt(out, objects[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                PbcCompileDiagnosticsRecorder.writeVarInt(out, libraries[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                PbcCompileDiagnosticsRecorder.writeVarInt(out,
+                        (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(nanos[i])));
+            }
+            out.flush();
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Reads a file written by {@link #write(File)}.
+     *
+     * @return every object, slowest first
+     * @throws IOException
+     *             also if the file is damaged
+     */
+    public static List<Entry> read(File file) throws IOException {
+        long max = PbcCompileDiagnosticsRecorder.maxInflatedSize(file);
+        InputStream is = new GZIPInputStream(new FileInputStream(file));
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported profile file " + file);
+            }
+            int count = PbcCompileDiagnosticsRecorder.check(in.readInt(), max / MIN_RECORD_SIZE, "record count");
+            String[] table = new String[PbcCompileDiagnosticsRecorder.check(in.readInt(), max, "string count") + 1];
+            for (int i = 1; i < table.length; i++) {
+                byte[] b = new byte[PbcCompileDiagnosticsRecorder.check(PbcCompileDiagnosticsRecorder.readVarInt(in),
+                        max, "string length")];
+                in.readFully(b);
+                table[i] = new String(b, UTF_8);
+            }
+            int[] objects = new int[count];
+            for (int i = 0; i < count; i++) {
+                objects[i] = PbcCompileDiagnosticsRecorder.check(PbcCompileDiagnosticsRecorder.readVarInt(in),
+                        table.length - 1, "string index");
+            }
+            int[] libraries = new int[count];
+            for (int i = 0; i < count; i++) {
+                libraries[i] = PbcCompileDiagnosticsRecorder.check(PbcCompileDiagnosticsRecorder.readVarInt(in),
+                        table.length - 1, "string index");
+            }
+            List<Entry> result = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(new Entry(table[objects[i]], table[libraries[i]], PbcCompileDiagnosticsRecorder.readVarInt(in)));
+            }
+            Collections.sort(result, SLOWEST_FIRST);
+            return result;
+        } finally {
+            is.close();
+        }
+    }
+
+    private static final Comparator<Entry> SLOWEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.millis < b.millis ? 1 : a.millis > b.millis ? -1 : 0;
+        }
+    };
+
+    /**
+     * Compile time of one object, or of one library.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final String library;
+        private final long millis;
+
+        Entry(String name, String library, long millis) {
+            this.name = name;
+            this.library = library;
+            this.millis = millis;
+        }
+
+        /** @return the object, or the library for a library total; null for objects of no known library */
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        /** @return the library of the object, or null */
+        @Exported
+        public String getLibrary() {
+            return library;
+        }
+
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+
+        public String getDurationString() {
+            return Util.getTimeSpanString(millis);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.model.Run;
+import hudson.util.IOUtils;
+import jenkins.model.RunAction2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves the raw output of one PBC process, kept gzipped next to the build,
+ * for download.
+ */
+public class PbcCompileRawOutputAction implements RunAction2 {
+    private final String fileName;
+    private final String target;
+
+    private transient Run<?, ?> run;
+
+    /**
+     * @param fileName
+     *            Gzipped output, relative to the build directory
+     * @param target
+     *            Target the output belongs to, or null
+     */
+    public PbcCompileRawOutputAction(String fileName, String target) {
+        this.fileName = fileName;
+        this.target = target;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return run != null && run.hasPermission(Run.ARTIFACTS) ? "package.png" : null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return target == null ? Messages.PbcCompileRawOutputAction_DisplayName()
+                : Messages.PbcCompileRawOutputAction_DisplayNameTarget(target);
+    }
+
+    @Override
+    public String getUrlName() {
+        // The file name is unique within the build
+        return fileName.replace(".log.gz", "");
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        run.checkPermission(Run.ARTIFACTS);
+        File file = new File(run.getRootDir(), fileName);
+        if (!file.isFile()) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.setContentType("application/gzip");
+        rsp.setHeader("Content-Disposition", "attachment; filename=" + fileName);
+        rsp.setHeader("Content-Length", String.valueOf(file.length()));
+        InputStream in = new FileInputStream(file);
+        try {
+            IOUtils.copy(in, rsp.getOutputStream());
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Resources used by the targets of one PBC build step, as sampled on the
+ * node, to size the executors of the nodes.
+ */
+@ExportedBean
+public class PbcCompileResourceAction implements Action {
+    private final List<Target> targets = new ArrayList<Target>();
+
+    synchronized void add(String name, PbcCompileResourceUsage usage) {
+        targets.add(new Target(name, usage));
+    }
+
+    @Exported
+    public synchronized List<Target> getTargets() {
+        return Collections.unmodifiableList(new ArrayList<Target>(targets));
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.PbcCompileResourceAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * Resources used by one target.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Target {
+        private final String name;
+        private final PbcCompileResourceUsage usage;
+
+        Target(String name, PbcCompileResourceUsage usage) {
+            this.name = name;
+            this.usage = usage;
+        }
+
+        /** @return the name of the target, or null for a single target */
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported(inline = true)
+        public PbcCompileResourceUsage getUsage() {
+            return usage;
+        }
+
+        public String getPeakWorkingSetString() {
+            return PbcCompileResourceUsage.size(usage.getPeakWorkingSet());
+        }
+
+        public String getAverageWorkingSetString() {
+            return PbcCompileResourceUsage.size(usage.getAverageWorkingSet());
+        }
+
+        public String getReadString() {
+            return PbcCompileResourceUsage.size(usage.getReadBytes());
+        }
+
+        public String getWrittenString() {
+            return PbcCompileResourceUsage.size(usage.getWrittenBytes());
+        }
+    }
+}
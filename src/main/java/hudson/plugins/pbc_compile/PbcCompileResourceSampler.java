@@ -0,0 +1,501 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.ProcessTree;
+import hudson.util.ProcessTree.OSProcess;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.security.MasterToSlaveCallable;
+
+import org.apache.commons.io.FileUtils;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.win32.StdCallLibrary;
+
+/**
+ * Samples the CPU time, working set and I/O of the process tree of a PBC
+ * compile, on the node running it. The processes are recognized by a cookie
+ * in their environment, or by their parent; the counters are read from /proc
+ * on Linux and with the Win32 API on Windows.
+ *
+ * The compiles of a node share one sampling thread. Whenever a sample takes
+ * more than {@link #OVERHEAD} of the interval, the interval doubles, so that
+ * sampling stays cheap whatever the number of processes on the node.
+ */
+final class PbcCompileResourceSampler implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileResourceSampler.class.getName());
+
+    /** Environment variable holding the cookie of a compile */
+    static final String COOKIE = "PBC_COMPILE_SAMPLER";
+    /** Initial interval between samples, in milliseconds */
+    static final long INTERVAL = 1000;
+    /** Longest interval between samples, in milliseconds */
+    static final long MAX_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    /** Share of the interval a sample may take */
+    static final double OVERHEAD = 0.02;
+    /** Sampling ends this long after the processes exited, if never stopped */
+    static final long ORPHAN_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    /** Sessions of this JVM by cookie */
+    private static final Map<String, PbcCompileResourceSampler> SESSIONS = new ConcurrentHashMap<String, PbcCompileResourceSampler>();
+    private static ScheduledExecutorService executor;
+    private static Probe probe;
+    private static boolean probed;
+
+    private final String cookie;
+    private final Probe counters;
+    private final long start = System.nanoTime();
+    private final int self = currentPid();
+    private final PbcCompileResourceUsage usage = new PbcCompileResourceUsage();
+    /** Processes of the compile, and processes checked not to be */
+    private final Set<Integer> members = new HashSet<Integer>();
+    private final Set<Integer> others = new HashSet<Integer>();
+    /** Last counters of the running processes */
+    private Map<Integer, long[]> running = new HashMap<Integer, long[]>();
+    /** Counters of the processes that exited */
+    private final long[] exited = new long[4];
+    private long interval;
+    private long samplingNanos;
+    private long lastSeen = -1;
+    private ScheduledFuture<?> next;
+    private boolean stopped;
+
+    PbcCompileResourceSampler(String cookie, Probe counters, long interval) {
+        this.cookie = cookie;
+        this.counters = counters;
+        this.interval = interval;
+    }
+
+    /**
+     * Reads the counters of a process.
+     */
+    interface Probe {
+        /**
+         * @return CPU milliseconds, working set, bytes read and bytes
+         *         written, or null if the process is gone
+         */
+        long[] read(int pid);
+    }
+
+    /** @return the probe for this JVM, or null if the platform isn't supported */
+    static synchronized Probe probe() {
+        if (!probed) {
+            probed = true;
+            try {
+                if (new File("/proc/self/stat").isFile()) {
+                    probe = new ProcProbe();
+                } else if (File.pathSeparatorChar == ';') {
+                    probe = new Win32Probe();
+                }
+            } catch (LinkageError e) {
+                LOGGER.log(Level.WARNING, "Failed to load the Win32 API, PBC resources won't be sampled", e);
+            }
+        }
+        return probe;
+    }
+
+    private static synchronized ScheduledExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "PBC resource sampler"));
+        }
+        return executor;
+    }
+
+    synchronized void schedule(long delay) {
+        if (!stopped) {
+            next = executor().schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void run() {
+        if (stopped) {
+            return;
+        }
+        long begin = System.nanoTime();
+        try {
+            sample();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to sample the PBC processes", e);
+        }
+        long took = System.nanoTime() - begin;
+        samplingNanos += took;
+        if (took > TimeUnit.MILLISECONDS.toNanos(interval) * OVERHEAD) {
+            interval = Math.min(MAX_INTERVAL, interval * 2);
+        }
+        long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (lastSeen >= 0 && running.isEmpty() && now - lastSeen > ORPHAN_TIMEOUT) {
+            LOGGER.log(Level.FINE, "Stopped sampling PBC compile {0}, never stopped", cookie);
+            SESSIONS.remove(cookie);
+            stop();
+        } else {
+            schedule(interval);
+        }
+    }
+
+    /**
+     * Takes one sample of the process tree.
+     */
+    synchronized void sample() {
+        Map<Integer, long[]> live = new HashMap<Integer, long[]>();
+        Set<Integer> present = new HashSet<Integer>();
+        for (OSProcess p : ProcessTree.get()) {
+            present.add(p.getPid());
+            if (isMember(p)) {
+                long[] c = counters.read(p.getPid());
+                if (c != null) {
+                    live.put(p.getPid(), c);
+                }
+            }
+        }
+        members.retainAll(present);
+        others.retainAll(present);
+        // Exited processes keep their last counters
+        for (Map.Entry<Integer, long[]> e : running.entrySet()) {
+            if (!live.containsKey(e.getKey())) {
+                exited[0] += e.getValue()[0];
+                exited[2] += e.getValue()[2];
+                exited[3] += e.getValue()[3];
+            }
+        }
+        running = live;
+        if (live.isEmpty()) {
+            return;
+        }
+        long[] total = exited.clone();
+        for (long[] c : live.values()) {
+            for (int i = 0; i < total.length; i++) {
+                total[i] += c[i];
+            }
+        }
+        lastSeen = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        usage.add(lastSeen, live.size(), total[0], total[1], total[2], total[3]);
+    }
+
+    private boolean isMember(OSProcess p) {
+        Integer pid = p.getPid();
+        if (members.contains(pid)) {
+            return true;
+        }
+        if (others.contains(pid)) {
+            return false;
+        }
+        OSProcess parent = p.getParent();
+        boolean member = parent != null && isMember(parent);
+        if (!member) {
+            try {
+                member = cookie.equals(p.getEnvironmentVariables().get(COOKIE));
+            } catch (RuntimeException e) {
+                // Not readable, such as a system process
+            }
+        }
+        if (member) {
+            members.add(pid);
+        } else if (parent == null || parent.getPid() != self) {
+            // A child of this JVM may not have been given its environment yet
+            others.add(pid);
+        }
+        return member;
+    }
+
+    /**
+     * Stops sampling.
+     *
+     * @return what was sampled
+     */
+    synchronized PbcCompileResourceUsage stop() {
+        if (!stopped) {
+            stopped = true;
+            if (next != null) {
+                next.cancel(false);
+            }
+            usage.finish(interval, TimeUnit.NANOSECONDS.toMillis(samplingNanos));
+        }
+        return usage;
+    }
+
+    /** @return CPU time of the process tree so far, as of the last sample */
+    synchronized long getCpuMillis() {
+        return usage.getCpuMillis();
+    }
+
+    /** @return the current interval between samples, in milliseconds */
+    synchronized long getInterval() {
+        return interval;
+    }
+
+    /** @return the processes of the compile, with their command lines */
+    synchronized List<String> describe() {
+        List<String> result = new ArrayList<String>();
+        for (OSProcess p : ProcessTree.get()) {
+            if (members.contains(p.getPid())) {
+                String command;
+                try {
+                    command = Util.join(p.getArguments(), " ");
+                } catch (RuntimeException e) {
+                    command = "?";
+                }
+                result.add(p.getPid() + " " + command);
+            }
+        }
+        return result;
+    }
+
+    private static int currentPid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Starts sampling the processes launched with the cookie in their
+     * environment.
+     */
+    static final class Start extends MasterToSlaveCallable<Boolean, RuntimeException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+        private final long interval;
+
+        /**
+         * @param interval
+         *            Initial interval between samples, in milliseconds
+         */
+        Start(String cookie, long interval) {
+            this.cookie = cookie;
+            this.interval = interval;
+        }
+
+        /** @return false if the resources of this node can't be sampled */
+        @Override
+        public Boolean call() {
+            Probe probe = probe();
+            if (probe == null) {
+                return false;
+            }
+            PbcCompileResourceSampler sampler = new PbcCompileResourceSampler(cookie, probe, interval);
+            SESSIONS.put(cookie, sampler);
+            // Early enough for short compiles
+            sampler.schedule(Math.min(interval, 250));
+            return true;
+        }
+    }
+
+    /**
+     * Stops sampling and returns what was sampled, or null if nothing was.
+     */
+    static final class Stop extends MasterToSlaveCallable<PbcCompileResourceUsage, RuntimeException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        Stop(String cookie) {
+            this.cookie = cookie;
+        }
+
+        @Override
+        public PbcCompileResourceUsage call() {
+            PbcCompileResourceSampler sampler = SESSIONS.remove(cookie);
+            if (sampler == null) {
+                return null;
+            }
+            PbcCompileResourceUsage usage = sampler.stop();
+            return usage.getSamples() > 0 ? usage : null;
+        }
+    }
+
+    /**
+     * Returns the CPU time of a compile as of its last sample and the
+     * interval between samples, in milliseconds, or null if it isn't sampled.
+     */
+    static final class Cpu extends MasterToSlaveCallable<long[], RuntimeException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        Cpu(String cookie) {
+            this.cookie = cookie;
+        }
+
+        @Override
+        public long[] call() {
+            PbcCompileResourceSampler sampler = SESSIONS.get(cookie);
+            return sampler != null ? new long[] { sampler.getCpuMillis(), sampler.getInterval() } : null;
+        }
+    }
+
+    /**
+     * Lists the running processes of a compile.
+     */
+    static final class Tree extends MasterToSlaveCallable<List<String>, RuntimeException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        Tree(String cookie) {
+            this.cookie = cookie;
+        }
+
+        @Override
+        public List<String> call() {
+            PbcCompileResourceSampler sampler = SESSIONS.get(cookie);
+            return sampler != null ? sampler.describe() : new ArrayList<String>();
+        }
+    }
+
+    /**
+     * Reads /proc/[pid]/stat, status and io.
+     */
+    static final class ProcProbe implements Probe {
+        /** USER_HZ, the unit of the CPU times of /proc, on every architecture Jenkins runs on */
+        private static final int CLOCK_TICKS = 100;
+
+        @Override
+        public long[] read(int pid) {
+            File dir = new File("/proc", String.valueOf(pid));
+            try {
+                String stat = FileUtils.readFileToString(new File(dir, "stat"));
+                // Fields after the command name, from the state on: utime and stime are the 12th and 13th
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                long cpu = (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * 1000 / CLOCK_TICKS;
+                long rss = field(FileUtils.readFileToString(new File(dir, "status")), "VmRSS:") * 1024;
+                long read = 0;
+                long written = 0;
+                try {
+                    String io = FileUtils.readFileToString(new File(dir, "io"));
+                    read = field(io, "read_bytes:");
+                    written = field(io, "write_bytes:");
+                } catch (IOException e) {
+                    // Not readable without ptrace access
+                }
+                return new long[] { cpu, rss, read, written };
+            } catch (IOException e) {
+                return null;
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        /** @return the number after a label, 0 if there is none */
+        private static long field(String text, String label) {
+            int i = text.indexOf(label);
+            if (i < 0) {
+                return 0;
+            }
+            i += label.length();
+            while (i < text.length() && (text.charAt(i) == ' ' || text.charAt(i) == '\t')) {
+                i++;
+            }
+            long value = 0;
+            for (; i < text.length() && Character.isDigit(text.charAt(i)); i++) {
+                value = value * 10 + (text.charAt(i) - '0');
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Reads the process times, memory and I/O counters with the Win32 API.
+     */
+    static final class Win32Probe implements Probe {
+        private static final int PROCESS_QUERY_LIMITED_INFORMATION = 0x1000;
+        /** PROCESS_MEMORY_COUNTERS: two DWORDs then eight SIZE_Ts */
+        private static final int MEMORY_COUNTERS_SIZE = 8 + 8 * Pointer.SIZE;
+
+        private final Kernel32 kernel32 = (Kernel32) Native.loadLibrary("kernel32", Kernel32.class);
+
+        @Override
+        public long[] read(int pid) {
+            Pointer process = kernel32.OpenProcess(PROCESS_QUERY_LIMITED_INFORMATION, false, pid);
+            if (process == null) {
+                return null;
+            }
+            try {
+                // FILETIMEs, in 100 ns units
+                long[] creation = new long[1];
+                long[] exit = new long[1];
+                long[] kernel = new long[1];
+                long[] user = new long[1];
+                if (!kernel32.GetProcessTimes(process, creation, exit, kernel, user)) {
+                    return null;
+                }
+                long cpu = (kernel[0] + user[0]) / 10000;
+                long workingSet = 0;
+                Memory memory = new Memory(MEMORY_COUNTERS_SIZE);
+                if (kernel32.K32GetProcessMemoryInfo(process, memory, MEMORY_COUNTERS_SIZE)) {
+                    // WorkingSetSize follows PeakWorkingSetSize
+                    workingSet = Pointer.SIZE == 8 ? memory.getLong(16) : memory.getInt(12) & 0xFFFFFFFFL;
+                }
+                // IO_COUNTERS: ReadTransferCount and WriteTransferCount are the 4th and 5th
+                long[] io = new long[6];
+                if (!kernel32.GetProcessIoCounters(process, io)) {
+                    io[3] = 0;
+                    io[4] = 0;
+                }
+                return new long[] { cpu, workingSet, io[3], io[4] };
+            } finally {
+                kernel32.CloseHandle(process);
+            }
+        }
+    }
+
+    private interface Kernel32 extends StdCallLibrary {
+        Pointer OpenProcess(int desiredAccess, boolean inheritHandle, int processId);
+
+        boolean CloseHandle(Pointer handle);
+
+        boolean GetProcessTimes(Pointer process, long[] creationTime, long[] exitTime, long[] kernelTime,
+                long[] userTime);
+
+        boolean GetProcessIoCounters(Pointer process, long[] ioCounters);
+
+        boolean K32GetProcessMemoryInfo(Pointer process, Memory counters, int size);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * CPU time, working set and I/O of the process tree of one PBC compile, as
+ * sampled by {@link PbcCompileResourceSampler}: peak and average values and
+ * a time series of at most {@link #MAX_POINTS} points. When the series is
+ * full, adjacent points are merged and later points cover twice as many
+ * samples, so that the whole compile stays covered at an even resolution.
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class PbcCompileResourceUsage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** Most points kept in the time series */
+    static final int MAX_POINTS = 120;
+
+    private final List<Point> series = new ArrayList<Point>();
+    private int samples;
+    private long durationMillis;
+    private long intervalMillis;
+    private long samplingMillis;
+    private long cpuMillis;
+    private int peakCpu;
+    private long peakWorkingSet;
+    private long workingSetMillis;
+    private long readBytes;
+    private long writtenBytes;
+    private int peakProcesses;
+
+    /** Samples merged into the next point */
+    private transient Point open;
+    private transient int inBucket;
+    private transient int stride = 1;
+
+    /**
+     * Adds a sample of the whole process tree.
+     *
+     * @param millis
+     *            Time of the sample, since sampling started
+     * @param cpuMillis
+     *            CPU time of the tree so far, including exited processes
+     * @param workingSet
+     *            Working set of the running processes, in bytes
+     * @param readBytes
+     *            Bytes read by the tree so far
+     * @param writtenBytes
+     *            Bytes written by the tree so far
+     */
+    void add(long millis, int processes, long cpuMillis, long workingSet, long readBytes, long writtenBytes) {
+        long elapsed = millis - durationMillis;
+        if (elapsed > 0) {
+            peakCpu = (int) Math.max(peakCpu, (cpuMillis - this.cpuMillis) * 100 / elapsed);
+            workingSetMillis += workingSet * elapsed;
+            durationMillis = millis;
+        }
+        samples++;
+        this.cpuMillis = Math.max(this.cpuMillis, cpuMillis);
+        this.readBytes = Math.max(this.readBytes, readBytes);
+        this.writtenBytes = Math.max(this.writtenBytes, writtenBytes);
+        peakWorkingSet = Math.max(peakWorkingSet, workingSet);
+        peakProcesses = Math.max(peakProcesses, processes);
+
+        Point point = new Point(millis, processes, this.cpuMillis, workingSet, this.readBytes, this.writtenBytes);
+        open = open != null ? open.merge(point) : point;
+        if (++inBucket < stride) {
+            return;
+        }
+        series.add(open);
+        open = null;
+        inBucket = 0;
+        if (series.size() == MAX_POINTS) {
+            for (int i = 0; i < MAX_POINTS / 2; i++) {
+                series.set(i, series.get(2 * i).merge(series.get(2 * i + 1)));
+            }
+            series.subList(MAX_POINTS / 2, MAX_POINTS).clear();
+            stride *= 2;
+        }
+    }
+
+    /**
+     * Ends the series with the samples not yet in a point.
+     *
+     * @param intervalMillis
+     *            Interval between samples at the end, after any backoff
+     * @param samplingMillis
+     *            Time spent taking the samples
+     */
+    void finish(long intervalMillis, long samplingMillis) {
+        if (open != null) {
+            series.add(open);
+            open = null;
+        }
+        this.intervalMillis = intervalMillis;
+        this.samplingMillis = samplingMillis;
+    }
+
+    /** @return number of samples taken */
+    @Exported
+    public int getSamples() {
+        return samples;
+    }
+
+    /** @return time from the start of sampling to the last sample */
+    @Exported
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /** @return interval between the last samples */
+    @Exported
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /** @return time the node spent taking the samples */
+    @Exported
+    public long getSamplingMillis() {
+        return samplingMillis;
+    }
+
+    /** @return CPU time of the process tree, user and kernel */
+    @Exported
+    public long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    /** @return average CPU use, in percent of one core */
+    @Exported
+    public int getAverageCpu() {
+        return durationMillis > 0 ? (int) (cpuMillis * 100 / durationMillis) : 0;
+    }
+
+    /** @return highest CPU use between two samples, in percent of one core */
+    @Exported
+    public int getPeakCpu() {
+        return peakCpu;
+    }
+
+    /** @return highest working set of the process tree, in bytes */
+    @Exported
+    public long getPeakWorkingSet() {
+        return peakWorkingSet;
+    }
+
+    /** @return working set of the process tree averaged over time, in bytes */
+    @Exported
+    public long getAverageWorkingSet() {
+        return durationMillis > 0 ? workingSetMillis / durationMillis : 0;
+    }
+
+    @Exported
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    @Exported
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /** @return most processes of the tree running at once */
+    @Exported
+    public int getPeakProcesses() {
+        return peakProcesses;
+    }
+
+    /** @return the time series, oldest first */
+    @Exported
+    public List<Point> getSeries() {
+        return Collections.unmodifiableList(series);
+    }
+
+    public String getCpuString() {
+        return Util.getTimeSpanString(cpuMillis);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("peak working set %s (average %s), CPU %s (average %d%%, peak %d%% of a core), "
+                + "read %s, written %s, %d sample(s)", size(peakWorkingSet), size(getAverageWorkingSet()),
+                getCpuString(), getAverageCpu(), peakCpu, size(readBytes), size(writtenBytes), samples);
+    }
+
+    static String size(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * One point of the time series, covering one or more samples: the
+     * counters at its last sample and the highest working set.
+     */
+    @ExportedBean(defaultVisibility = 3)
+    public static final class Point implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long millis;
+        private final int processes;
+        private final long cpuMillis;
+        private final long workingSet;
+        private final long readBytes;
+        private final long writtenBytes;
+
+        Point(long millis, int processes, long cpuMillis, long workingSet, long readBytes, long writtenBytes) {
+            this.millis = millis;
+            this.processes = processes;
+            this.cpuMillis = cpuMillis;
+            this.workingSet = workingSet;
+            this.readBytes = readBytes;
+            this.writtenBytes = writtenBytes;
+        }
+
+        Point merge(Point later) {
+            return new Point(later.millis, Math.max(processes, later.processes), later.cpuMillis,
+                    Math.max(workingSet, later.workingSet), later.readBytes, later.writtenBytes);
+        }
+
+        /** @return time since the start of sampling */
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+
+        @Exported
+        public int getProcesses() {
+            return processes;
+        }
+
+        /** @return CPU time so far */
+        @Exported
+        public long getCpuMillis() {
+            return cpuMillis;
+        }
+
+        /** @return highest working set in bytes */
+        @Exported
+        public long getWorkingSet() {
+            return workingSet;
+        }
+
+        /** @return bytes read so far */
+        @Exported
+        public long getReadBytes() {
+            return readBytes;
+        }
+
+        /** @return bytes written so far */
+        @Exported
+        public long getWrittenBytes() {
+            return writtenBytes;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Outcome of one PBC build step: exit codes and error/warning counts of its
+ * targets, and where the time went. Exported through the remote API of the
+ * build, so that a Pipeline or another job can gate on it.
+ */
+@ExportedBean
+public class PbcCompileResultAction implements Action {
+    private final PbcCompileTimingsAction timings;
+    private final List<Target> targets = new ArrayList<Target>();
+    private boolean success;
+
+    PbcCompileResultAction(PbcCompileTimingsAction timings) {
+        this.timings = timings;
+    }
+
+    synchronized void add(String name, int exitCode, int errors, int warnings, boolean stopped, boolean stalled,
+            boolean skipped) {
+        targets.add(new Target(name, exitCode, errors, warnings, stopped, stalled, skipped));
+    }
+
+    synchronized void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    /** @return true if the step passed, as configured to treat failures */
+    @Exported
+    public synchronized boolean isSuccess() {
+        return success;
+    }
+
+    /** @return the first non zero exit code of the targets, or 0 */
+    @Exported
+    public synchronized int getExitCode() {
+        for (Target target : targets) {
+            if (target.exitCode != 0) {
+                return target.exitCode;
+            }
+        }
+        return 0;
+    }
+
+    @Exported
+    public synchronized int getErrors() {
+        int errors = 0;
+        for (Target target : targets) {
+            errors += target.errors;
+        }
+        return errors;
+    }
+
+    @Exported
+    public synchronized int getWarnings() {
+        int warnings = 0;
+        for (Target target : targets) {
+            warnings += target.warnings;
+        }
+        return warnings;
+    }
+
+    @Exported
+    public synchronized List<Target> getTargets() {
+        return Collections.unmodifiableList(new ArrayList<Target>(targets));
+    }
+
+    @Exported(inline = true)
+    public PbcCompileTimingsAction getTimings() {
+        return timings;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.PbcCompileResultAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * Outcome of one target.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Target {
+        private final String name;
+        private final int exitCode;
+        private final int errors;
+        private final int warnings;
+        private final boolean stopped;
+        private final boolean stalled;
+        private final boolean skipped;
+
+        Target(String name, int exitCode, int errors, int warnings, boolean stopped, boolean stalled,
+                boolean skipped) {
+            this.name = name;
+            this.exitCode = exitCode;
+            this.errors = errors;
+            this.warnings = warnings;
+            this.stopped = stopped;
+            this.stalled = stalled;
+            this.skipped = skipped;
+        }
+
+        /** @return the name of the target, or null for a single target */
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        @Exported
+        public int getErrors() {
+            return errors;
+        }
+
+        @Exported
+        public int getWarnings() {
+            return warnings;
+        }
+
+        /** @return true if fail-fast stopped the compile */
+        @Exported
+        public boolean isStopped() {
+            return stopped;
+        }
+
+        /** @return true if the compile was stopped as stalled */
+        @Exported
+        public boolean isStalled() {
+            return stalled;
+        }
+
+        /** @return true if the target wasn't compiled because a target it depends on failed */
+        @Exported
+        public boolean isSkipped() {
+            return skipped;
+        }
+    }
+}
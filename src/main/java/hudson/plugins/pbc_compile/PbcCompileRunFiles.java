@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Numbers the files the PBC build steps keep in a build directory, such as
+ * {@code pbc-diagnostics-2.bin}. A number is taken by creating its file, so
+ * that steps running in parallel in one build, as Pipeline branches do,
+ * never share a file, nor the URL of the action showing it.
+ */
+final class PbcCompileRunFiles {
+    private PbcCompileRunFiles() {
+    }
+
+    /**
+     * Creates the first free file {@code prefix + n + suffix}, n starting at
+     * 1, in the directory of the build.
+     *
+     * @return n
+     */
+    static int allocate(Run<?, ?> run, String prefix, String suffix) throws IOException {
+        File dir = run.getRootDir();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        for (int index = 1;; index++) {
+            if (new File(dir, prefix + index + suffix).createNewFile()) {
+                return index;
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Mirrors a workspace into a staging directory on a local disk of the node,
+ * for PBC to compile there instead of on a slow network volume.
+ *
+ * The staging directory keeps a manifest of {@code sha256 size mtime
+ * stagedSize stagedMtime path} lines describing each file on both sides as
+ * of the last sync. A file whose sizes and timestamps match is not read at
+ * all; one that only got a new timestamp is hashed but not copied. After the
+ * compile, files PBC created or changed are copied back, so that the next
+ * sync finds both sides in agreement.
+ */
+final class PbcCompileStaging {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileStaging.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final String MANIFEST = ".pbc-staging";
+
+    private PbcCompileStaging() {
+    }
+
+    /**
+     * Brings the staging directory up to date with the workspace the
+     * callable runs on.
+     */
+    static final class Sync extends MasterToSlaveFileCallable<Stats> {
+        private static final long serialVersionUID = 1L;
+
+        private final String staging;
+
+        Sync(String staging) {
+            this.staging = staging;
+        }
+
+        @Override
+        public Stats invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File root = new File(staging);
+            if (!root.isDirectory() && !root.mkdirs()) {
+                throw new IOException("Failed to create the staging directory " + root);
+            }
+            Map<String, Entry> manifest = readManifest(root);
+            Set<String> seen = new HashSet<String>();
+            Stats stats = new Stats();
+            try {
+                for (Map.Entry<String, File> e : list(ws).entrySet()) {
+                    String path = e.getKey();
+                    File source = e.getValue();
+                    File target = new File(root, path);
+                    seen.add(path);
+                    stats.files++;
+                    Entry entry = manifest.get(path);
+                    if (entry != null && entry.matches(source, target)) {
+                        continue;
+                    }
+                    String hash = null;
+                    if (entry != null && entry.matchesStaged(target)) {
+                        // Only a new timestamp, as after a checkout?
+                        hash = PbcCompileFingerprint.toHex(PbcCompileFingerprint.digest(source));
+                        stats.hashed++;
+                    }
+                    if (hash == null || !hash.equals(entry.hash)) {
+                        File parent = target.getParentFile();
+                        if (!parent.isDirectory() && !parent.mkdirs()) {
+                            throw new IOException("Failed to create " + parent);
+                        }
+                        hash = PbcCompileOutputCache.copy(source, target);
+                        stats.copied++;
+                        stats.bytes += target.length();
+                    }
+                    manifest.put(path, new Entry(hash, source, target));
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+                // Gone from the workspace
+                for (Iterator<String> it = manifest.keySet().iterator(); it.hasNext();) {
+                    String path = it.next();
+                    if (!seen.contains(path)) {
+                        File target = new File(root, path);
+                        if (target.exists() && !target.delete()) {
+                            LOGGER.log(Level.WARNING, "Failed to delete {0}", target);
+                        }
+                        it.remove();
+                        stats.deleted++;
+                    }
+                }
+            } finally {
+                // Whatever was synced stays valid for the next build
+                writeManifest(root, manifest);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Copies the files created or changed in the staging directory back to
+     * the workspace the callable runs on.
+     */
+    static final class CopyBack extends MasterToSlaveFileCallable<Stats> {
+        private static final long serialVersionUID = 1L;
+
+        private final String staging;
+
+        CopyBack(String staging) {
+            this.staging = staging;
+        }
+
+        @Override
+        public Stats invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File root = new File(staging);
+            Map<String, Entry> manifest = readManifest(root);
+            Stats stats = new Stats();
+            try {
+                for (Map.Entry<String, File> e : list(root).entrySet()) {
+                    String path = e.getKey();
+                    File source = e.getValue();
+                    File target = new File(ws, path);
+                    stats.files++;
+                    Entry entry = manifest.get(path);
+                    if (entry != null && entry.matchesStaged(source)) {
+                        continue;
+                    }
+                    String hash = PbcCompileFingerprint.toHex(PbcCompileFingerprint.digest(source));
+                    stats.hashed++;
+                    if (entry == null || !hash.equals(entry.hash) || !target.isFile()) {
+                        File parent = target.getParentFile();
+                        if (!parent.isDirectory() && !parent.mkdirs()) {
+                            throw new IOException("Failed to create " + parent);
+                        }
+                        PbcCompileOutputCache.copy(source, target);
+                        stats.copied++;
+                        stats.bytes += target.length();
+                    }
+                    manifest.put(path, new Entry(hash, target, source));
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                writeManifest(root, manifest);
+            }
+            return stats;
+        }
+    }
+
+    /** @return the files under a directory by relative path, without the manifest and version control data */
+    static TreeMap<String, File> list(File dir) {
+        TreeMap<String, File> files = new TreeMap<String, File>();
+        list(dir, "", files);
+        return files;
+    }
+
+    private static void list(File dir, String prefix, Map<String, File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isDirectory()) {
+                if (!name.equals(".git") && !name.equals(".svn") && !name.equals(".hg")) {
+                    list(child, prefix + name + "/", files);
+                }
+            } else if (prefix.length() > 0 || !name.equals(MANIFEST)) {
+                files.put(prefix + name, child);
+            }
+        }
+    }
+
+    static Map<String, Entry> readManifest(File root) throws IOException {
+        Map<String, Entry> manifest = new TreeMap<String, Entry>();
+        File file = new File(root, MANIFEST);
+        if (!file.isFile()) {
+            return manifest;
+        }
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] parts = line.split(" ", 6);
+                if (parts.length != 6) {
+                    // Start over rather than trust a damaged manifest
+                    LOGGER.log(Level.WARNING, "Malformed staging manifest {0}", file);
+                    manifest.clear();
+                    break;
+                }
+                manifest.put(parts[5], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                        Long.parseLong(parts[3]), Long.parseLong(parts[4])));
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Malformed staging manifest " + file, e);
+            manifest.clear();
+        } finally {
+            r.close();
+        }
+        return manifest;
+    }
+
+    /** Writes the manifest next to the old one and renames it into place */
+    static void writeManifest(File root, Map<String, Entry> manifest) throws IOException {
+        File file = new File(root, MANIFEST);
+        File tmp = new File(root, MANIFEST + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8);
+        try {
+            for (Map.Entry<String, Entry> e : manifest.entrySet()) {
+                Entry entry = e.getValue();
+                w.write(entry.hash + " " + entry.size + " " + entry.mtime + " " + entry.stagedSize + " "
+                        + entry.stagedMtime + " " + e.getKey() + "\n");
+            }
+        } finally {
+            w.close();
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * A file as last seen in the workspace and in the staging directory.
+     */
+    static final class Entry {
+        final String hash;
+        final long size;
+        final long mtime;
+        final long stagedSize;
+        final long stagedMtime;
+
+        Entry(String hash, long size, long mtime, long stagedSize, long stagedMtime) {
+            this.hash = hash;
+            this.size = size;
+            this.mtime = mtime;
+            this.stagedSize = stagedSize;
+            this.stagedMtime = stagedMtime;
+        }
+
+        Entry(String hash, File file, File staged) {
+            this(hash, file.length(), file.lastModified(), staged.length(), staged.lastModified());
+        }
+
+        boolean matches(File file, File staged) {
+            return file.length() == size && file.lastModified() == mtime && matchesStaged(staged);
+        }
+
+        boolean matchesStaged(File staged) {
+            return staged.length() == stagedSize && staged.lastModified() == stagedMtime;
+        }
+    }
+
+    /**
+     * What a sync or copy back did.
+     */
+    static final class Stats implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        int files;
+        int hashed;
+        int copied;
+        int deleted;
+        long bytes;
+
+        @Override
+        public String toString() {
+            return files + " file(s), " + copied + " copied (" + bytes / 1024 + " KB), " + hashed + " hashed"
+                    + (deleted > 0 ? ", " + deleted + " deleted" : "");
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A PowerBuilder target compiled by a {@link PbcCompileBuilder} in addition
+ * to its main one.
+ */
+public class PbcCompileTarget extends AbstractDescribableImpl<PbcCompileTarget> {
+    private final String name;
+    private final String cmdLineArgs;
+
+    /**
+     * @param name
+     *            Prefix for the console output of this target; derived from
+     *            the .pbt file if empty
+     * @param cmdLineArgs
+     *            Whitespace separated list of command line arguments for pbc
+     *            utility
+     */
+    @DataBoundConstructor
+    public PbcCompileTarget(String name, String cmdLineArgs) {
+        this.name = Util.fixEmptyAndTrim(name);
+        this.cmdLineArgs = cmdLineArgs;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCmdLineArgs() {
+        return cmdLineArgs;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<PbcCompileTarget> {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.PbcCompileTarget_DisplayName();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.model.TaskListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of PBC processes running at the same time on a node,
+ * across all builds and executors. Waiting compiles get their turn in
+ * arrival order.
+ */
+final class PbcCompileThrottle {
+    private static final ConcurrentMap<String, Slots> SLOTS = new ConcurrentHashMap<String, Slots>();
+
+    private PbcCompileThrottle() {
+    }
+
+    /**
+     * A fair semaphore and its current limit. Changing the limit adds or
+     * removes permits, so that running compiles still count against it:
+     * after a decrease, new compiles wait until enough running ones ended.
+     */
+    private static final class Slots extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private int limit;
+
+        Slots(int limit) {
+            super(limit, true);
+            this.limit = limit;
+        }
+
+        synchronized void resize(int newLimit) {
+            if (newLimit > limit) {
+                release(newLimit - limit);
+            } else if (newLimit < limit) {
+                reducePermits(limit - newLimit);
+            }
+            limit = newLimit;
+        }
+    }
+
+    /**
+     * A held slot. Releasing it more than once has no effect.
+     */
+    static final class Permit {
+        private final Semaphore semaphore;
+        private boolean released;
+
+        Permit(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        synchronized void release() {
+            if (!released && semaphore != null) {
+                released = true;
+                semaphore.release();
+            }
+        }
+    }
+
+    /**
+     * Waits for a slot, logging how long the wait took.
+     *
+     * @param installation
+     *            Installation name for a per-installation limit, or null for
+     *            a limit shared by all installations of the node
+     * @param limit
+     *            Maximum number of concurrent compiles; 0 or less means no
+     *            limit
+     * @param prefix
+     *            Prefix for the log messages
+     */
+    static Permit acquire(String nodeName, String installation, int limit, TaskListener listener, String prefix)
+            throws InterruptedException {
+        if (limit <= 0) {
+            return new Permit(null);
+        }
+        String key = installation == null ? nodeName : nodeName + '\u0000' + installation;
+        Slots slots = SLOTS.get(key);
+        if (slots == null) {
+            Slots created = new Slots(limit);
+            slots = SLOTS.putIfAbsent(key, created);
+            if (slots == null) {
+                slots = created;
+            }
+        }
+        // Installations sharing the node limit may disagree on it; the last one wins
+        slots.resize(limit);
+
+        Semaphore semaphore = slots;
+        // The timed variant honours the fairness of the semaphore
+        if (!semaphore.tryAcquire(0, TimeUnit.SECONDS)) {
+            String node = nodeName.length() == 0 ? "master" : nodeName;
+            listener.getLogger().println(prefix + String.format(
+                    "> Waiting for one of the %d PBC slots of %s (%d compile(s) queued)", limit,
+                    installation == null ? node : installation + " on " + node, semaphore.getQueueLength() + 1));
+            long start = System.nanoTime();
+            semaphore.acquire();
+            listener.getLogger().println(prefix + String.format("> Got a PBC slot after %d s",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)));
+        }
+        return new Permit(semaphore);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Util;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Where the time of one PBC build step went. Phases are measured with
+ * {@link System#nanoTime()}; concurrent targets record their phases side by
+ * side, so the durations of a step may add up to more than its wall time.
+ */
+@ExportedBean
+public class PbcCompileTimingsAction implements Action {
+    /** Resolving the build environment */
+    static final String ENVIRONMENT = "environment";
+    /** Syncing the workspace with the local staging directory, and back */
+    static final String STAGING = "staging";
+    /** Reading the target files and selecting the affected targets */
+    static final String DEPENDENCIES = "dependencies";
+    /** Resolving the pbc utility and checking the targets on the node */
+    static final String PREFLIGHT = "preflight";
+    /** Fingerprinting the inputs and looking up earlier outputs */
+    static final String FINGERPRINT = "fingerprint";
+    /** Waiting for a free PBC slot on the node */
+    static final String THROTTLE = "throttle";
+    /** From the launch of the process to its first line of output */
+    static final String STARTUP = "startup";
+    /** From the first line of output to the exit of the process */
+    static final String COMPILE = "compile";
+    /** Spent parsing and annotating the output, part of startup and compile */
+    static final String CONSOLE = "console";
+    /** Recording the outputs and publishing them to the output cache */
+    static final String PUBLISH = "publish";
+    /** Saving the diagnostics with the build */
+    static final String DIAGNOSTICS = "diagnostics";
+    /** Hashing the outputs and storing the new ones on the controller */
+    static final String ARCHIVE = "archive";
+
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private long bytes;
+    private long lines;
+    private long totalNanos;
+
+    /**
+     * Records a phase that started at the given {@link System#nanoTime()}
+     * and ends now.
+     *
+     * @param target
+     *            The target the phase belongs to, or null for the whole step
+     * @return now, to chain phases
+     */
+    long record(String target, String name, long startNanos) {
+        long now = System.nanoTime();
+        add(target, name, now - startNanos);
+        return now;
+    }
+
+    synchronized void add(String target, String name, long nanos) {
+        phases.add(new Phase(target, name, nanos));
+    }
+
+    /**
+     * Accounts for the output of one PBC process.
+     */
+    synchronized void addOutput(long bytes, long lines) {
+        this.bytes += bytes;
+        this.lines += lines;
+    }
+
+    synchronized void setTotal(long nanos) {
+        this.totalNanos = nanos;
+    }
+
+    @Exported
+    public synchronized List<Phase> getPhases() {
+        return Collections.unmodifiableList(new ArrayList<Phase>(phases));
+    }
+
+    /** @return bytes of PBC output processed */
+    @Exported
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /** @return lines of PBC output processed */
+    @Exported
+    public synchronized long getLines() {
+        return lines;
+    }
+
+    /** @return wall time of the build step in milliseconds */
+    @Exported
+    public synchronized long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos);
+    }
+
+    public synchronized String getTotalString() {
+        return Util.getTimeSpanString(getTotalMillis());
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.PbcCompileTimingsAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * One measured phase.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Phase {
+        private final String target;
+        private final String name;
+        private final long nanos;
+
+        Phase(String target, String name, long nanos) {
+            this.target = target;
+            this.name = name;
+            this.nanos = nanos;
+        }
+
+        /** @return the target, or null if the phase covers the whole step */
+        @Exported
+        public String getTarget() {
+            return target;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        public String getDurationString() {
+            return Util.getTimeSpanString(getMillis());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers where the PBC utility was found on each node, so that builds do
+ * not pay for tool translation and remote file checks every time.
+ *
+ * Two levels are cached: the installation home translated for a node, and
+ * the verified path and version of the executable under a home once
+ * environment variables are expanded. Everything for a node is forgotten when it
+ * connects or disconnects, and everything is forgotten when the
+ * installations are saved.
+ */
+final class PbcCompileToolCache {
+    private static final char SEP = '\u0000';
+
+    private static final ConcurrentMap<String, String> HOMES = new ConcurrentHashMap<String, String>();
+    private static final ConcurrentMap<String, PbcCompilePreflight.Tool> PATHS = new ConcurrentHashMap<String, PbcCompilePreflight.Tool>();
+
+    private PbcCompileToolCache() {
+    }
+
+    private static String homeKey(String nodeName, PbcCompileInstallation installation) {
+        return nodeName + SEP + installation.getName() + SEP + installation.getHome();
+    }
+
+    private static String pathKey(String nodeName, String home, String execName) {
+        return nodeName + SEP + home + SEP + execName;
+    }
+
+    /** @return the home of the installation translated for the node, or null */
+    static String getHome(String nodeName, PbcCompileInstallation installation) {
+        return HOMES.get(homeKey(nodeName, installation));
+    }
+
+    static void putHome(String nodeName, PbcCompileInstallation installation, String home) {
+        HOMES.put(homeKey(nodeName, installation), home);
+    }
+
+    /** @return the verified executable under a home, or null */
+    static PbcCompilePreflight.Tool getTool(String nodeName, String home, String execName) {
+        return PATHS.get(pathKey(nodeName, home, execName));
+    }
+
+    static void putTool(String nodeName, String home, String execName, PbcCompilePreflight.Tool tool) {
+        PATHS.put(pathKey(nodeName, home, execName), tool);
+    }
+
+    /** Forgets an executable that turned out to be wrong */
+    static void removeTool(String nodeName, String home, String execName) {
+        PATHS.remove(pathKey(nodeName, home, execName));
+    }
+
+    static void invalidate(String nodeName) {
+        removeNode(HOMES, nodeName);
+        removeNode(PATHS, nodeName);
+    }
+
+    static void invalidateAll() {
+        HOMES.clear();
+        PATHS.clear();
+    }
+
+    private static void removeNode(ConcurrentMap<String, ?> map, String nodeName) {
+        String prefix = nodeName + SEP;
+        for (Iterator<String> it = map.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets the tools of a node when it (re)connects or goes away; its file
+     * system may have changed in the meantime.
+     */
+    @Extension
+    public static final class Invalidator extends ComputerListener {
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            invalidate(c.getName());
+        }
+
+        @Override
+        public void onOffline(Computer c, OfflineCause cause) {
+            invalidate(c.getName());
+        }
+    }
+}
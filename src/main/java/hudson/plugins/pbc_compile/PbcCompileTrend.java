@@ -0,0 +1,199 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Errors, warnings and compile time of the builds of a project, as an
+ * append-only file of fixed size records in the project directory. Every
+ * PBC build step appends one record, so reading the last builds never
+ * loads the builds themselves.
+ *
+ * A record is, big endian: build number, errors, warnings, flags (1 when
+ * the compile succeeded), start time of the build and compile time in
+ * milliseconds.
+ */
+public final class PbcCompileTrend {
+    static final String FILE_NAME = "pbc-trend.bin";
+    static final int RECORD_SIZE = 32;
+
+    private static final int SUCCESS = 1;
+    /** Records read at once while going backwards */
+    private static final int CHUNK_RECORDS = 256;
+
+    private PbcCompileTrend() {
+    }
+
+    /**
+     * Appends the record of one build step.
+     */
+    static void append(File projectDir, Record record) throws IOException {
+        File file = new File(projectDir, FILE_NAME);
+        synchronized (PbcCompileTrend.class) {
+            // A record torn by a crash would shift every later one
+            long length = file.length();
+            if (length % RECORD_SIZE != 0) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(length - length % RECORD_SIZE);
+                } finally {
+                    raf.close();
+                }
+            }
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+            try {
+                out.writeInt(record.number);
+                out.writeInt(record.errors);
+                out.writeInt(record.warnings);
+                out.writeInt(record.success ? SUCCESS : 0);
+                out.writeLong(record.timestamp);
+                out.writeLong(record.durationMillis);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the records of the last builds, oldest first. The records of the
+     * build steps of one build are added up.
+     *
+     * @param limit
+     *            Maximum number of builds
+     */
+    static List<Record> read(File projectDir, int limit) throws IOException {
+        File file = new File(projectDir, FILE_NAME);
+        if (!file.isFile() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        // Concurrent builds and parallel steps interleave their records
+        SortedMap<Integer, Record> builds = new TreeMap<Integer, Record>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long end = raf.length() - raf.length() % RECORD_SIZE;
+            byte[] b = new byte[RECORD_SIZE * CHUNK_RECORDS];
+            // A build has a record per PBC step, so read backwards until a
+            // build older than the last limit ones shows up; the oldest of
+            // those is then complete
+            while (end > 0 && builds.size() <= limit) {
+                long start = Math.max(0, end - b.length);
+                int length = (int) (end - start);
+                raf.seek(start);
+                raf.readFully(b, 0, length);
+                ByteBuffer buffer = ByteBuffer.wrap(b, 0, length);
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    Record record = new Record(buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                            (buffer.getInt() & SUCCESS) != 0, buffer.getLong(), buffer.getLong());
+                    Record build = builds.get(record.number);
+                    if (build != null) {
+                        build.add(record);
+                    } else {
+                        builds.put(record.number, record);
+                    }
+                }
+                end = start;
+            }
+        } finally {
+            raf.close();
+        }
+        List<Record> records = new ArrayList<Record>(builds.values());
+        return records.subList(Math.max(0, records.size() - limit), records.size());
+    }
+
+    /**
+     * One build, or one build step while appending.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Record {
+        private final int number;
+        private int errors;
+        private int warnings;
+        private boolean success;
+        private final long timestamp;
+        private long durationMillis;
+
+        Record(int number, int errors, int warnings, boolean success, long timestamp, long durationMillis) {
+            this.number = number;
+            this.errors = errors;
+            this.warnings = warnings;
+            this.success = success;
+            this.timestamp = timestamp;
+            this.durationMillis = durationMillis;
+        }
+
+        private void add(Record other) {
+            errors += other.errors;
+            warnings += other.warnings;
+            success &= other.success;
+            durationMillis += other.durationMillis;
+        }
+
+        @Exported
+        public int getNumber() {
+            return number;
+        }
+
+        @Exported
+        public int getErrors() {
+            return errors;
+        }
+
+        @Exported
+        public int getWarnings() {
+            return warnings;
+        }
+
+        /** @return true if every PBC compile of the build succeeded */
+        @Exported
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /** @return start time of the build */
+        @Exported
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /** @return time spent in the PBC build steps */
+        @Exported
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+    }
+}
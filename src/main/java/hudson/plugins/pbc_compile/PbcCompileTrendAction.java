@@ -0,0 +1,230 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Job;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.TransientActionFactory;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.PlotOrientation;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Trend of the PBC errors, warnings and compile time of a project, read
+ * from the {@link PbcCompileTrend} file of the project.
+ */
+@ExportedBean
+public class PbcCompileTrendAction implements Action {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileTrendAction.class.getName());
+
+    /** Number of builds shown by default */
+    static final int DEFAULT_LIMIT = 100;
+    /** Upper bound of the limit query parameter */
+    static final int MAX_LIMIT = 5000;
+
+    private final Job<?, ?> project;
+
+    public PbcCompileTrendAction(Job<?, ?> project) {
+        this.project = project;
+    }
+
+    public Job<?, ?> getProject() {
+        return project;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.PbcCompileTrendAction_DisplayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "pbcTrend";
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * @return the last builds, oldest first
+     */
+    @Exported
+    public List<PbcCompileTrend.Record> getRecords() {
+        return getRecords(DEFAULT_LIMIT);
+    }
+
+    public List<PbcCompileTrend.Record> getRecords(int limit) {
+        try {
+            return PbcCompileTrend.read(project.getRootDir(), Math.min(limit, MAX_LIMIT));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the PBC trend of " + project.getFullName(), e);
+            return Collections.emptyList();
+        }
+    }
+
+    /** @return true if there is anything to draw */
+    public boolean hasRecords() {
+        return !getRecords(1).isEmpty();
+    }
+
+    /**
+     * Draws the errors and warnings of the last builds.
+     */
+    public void doCountTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        final List<PbcCompileTrend.Record> records = getRecords(limit(req));
+        new Graph(timestamp(records), 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                DataSetBuilder<String, BuildLabel> data = new DataSetBuilder<String, BuildLabel>();
+                for (PbcCompileTrend.Record r : records) {
+                    data.add(r.getErrors(), Messages.PbcCompileTrendAction_Errors(), new BuildLabel(r.getNumber()));
+                    data.add(r.getWarnings(), Messages.PbcCompileTrendAction_Warnings(), new BuildLabel(r.getNumber()));
+                }
+                return chart(data, Messages.PbcCompileTrendAction_Count());
+            }
+        }.doPng(req, rsp);
+    }
+
+    /**
+     * Draws the compile time of the last builds.
+     */
+    public void doDurationTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        final List<PbcCompileTrend.Record> records = getRecords(limit(req));
+        new Graph(timestamp(records), 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                DataSetBuilder<String, BuildLabel> data = new DataSetBuilder<String, BuildLabel>();
+                for (PbcCompileTrend.Record r : records) {
+                    data.add(r.getDurationMillis() / 60000.0, Messages.PbcCompileTrendAction_Duration(),
+                            new BuildLabel(r.getNumber()));
+                }
+                return chart(data, Messages.PbcCompileTrendAction_Minutes());
+            }
+        }.doPng(req, rsp);
+    }
+
+    private static JFreeChart chart(DataSetBuilder<String, BuildLabel> data, String axis) {
+        JFreeChart chart = ChartFactory.createLineChart(null, null, axis, data.build(), PlotOrientation.VERTICAL,
+                true, true, false);
+        chart.setBackgroundPaint(Color.WHITE);
+        return chart;
+    }
+
+    private static int limit(StaplerRequest req) {
+        String limit = req.getParameter("limit");
+        if (limit != null) {
+            try {
+                return Math.max(1, Integer.parseInt(limit));
+            } catch (NumberFormatException e) {
+                // Default below
+            }
+        }
+        return DEFAULT_LIMIT;
+    }
+
+    /** Lets the browser cache a graph until a build is added */
+    private static long timestamp(List<PbcCompileTrend.Record> records) {
+        return records.isEmpty() ? 0 : records.get(records.size() - 1).getTimestamp();
+    }
+
+    /**
+     * Category of a build, ordered by number without loading the build.
+     */
+    static final class BuildLabel implements Comparable<BuildLabel> {
+        private final int number;
+
+        BuildLabel(int number) {
+            this.number = number;
+        }
+
+        @Override
+        public int compareTo(BuildLabel o) {
+            return number < o.number ? -1 : number > o.number ? 1 : 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BuildLabel && ((BuildLabel) o).number == number;
+        }
+
+        @Override
+        public int hashCode() {
+            return number;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + number;
+        }
+    }
+
+    /**
+     * Shows the trend on jobs that run the build step without declaring it,
+     * such as Pipelines. Projects with the builder get it from
+     * {@link PbcCompileBuilder#getProjectActions(AbstractProject)}.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static final class Factory extends TransientActionFactory<Job> {
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+
+        @Override
+        public Collection<? extends Action> createFor(Job target) {
+            if (target instanceof AbstractProject
+                    || !new File(target.getRootDir(), PbcCompileTrend.FILE_NAME).exists()) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new PbcCompileTrendAction(target));
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the PBC installations on a node as soon as it connects, so that
+ * the first build on a fresh agent finds them in {@link PbcCompileToolCache}.
+ * Optionally reads the pbc utilities and the DLLs next to them, to have the
+ * PowerBuilder runtime in the file cache of the node.
+ */
+final class PbcCompileWarmUp {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileWarmUp.class.getName());
+    private static final char SEP = '\u0000';
+
+    /** Warm-ups in progress or done, by node and installation */
+    private static final ConcurrentMap<String, Future<?>> PENDING = new ConcurrentHashMap<String, Future<?>>();
+
+    private PbcCompileWarmUp() {
+    }
+
+    private static String key(String nodeName, String installation) {
+        return nodeName + SEP + installation;
+    }
+
+    /**
+     * Waits for a warm-up of the installation on the node still in progress,
+     * rather than resolving it a second time.
+     */
+    static void await(String nodeName, PbcCompileInstallation installation, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        Future<?> future = PENDING.get(key(nodeName, installation.getName()));
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get(timeout, unit);
+        } catch (ExecutionException e) {
+            // Logged by the warm-up; the build resolves the tool itself
+        } catch (TimeoutException e) {
+            // Same
+        }
+    }
+
+    static void start(final Computer computer) {
+        Jenkins jenkins = Jenkins.getInstance();
+        PbcCompileBuilder.DescriptorImpl descriptor = jenkins != null
+                ? jenkins.getDescriptorByType(PbcCompileBuilder.DescriptorImpl.class) : null;
+        if (descriptor == null) {
+            return;
+        }
+        for (final PbcCompileInstallation installation : descriptor.getInstallations()) {
+            if (!installation.getWarmUp()) {
+                continue;
+            }
+            final String key = key(computer.getName(), installation.getName());
+            PENDING.put(key, Computer.threadPoolForRemoting.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        warmUp(computer, installation);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to warm up " + installation.getName() + " on "
+                                + nameOf(computer), e);
+                    }
+                }
+            }));
+        }
+    }
+
+    /** Stops the warm-ups of a node going offline */
+    static void forget(String nodeName) {
+        String prefix = nodeName + SEP;
+        for (String key : PENDING.keySet()) {
+            if (key.startsWith(prefix)) {
+                Future<?> future = PENDING.remove(key);
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    private static void warmUp(Computer computer, PbcCompileInstallation installation)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        VirtualChannel channel = computer.getChannel();
+        Node node = computer.getNode();
+        FilePath root = node != null ? node.getRootPath() : null;
+        if (root == null || channel == null) {
+            return;
+        }
+        String nodeName = computer.getName();
+        String home = installation.forNode(node, TaskListener.NULL).getHome();
+        if (!isConnected(computer, channel)) {
+            return;
+        }
+        PbcCompileToolCache.putHome(nodeName, installation, home);
+
+        Result result = root.act(new Probe(home, installation.getPrimeFileCache()));
+        if (!isConnected(computer, channel)) {
+            return;
+        }
+        // Homes with variables depend on the build environment
+        if (home != null && home.indexOf('$') < 0) {
+            for (Map.Entry<String, PbcCompilePreflight.Tool> tool : result.tools.entrySet()) {
+                PbcCompileToolCache.putTool(nodeName, home, tool.getKey(), tool.getValue());
+            }
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (result.tools.isEmpty()) {
+            LOGGER.log(Level.WARNING, "No PBC utility for {0} on {1}: {2}",
+                    new Object[] { installation.getName(), nameOf(computer), result.problems });
+        } else {
+            LOGGER.log(Level.FINE, "Warmed up {0} on {1} in {2} ms, {3} bytes read: {4}",
+                    new Object[] { installation.getName(), nameOf(computer), millis, result.primedBytes,
+                            result.tools.keySet() });
+        }
+    }
+
+    /**
+     * Whether the node still has the connection the warm-up started with.
+     * What was found on a connection that went away must not be cached once
+     * {@link PbcCompileToolCache.Invalidator} forgot the node.
+     */
+    private static boolean isConnected(Computer computer, VirtualChannel channel) {
+        return !Thread.currentThread().isInterrupted() && computer.isOnline() && computer.getChannel() == channel;
+    }
+
+    private static String nameOf(Computer computer) {
+        return computer.getName().length() > 0 ? computer.getName() : "master";
+    }
+
+    /**
+     * Finds the pbc utilities of a home on the node, with their versions, and
+     * reads the files of their directories.
+     */
+    static final class Probe extends MasterToSlaveFileCallable<Result> {
+        private static final long serialVersionUID = 1L;
+
+        /** Upper bound of the bytes read to prime the file cache */
+        private static final long MAX_PRIME = 512L * 1024 * 1024;
+
+        private final String home;
+        private final boolean primeFileCache;
+
+        Probe(String home, boolean primeFileCache) {
+            this.home = home;
+            this.primeFileCache = primeFileCache;
+        }
+
+        @Override
+        public Result invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            Result result = new Result();
+            if (home == null) {
+                result.problems.add("No home");
+                return result;
+            }
+            File file = new File(home);
+            File directory;
+            if (file.isFile()) {
+                // Same path as PbcCompilePreflight
+                result.tools.put(file.getName(), new PbcCompilePreflight.Tool(home,
+                        PbcCompilePreflight.readFileVersion(file)));
+                directory = file.getParentFile();
+            } else if (file.isDirectory()) {
+                String prefix = home.endsWith("\\") ? home : home + "\\";
+                File[] executables = file.listFiles();
+                if (executables != null) {
+                    for (File exec : executables) {
+                        String name = exec.getName().toLowerCase();
+                        if (name.startsWith("pbc") && name.endsWith(".exe") && exec.isFile()) {
+                            result.tools.put(exec.getName(), new PbcCompilePreflight.Tool(prefix + exec.getName(),
+                                    PbcCompilePreflight.readFileVersion(exec)));
+                        }
+                    }
+                }
+                if (result.tools.isEmpty()) {
+                    result.problems.add("No pbc*.exe in " + home);
+                }
+                directory = file;
+            } else {
+                result.problems.add(home + " doesn't exist");
+                return result;
+            }
+            if (primeFileCache && directory != null && !result.tools.isEmpty()) {
+                result.primedBytes = prime(directory);
+            }
+            return result;
+        }
+
+        /** Reads the executables and DLLs of a directory, and throws the bytes away */
+        private static long prime(File directory) throws IOException, InterruptedException {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return 0;
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            for (File f : files) {
+                String name = f.getName().toLowerCase();
+                if (!name.endsWith(".dll") && !name.endsWith(".exe") || !f.isFile()) {
+                    continue;
+                }
+                InputStream in = new FileInputStream(f);
+                try {
+                    int n;
+                    while (total < MAX_PRIME && (n = in.read(buffer)) > 0) {
+                        total += n;
+                    }
+                } finally {
+                    in.close();
+                }
+                if (total >= MAX_PRIME) {
+                    break;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Outcome of a {@link Probe}.
+     */
+    static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /** The pbc utilities by file name */
+        private final Map<String, PbcCompilePreflight.Tool> tools = new LinkedHashMap<String, PbcCompilePreflight.Tool>();
+        private final List<String> problems = new ArrayList<String>();
+        private long primedBytes;
+    }
+
+    /**
+     * Starts the warm-ups of a node when it connects. Runs after
+     * {@link PbcCompileToolCache.Invalidator} forgot what was known of the
+     * node.
+     */
+    @Extension(ordinal = -100)
+    public static final class Listener extends ComputerListener {
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            start(c);
+        }
+
+        @Override
+        public void onOffline(Computer c, OfflineCause cause) {
+            forget(c.getName());
+        }
+    }
+}
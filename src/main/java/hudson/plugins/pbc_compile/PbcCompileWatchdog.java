@@ -0,0 +1,261 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import hudson.Proc;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+/**
+ * Stops a PBC compile that hangs, such as one waiting on a locked PBL or a
+ * modal dialog: no output line and no CPU activity of its processes for the
+ * stall timeout. Its last lines and processes are kept to explain the stop.
+ *
+ * The compiles of all builds are checked by one task of {@link Timer}, which
+ * never waits on a node: the CPU time, from the
+ * {@link PbcCompileResourceSampler} of the compile, is requested at one check
+ * and read at the next. Stalled compiles are listed and stopped on threads of
+ * their own, since a node may take long to answer.
+ */
+final class PbcCompileWatchdog {
+    private static final Logger LOGGER = Logger.getLogger(PbcCompileWatchdog.class.getName());
+
+    /** Interval of the checks, in seconds */
+    static final long PERIOD = 15;
+    /** CPU use under which the processes are idle, in percent of one core */
+    static final int IDLE_CPU = 2;
+    /** Number of lines kept to explain a stall */
+    static final int TAIL = 20;
+    /** Longest wait for the processes of a stalled compile, in seconds */
+    static final long TREE_TIMEOUT = 30;
+
+    private static final Set<PbcCompileWatchdog> WATCHED = new CopyOnWriteArraySet<PbcCompileWatchdog>();
+    private static ScheduledFuture<?> task;
+    private static final ExecutorService STOPPER = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "PBC compile watchdog"));
+
+    private final PbcCompilerConsoleAnnotator annotator;
+    private final VirtualChannel channel;
+    private final String cookie;
+    private final long timeout;
+    private final long start = System.nanoTime();
+
+    private Proc proc;
+    /** Last CPU time read, and when it was requested */
+    private long cpu = -1;
+    private long cpuNanos;
+    /** Last time the processes were seen using the CPU */
+    private long activeNanos = start;
+    /** Last interval between samples of the sampler, in milliseconds */
+    private long interval = PbcCompileResourceSampler.INTERVAL;
+    private Future<long[]> poll;
+    private long pollNanos;
+    private boolean stalled;
+    private List<String> processes = Collections.emptyList();
+
+    /**
+     * @param annotator
+     *            The console stage of the compile, which tells the time of
+     *            the last line
+     * @param cookie
+     *            Cookie of the {@link PbcCompileResourceSampler} of the
+     *            compile, or null to only watch the output
+     * @param timeout
+     *            Stall timeout
+     */
+    PbcCompileWatchdog(PbcCompilerConsoleAnnotator annotator, VirtualChannel channel, String cookie, long timeout,
+            TimeUnit unit) {
+        this.annotator = annotator;
+        this.channel = channel;
+        this.cookie = cookie;
+        this.timeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * Sets the process to stop, and starts watching.
+     */
+    synchronized void setProc(Proc proc) {
+        this.proc = proc;
+        watch(this);
+    }
+
+    /**
+     * Stops watching, once the process exited.
+     */
+    synchronized void close() {
+        unwatch(this);
+        if (poll != null) {
+            poll.cancel(true);
+            poll = null;
+        }
+    }
+
+    /** @return true if the compile was stopped as stalled */
+    synchronized boolean isStalled() {
+        return stalled;
+    }
+
+    /** @return the processes of the compile when it was stopped, with their command lines */
+    synchronized List<String> getProcesses() {
+        return processes;
+    }
+
+    synchronized void check() {
+        if (proc == null || stalled) {
+            return;
+        }
+        long now = System.nanoTime();
+        pollCpu(now);
+        long output = annotator.getLines() > 0 ? later(annotator.getLastLineNanos(), start) : start;
+        // The CPU time only moves at each sample, which may be far apart
+        long window = cookie != null ? Math.max(timeout, 2 * TimeUnit.MILLISECONDS.toNanos(interval)) : timeout;
+        if (now - later(output, activeNanos) < window) {
+            return;
+        }
+        stalled = true;
+        final Proc p = proc;
+        STOPPER.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The processes are listed before they are killed
+                List<String> tree = describe();
+                synchronized (PbcCompileWatchdog.this) {
+                    processes = tree;
+                }
+                try {
+                    p.kill();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to stop the stalled PBC compile", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the CPU time requested at the last check, and requests it again.
+     */
+    private void pollCpu(long now) {
+        if (cookie == null) {
+            return;
+        }
+        if (poll != null) {
+            if (!poll.isDone()) {
+                return;
+            }
+            try {
+                long[] value = poll.get();
+                if (value != null) {
+                    if (cpu >= 0 && (value[0] - cpu) * 100 > IDLE_CPU
+                            * TimeUnit.NANOSECONDS.toMillis(pollNanos - cpuNanos)) {
+                        activeNanos = pollNanos;
+                    }
+                    cpu = value[0];
+                    cpuNanos = pollNanos;
+                    interval = value[1];
+                }
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.FINE, "Failed to read the CPU time of a PBC compile", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            poll = null;
+        }
+        try {
+            poll = channel.callAsync(new PbcCompileResourceSampler.Cpu(cookie));
+            pollNanos = now;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to request the CPU time of a PBC compile", e);
+        }
+    }
+
+    private List<String> describe() {
+        if (cookie != null) {
+            try {
+                return channel.callAsync(new PbcCompileResourceSampler.Tree(cookie)).get(TREE_TIMEOUT,
+                        TimeUnit.SECONDS);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to list the processes of a stalled PBC compile", e);
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.FINE, "Failed to list the processes of a stalled PBC compile", e);
+            } catch (TimeoutException e) {
+                LOGGER.log(Level.FINE, "Timed out listing the processes of a stalled PBC compile", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return new ArrayList<String>();
+    }
+
+    /** @return the later of two {@link System#nanoTime()} values */
+    private static long later(long a, long b) {
+        return a - b > 0 ? a : b;
+    }
+
+    private static synchronized void watch(PbcCompileWatchdog watchdog) {
+        WATCHED.add(watchdog);
+        if (task == null) {
+            task = Timer.get().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (PbcCompileWatchdog w : WATCHED) {
+                        try {
+                            w.check();
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "Failed to check a PBC compile for stalls", e);
+                        }
+                    }
+                }
+            }, PERIOD, PERIOD, TimeUnit.SECONDS);
+        }
+    }
+
+    private static synchronized void unwatch(PbcCompileWatchdog watchdog) {
+        WATCHED.remove(watchdog);
+        if (WATCHED.isEmpty() && task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+}
@@ -1,56 +1,345 @@
 package hudson.plugins.pbc_compile;
 
 import hudson.console.LineTransformationOutputStream;
+import hudson.util.ByteArrayOutputStream2;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.regex.Matcher;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Single pass console stage for PBC output: parses the summary counts,
+ * annotates error/warning lines and forwards every line to the build log.
+ */
 public class PbcCompilerConsoleAnnotator extends LineTransformationOutputStream {
     private final OutputStream out;
+    private final PbcCompileLineScanner scanner;
+    private final byte[] prefix;
+    private final String prefixText;
     private final Charset charset;
-    
+    private final ByteArrayOutputStream2 line = new ByteArrayOutputStream2();
+    private final List<PbcCompileDiagnosticListener> listeners = new ArrayList<PbcCompileDiagnosticListener>();
+    private PbcCompileProfiler profiler;
+    private boolean embedNotes = true;
+    private PbcCompileAnnotationIndex.Recorder index;
+    private PbcCompileDuplicateFilter duplicates;
+
     private int numberOfWarnings = 0;
     private int numberOfErrors = 0;
-    
+    private int summaryWarnings = -1;
+    private int summaryErrors = -1;
+
+    private long lines;
+    private long bytes;
+    private long firstLineNanos;
+    private volatile long lastLineNanos;
+    private long consoleNanos;
+    /** Ring of the last lines, as written by PBC, or null */
+    private byte[][] tail;
+    private int[] tailLengths;
+    private int tailNext;
+
     public PbcCompilerConsoleAnnotator(OutputStream out, Charset charset) {
+        this(out, charset, null);
+    }
+
+    /**
+     * @param prefix
+     *            Written in front of every line, to tell apart the output of
+     *            concurrent compiles; may be null
+     */
+    public PbcCompilerConsoleAnnotator(OutputStream out, Charset charset, String prefix) {
         this.out = out;
+        this.scanner = new PbcCompileLineScanner(charset);
+        this.prefix = prefix != null ? prefix.getBytes(charset) : null;
+        this.prefixText = prefix;
         this.charset = charset;
     }
-    
+
+    /**
+     * Registers a listener for the errors and warnings found in the output.
+     * Diagnostics are only decoded when there is at least one listener.
+     */
+    public void addDiagnosticListener(PbcCompileDiagnosticListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param embedNotes
+     *            If false, errors and warnings are written without console
+     *            notes, to be annotated when the log is rendered
+     */
+    void setEmbedNotes(boolean embedNotes) {
+        this.embedNotes = embedNotes;
+    }
+
+    /**
+     * Records the error and warning lines, as written to the log, for render
+     * time annotation.
+     */
+    void setAnnotationIndex(PbcCompileAnnotationIndex.Recorder index) {
+        this.index = index;
+    }
+
+    /**
+     * Leaves repeated errors and warnings out of the log.
+     */
+    void setDuplicateFilter(PbcCompileDuplicateFilter duplicates) {
+        this.duplicates = duplicates;
+    }
+
+    /**
+     * Keeps the last lines of the output, to explain a stall.
+     */
+    void setTail(int size) {
+        this.tail = new byte[size][];
+        this.tailLengths = new int[size];
+    }
+
+    /**
+     * Times the objects compiled, from the progress lines of the output.
+     */
+    void setProfiler(PbcCompileProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * @return the number of warnings reported by the PBC summary, or the
+     *         number of annotated warning lines if no summary was printed
+     */
     public int getNumberOfWarnings() {
-        return numberOfWarnings;
+        return summaryWarnings >= 0 ? summaryWarnings : numberOfWarnings;
     }
-    
+
+    /**
+     * @return the number of errors reported by the PBC summary, or the
+     *         number of annotated error lines if no summary was printed
+     */
     public int getNumberOfErrors() {
-        return numberOfErrors;
+        return summaryErrors >= 0 ? summaryErrors : numberOfErrors;
     }
-    
+
+    /** @return lines of output processed so far */
+    long getLines() {
+        return lines;
+    }
+
+    /** @return bytes of output processed so far */
+    long getBytes() {
+        return bytes;
+    }
+
+    /** @return {@link System#nanoTime()} of the first line, if {@link #getLines()} isn't 0 */
+    long getFirstLineNanos() {
+        return firstLineNanos;
+    }
+
+    /** @return {@link System#nanoTime()} of the last line, if {@link #getLines()} isn't 0 */
+    long getLastLineNanos() {
+        return lastLineNanos;
+    }
+
+    /** @return the last lines kept by {@link #setTail(int)}, oldest first */
+    List<String> getTail() {
+        List<String> result = new ArrayList<String>();
+        if (tail != null) {
+            synchronized (tail) {
+                // Decoded only when asked for, which is rare
+                for (int i = 0; i < tail.length; i++) {
+                    int n = (tailNext + i) % tail.length;
+                    if (tail[n] != null) {
+                        result.add(trimEOL(new String(tail[n], 0, tailLengths[n], charset)));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /** @return time spent processing the output, in nanoseconds */
+    long getConsoleNanos() {
+        return consoleNanos;
+    }
+
     @Override
     protected void eol(byte[] b, int len) throws IOException {
-        String line = charset.decode(ByteBuffer.wrap(b, 0, len)).toString();
-        
-        // trim off CR/LF from the end
-        line = trimEOL(line);
-        
-        // Error messages handler
-        Matcher m = PbcCompileErrorNote.PATTERN.matcher(line);
-        if (m.matches()) { // Match the number of warnings
-            new PbcCompileErrorNote().encodeTo(out);
-            this.numberOfErrors++;
-        }
-        
-        // Warning messages handler
-        m = PbcCompileWarningNote.PATTERN.matcher(line);
-        if (m.matches()) { // Match the number of warnings
-            new PbcCompileWarningNote().encodeTo(out);
-            this.numberOfWarnings++;
-        }
-        
-        out.write(b, 0, len);
-    }
-    
+        long start = System.nanoTime();
+        if (lines++ == 0) {
+            firstLineNanos = start;
+        }
+        lastLineNanos = start;
+        bytes += len;
+        if (tail != null) {
+            synchronized (tail) {
+                // The buffers of the ring are reused
+                byte[] t = tail[tailNext];
+                if (t == null || t.length < len) {
+                    t = tail[tailNext] = new byte[Math.max(len, 128)];
+                }
+                System.arraycopy(b, 0, t, 0, len);
+                tailLengths[tailNext] = len;
+                tailNext = (tailNext + 1) % tail.length;
+            }
+        }
+        annotate(b, len, start);
+        consoleNanos += System.nanoTime() - start;
+    }
+
+    private void annotate(byte[] b, int len, long nanos) throws IOException {
+        int kind = scanner.scan(b, len);
+        if (kind == 0 && profiler != null) {
+            profiler.onLine(scanner.getBuffer(), scanner.getLength(), scanner.getBufferCharset(), nanos);
+        }
+
+        if (kind == 0 && prefix == null) {
+            out.write(b, 0, len);
+            return;
+        }
+
+        // Notes, prefix and line go out in one write, so that lines of
+        // concurrent compiles sharing the log cannot interleave
+        line.reset();
+        if (kind != 0) {
+            // Summary handler
+            if ((kind & PbcCompileLineScanner.SUMMARY_WARNINGS) != 0) {
+                summaryWarnings = scanner.getSummaryCount();
+            } else if ((kind & PbcCompileLineScanner.SUMMARY_ERRORS) != 0) {
+                summaryErrors = scanner.getSummaryCount();
+            }
+
+            // Error messages handler
+            if ((kind & PbcCompileLineScanner.ERROR) != 0) {
+                if (embedNotes) {
+                    new PbcCompileErrorNote().encodeTo(line);
+                }
+                this.numberOfErrors++;
+                if (!listeners.isEmpty()) {
+                    fireDiagnostic(errorDiagnostic());
+                }
+            }
+
+            // Warning messages handler
+            if ((kind & PbcCompileLineScanner.WARNING) != 0) {
+                if (embedNotes) {
+                    new PbcCompileWarningNote().encodeTo(line);
+                }
+                this.numberOfWarnings++;
+                if (!listeners.isEmpty()) {
+                    fireDiagnostic(warningDiagnostic());
+                }
+            }
+
+            if (duplicates != null && (kind & (PbcCompileLineScanner.ERROR | PbcCompileLineScanner.WARNING)) != 0) {
+                long hash = diagnosticHash(kind);
+                int count = duplicates.add(hash);
+                if (count > 1) {
+                    if (count == 2) {
+                        duplicates.describe(hash, text(0, scanner.getLength()));
+                    }
+                    // Counted and reported, but left out of the log
+                    return;
+                }
+            }
+
+            if (index != null && (kind & (PbcCompileLineScanner.ERROR | PbcCompileLineScanner.WARNING)) != 0) {
+                String text = new String(b, 0, len, charset);
+                index.add(kind, prefixText != null ? prefixText + text : text);
+            }
+        }
+        if (prefix != null) {
+            line.write(prefix);
+        } else if (line.size() == 0) {
+            out.write(b, 0, len);
+            return;
+        }
+        line.write(b, 0, len);
+        out.write(line.getBuffer(), 0, line.size());
+    }
+
+    /**
+     * Processes a last line without line terminator, once the output ended.
+     */
+    void finish() throws IOException {
+        forceEol();
+        if (profiler != null) {
+            profiler.finish(System.nanoTime());
+        }
+    }
+
+    private void fireDiagnostic(PbcCompileDiagnostic diagnostic) throws IOException {
+        for (PbcCompileDiagnosticListener listener : listeners) {
+            listener.onDiagnostic(diagnostic);
+        }
+    }
+
+    private PbcCompileDiagnostic errorDiagnostic() {
+        return new PbcCompileDiagnostic(PbcCompileDiagnostic.Kind.ERROR,
+                text(0, scanner.getErrorStart()).trim(),
+                -1, -1,
+                code(scanner.getErrorCodeStart(), scanner.getErrorCodeEnd()),
+                text(scanner.getErrorMessageStart(), scanner.getLength()));
+    }
+
+    private PbcCompileDiagnostic warningDiagnostic() {
+        int columnStart = scanner.getWarningColumnStart();
+        return new PbcCompileDiagnostic(PbcCompileDiagnostic.Kind.WARNING,
+                text(0, scanner.getWarningStart()).trim(),
+                number(scanner.getWarningLineStart(), scanner.getWarningLineEnd()),
+                columnStart < 0 ? -1 : number(columnStart, scanner.getWarningColumnEnd()),
+                code(scanner.getWarningCodeStart(), scanner.getWarningCodeEnd()),
+                text(scanner.getWarningMessageStart(), scanner.getLength()));
+    }
+
+    /** Hash of the kind, object, code and message of the diagnostic of the line */
+    private long diagnosticHash(int kind) {
+        long hash = 0xcbf29ce484222325L;
+        if ((kind & PbcCompileLineScanner.ERROR) != 0) {
+            hash = hash(hash, 0, scanner.getErrorStart());
+            hash = hash(hash, scanner.getErrorCodeStart(), scanner.getErrorCodeEnd());
+            hash = hash(hash, scanner.getErrorMessageStart(), scanner.getLength());
+        } else {
+            hash = hash(hash ^ 1, 0, scanner.getWarningStart());
+            hash = hash(hash, scanner.getWarningCodeStart(), scanner.getWarningCodeEnd());
+            hash = hash(hash, scanner.getWarningMessageStart(), scanner.getLength());
+        }
+        return hash;
+    }
+
+    /** FNV-1a of a slice of the line without surrounding whitespace, then a separator */
+    private long hash(long hash, int start, int end) {
+        byte[] b = scanner.getBuffer();
+        while (start < end && (b[start] == ' ' || b[start] == '\t')) {
+            start++;
+        }
+        while (end > start && (b[end - 1] == ' ' || b[end - 1] == '\t')) {
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            hash ^= b[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return (hash ^ 0xFF) * 0x100000001b3L;
+    }
+
+    private String text(int start, int end) {
+        return new String(scanner.getBuffer(), start, end - start, scanner.getBufferCharset());
+    }
+
+    private String code(int start, int end) {
+        return start == end ? null : text(start, end);
+    }
+
+    /** Parses ASCII digits, saturating instead of overflowing */
+    private int number(int start, int end) {
+        byte[] b = scanner.getBuffer();
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = Math.min(Integer.MAX_VALUE, value * 10 + (b[i] - '0'));
+        }
+        return (int) value;
+    }
+
     @Override
     public void close() throws IOException {
         super.close();
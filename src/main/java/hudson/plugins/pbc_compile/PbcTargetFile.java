@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014, Kyle Sweeney, Gregory Boissinot and other contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.pbc_compile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of a PowerBuilder target (.pbt) file the plugin cares about: the
+ * application object and the library list.
+ */
+public final class PbcTargetFile implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final Pattern APPNAME = Pattern.compile("^\\s*appname\\s+\"(.*)\"\\s*;", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+    private static final Pattern APPLIB = Pattern.compile("^\\s*applib\\s+\"(.*)\"\\s*;", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+    private static final Pattern LIBLIST = Pattern.compile("^\\s*LibList\\s+\"(.*)\"\\s*;", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+
+    private final String appName;
+    private final String appLib;
+    private final List<String> libraries;
+
+    PbcTargetFile(String appName, String appLib, List<String> libraries) {
+        this.appName = appName;
+        this.appLib = appLib;
+        this.libraries = Collections.unmodifiableList(libraries);
+    }
+
+    /** @return the application object name, or null */
+    public String getAppName() {
+        return appName;
+    }
+
+    /** @return the library holding the application object, or null */
+    public String getAppLib() {
+        return appLib;
+    }
+
+    /** @return the library list, as written in the target file */
+    public List<String> getLibraries() {
+        return libraries;
+    }
+
+    /**
+     * @return the library list resolved against the directory of the target
+     *         file
+     */
+    public List<File> resolveLibraries(File pbt) {
+        List<File> files = new ArrayList<File>(libraries.size());
+        for (String library : libraries) {
+            files.add(resolve(pbt.getParentFile(), library));
+        }
+        return files;
+    }
+
+    /**
+     * Resolves a path from a target file or the PBC command line, which uses
+     * Windows separators, against a base directory.
+     */
+    static File resolve(File base, String path) {
+        String p = path.replace('\\', File.separatorChar).replace('/', File.separatorChar);
+        File f = new File(p);
+        if (f.isAbsolute() || base == null || path.matches("^[A-Za-z]:.*") || path.startsWith("\\\\")) {
+            return f;
+        }
+        return new File(base, p);
+    }
+
+    public static PbcTargetFile parse(File pbt) throws IOException {
+        return parse(read(pbt));
+    }
+
+    static PbcTargetFile parse(String content) {
+        List<String> libraries = new ArrayList<String>();
+        Matcher m = LIBLIST.matcher(content);
+        if (m.find()) {
+            for (String library : unescape(m.group(1)).split(";")) {
+                if (library.trim().length() > 0) {
+                    libraries.add(library.trim());
+                }
+            }
+        }
+        return new PbcTargetFile(group(APPNAME, content), group(APPLIB, content), libraries);
+    }
+
+    private static String group(Pattern pattern, String content) {
+        Matcher m = pattern.matcher(content);
+        return m.find() ? unescape(m.group(1)) : null;
+    }
+
+    /** Target files double the backslashes in paths */
+    private static String unescape(String s) {
+        return s.replace("\\\\", "\\");
+    }
+
+    /**
+     * Reads a target file, which PowerBuilder writes either as ANSI or as
+     * UTF-16LE/UTF-8 with a byte order mark.
+     */
+    private static String read(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                bytes.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        byte[] b = bytes.toByteArray();
+        if (b.length >= 2 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xFE) {
+            return new String(b, 2, b.length - 2, Charset.forName("UTF-16LE"));
+        }
+        if (b.length >= 3 && (b[0] & 0xFF) == 0xEF && (b[1] & 0xFF) == 0xBB && (b[2] & 0xFF) == 0xBF) {
+            return new String(b, 3, b.length - 3, Charset.forName("UTF-8"));
+        }
+        return new String(b, Charset.forName("windows-1252"));
+    }
+}
@@ -0,0 +1,81 @@
+package hudson.plugins.pbc_compile;
+
+import hudson.FilePath;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PbcCompileBlobStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FilePath file(String name, String content) throws IOException {
+        File file = tmp.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return new FilePath(file);
+    }
+
+    private static String hash(FilePath file) throws Exception {
+        return PbcCompileFingerprint.toHex(PbcCompileFingerprint.digest(new File(file.getRemote())));
+    }
+
+    @Test
+    public void shouldCountReferencesAcrossBuildSteps() throws Exception {
+        File root = tmp.newFolder("store");
+        FilePath app = file("app.exe", "app");
+        FilePath lib = file("lib.pbd", "lib");
+        String a = hash(app);
+        String l = hash(lib);
+
+        // Build 1 has two steps, build 2 one step sharing a blob
+        assertEquals(3, PbcCompileBlobStore.acquire(root, a, app));
+        assertEquals(3, PbcCompileBlobStore.acquire(root, l, lib));
+        PbcCompileBlobStore.register(root, "job", 1, 1, Arrays.asList(a, l));
+        assertEquals(0, PbcCompileBlobStore.acquire(root, a, app));
+        PbcCompileBlobStore.register(root, "job", 1, 2, Collections.singletonList(a));
+        assertEquals(0, PbcCompileBlobStore.acquire(root, l, lib));
+        PbcCompileBlobStore.register(root, "job", 2, 1, Collections.singletonList(l));
+        assertEquals(2, PbcCompileBlobStore.refs(root, a));
+        assertEquals(2, PbcCompileBlobStore.refs(root, l));
+
+        PbcCompileBlobStore.unregister(root, "job", 1);
+        assertEquals(0, PbcCompileBlobStore.refs(root, a));
+        assertEquals(1, PbcCompileBlobStore.refs(root, l));
+        assertFalse(PbcCompileBlobStore.blob(root, a).exists());
+        assertTrue(PbcCompileBlobStore.blob(root, l).isFile());
+
+        PbcCompileBlobStore.unregister(root, "job");
+        assertEquals(0, PbcCompileBlobStore.refs(root, l));
+        assertFalse(PbcCompileBlobStore.blob(root, l).exists());
+    }
+
+    @Test
+    public void shouldNotConfuseBuildsSharingADigitPrefix() throws Exception {
+        File root = tmp.newFolder("store");
+        FilePath app = file("app.exe", "app");
+        String a = hash(app);
+        PbcCompileBlobStore.acquire(root, a, app);
+        PbcCompileBlobStore.register(root, "job", 1, 1, Collections.singletonList(a));
+        PbcCompileBlobStore.acquire(root, a, app);
+        PbcCompileBlobStore.register(root, "job", 11, 1, Collections.singletonList(a));
+
+        PbcCompileBlobStore.unregister(root, "job", 1);
+        assertEquals(1, PbcCompileBlobStore.refs(root, a));
+    }
+}
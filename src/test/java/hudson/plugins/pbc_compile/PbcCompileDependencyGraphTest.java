@@ -0,0 +1,81 @@
+package hudson.plugins.pbc_compile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PbcCompileDependencyGraphTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static PbcCompileDependencyGraph.Parsed target(String pbt, String appLib, String... libraries) {
+        return new PbcCompileDependencyGraph.Parsed(0, pbt, appLib, Arrays.asList(libraries));
+    }
+
+    /** app uses the library of common, tools stands alone */
+    private static PbcCompileDependencyGraph graph() {
+        return new PbcCompileDependencyGraph(Arrays.asList(
+                target("app/app.pbt", "app/app.pbl", "app/app.pbl", "common/common.pbl"),
+                target("common/common.pbt", "common/common.pbl", "common/common.pbl"),
+                target("tools/tools.pbt", "tools/tools.pbl", "tools/tools.pbl")));
+    }
+
+    @Test
+    public void shouldOrderDependenciesFirst() {
+        PbcCompileDependencyGraph graph = graph();
+        assertTrue(graph.isComplete());
+        assertEquals(Collections.singleton(1), graph.getDependencies(0));
+        assertEquals(Arrays.asList(1, 0, 2), graph.order());
+    }
+
+    @Test
+    public void shouldBreakCycles() {
+        PbcCompileDependencyGraph graph = new PbcCompileDependencyGraph(Arrays.asList(
+                target("a.pbt", "a.pbl", "a.pbl", "b.pbl"),
+                target("b.pbt", "b.pbl", "b.pbl", "a.pbl")));
+        assertEquals(Arrays.asList(0, 1), graph.order());
+    }
+
+    @Test
+    public void shouldSelectAffectedTargetsAndTheirDependents() {
+        PbcCompileDependencyGraph graph = graph();
+        assertEquals(Arrays.asList(2), graph.affected(Arrays.asList("tools/tools.pbl")));
+        assertEquals(Arrays.asList(0), graph.affected(Arrays.asList("app/app.pbt")));
+        // Exported source next to a library, from another checkout root, with Windows separators
+        assertEquals(Arrays.asList(1, 0), graph.affected(Arrays.asList("Common\\W_Common.srw")));
+        // Library folder of PowerBuilder 2019 R2
+        assertEquals(Arrays.asList(0), graph.affected(Arrays.asList("./app/app.pbl/w_main.srw")));
+        assertEquals(Arrays.asList(1, 0, 2),
+                graph.affected(Arrays.asList("tools/tools.pbl", "common/common.pbl")));
+        List<Integer> none = graph.affected(Arrays.asList("readme.txt", "app/notes.txt"));
+        assertTrue(none.isEmpty());
+    }
+
+    @Test
+    public void shouldBeIncompleteWithoutTargetFile() {
+        PbcCompileDependencyGraph graph = new PbcCompileDependencyGraph(Arrays.asList(
+                target("a.pbt", "a.pbl", "a.pbl"), null));
+        assertFalse(graph.isComplete());
+    }
+
+    @Test
+    public void shouldLocateChangedFilesInTheWorkspace() throws Exception {
+        tmp.newFolder("app");
+        tmp.newFile("app/app.pbt");
+        assertTrue(PbcCompileDependencyGraph.Locate.locate(tmp.getRoot(), Arrays.asList("app/app.pbt")));
+        // Deleted, in a directory of the workspace
+        assertTrue(PbcCompileDependencyGraph.Locate.locate(tmp.getRoot(), Arrays.asList("./app\\w_old.srw")));
+        // Relative to another root than the workspace
+        assertFalse(PbcCompileDependencyGraph.Locate.locate(tmp.getRoot(),
+                Arrays.asList("trunk/app/app.pbt", "readme.txt")));
+    }
+}
@@ -0,0 +1,84 @@
+package hudson.plugins.pbc_compile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class PbcCompileDiagnosticsRecorderTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** Writes a file with a valid header followed by the given ints */
+    private File write(int... ints) throws IOException {
+        File file = tmp.newFile();
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(0x50424344);
+            out.writeInt(1);
+            for (int i : ints) {
+                out.writeInt(i);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void assertDamaged(File file) {
+        try {
+            PbcCompileDiagnosticsRecorder.read(file);
+            fail("Read a damaged file");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldReadWhatWasWritten() throws Exception {
+        PbcCompileDiagnosticsRecorder recorder = new PbcCompileDiagnosticsRecorder();
+        recorder.onDiagnostic(new PbcCompileDiagnostic(PbcCompileDiagnostic.Kind.ERROR, "w_main.of_init", 12, -1,
+                "C0001", "Illegal data type"));
+        recorder.onDiagnostic(new PbcCompileDiagnostic(PbcCompileDiagnostic.Kind.WARNING, null, -1, -1, null,
+                "caf\u00e9"));
+        File file = tmp.newFile();
+        recorder.write(file);
+
+        List<PbcCompileDiagnostic> diagnostics = PbcCompileDiagnosticsRecorder.read(file);
+        assertEquals(2, diagnostics.size());
+        assertEquals(PbcCompileDiagnostic.Kind.ERROR, diagnostics.get(0).getKind());
+        assertEquals("w_main.of_init", diagnostics.get(0).getObject());
+        assertEquals(12, diagnostics.get(0).getLine());
+        assertEquals(-1, diagnostics.get(0).getColumn());
+        assertEquals("C0001", diagnostics.get(0).getCode());
+        assertEquals(PbcCompileDiagnostic.Kind.WARNING, diagnostics.get(1).getKind());
+        assertNull(diagnostics.get(1).getObject());
+        assertEquals("caf\u00e9", diagnostics.get(1).getMessage());
+    }
+
+    @Test
+    public void shouldRejectDamagedFiles() throws Exception {
+        // Counts the file can't hold are refused before anything is allocated
+        assertDamaged(write(Integer.MAX_VALUE, 0));
+        assertDamaged(write(-1, 0));
+        assertDamaged(write(0, Integer.MAX_VALUE));
+        // A string length of 0x7fffffff as a variable length integer
+        assertDamaged(write(0, 1, 0xffffffff, 0x07000000));
+        // One record with an unknown kind, then one pointing past the empty string table
+        assertDamaged(write(1, 0, 0x09000000, 0));
+        assertDamaged(write(1, 0, 0x00050000, 0));
+        // Truncated
+        assertDamaged(write(1));
+    }
+}
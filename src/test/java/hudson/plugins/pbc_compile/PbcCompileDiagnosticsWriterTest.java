@@ -0,0 +1,26 @@
+package hudson.plugins.pbc_compile;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PbcCompileDiagnosticsWriterTest {
+
+    private static String string(String s) {
+        StringBuilder sb = new StringBuilder();
+        PbcCompileDiagnosticsWriter.string(sb, s);
+        return sb.toString();
+    }
+
+    @Test
+    public void shouldEscapeJsonStrings() {
+        assertEquals("null", string(null));
+        assertEquals("\"\"", string(""));
+        assertEquals("\"w_main.of_init\"", string("w_main.of_init"));
+        assertEquals("\"say \\\"hi\\\"\"", string("say \"hi\""));
+        assertEquals("\"C:\\\\pb\\\\app.pbl\"", string("C:\\pb\\app.pbl"));
+        assertEquals("\"a\\nb\\rc\\td\"", string("a\nb\rc\td"));
+        assertEquals("\"\\u0000\\u001f\\u0008\"", string("\u0000\u001f\b"));
+        assertEquals("\"caf\u00e9 \u20ac /\"", string("caf\u00e9 \u20ac /"));
+    }
+}
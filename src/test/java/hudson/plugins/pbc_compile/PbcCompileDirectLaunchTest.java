@@ -0,0 +1,83 @@
+package hudson.plugins.pbc_compile;
+
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs a stub pbc utility the way the builder does with directLaunch: no
+ * cmd.exe wrapper, its output going through the decoder into the annotator.
+ */
+public class PbcCompileDirectLaunchTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset CP1252 = Charset.forName("windows-1252");
+
+    private static final String OUTPUT = "Compiling w_caf\u00e9\r\n"
+            + "w_main.of_init Error C0001: Ill\u00e9gal data type\r\n"
+            + "w_main.of_init(12,4): Warning C0014: Undefined variable\r\n"
+            + "    1 Error(s)\r\n"
+            + "    1 Warning(s)\r\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private PbcCompilerConsoleAnnotator annotator;
+
+    @Before
+    public void setUp() {
+        assumeTrue(new File("/bin/sh").isFile());
+        annotator = new PbcCompilerConsoleAnnotator(log, UTF8);
+        annotator.setEmbedNotes(false);
+    }
+
+    /** Runs a stub writing the given bytes and failing, as the pbc utility would */
+    private String run(byte[] output, Charset outputCharset) throws Exception {
+        OutputStream out = new FileOutputStream(new File(tmp.getRoot(), "output.bin"));
+        try {
+            out.write(output);
+        } finally {
+            out.close();
+        }
+        PbcCompileOutputDecoder decoder = new PbcCompileOutputDecoder(annotator, outputCharset, UTF8);
+        int exitCode = new Launcher.LocalLauncher(TaskListener.NULL).launch()
+                .cmds("sh", "-c", "cat output.bin; exit 1").stdout(decoder).pwd(tmp.getRoot()).start().join();
+        decoder.finish();
+        annotator.finish();
+        assertEquals(1, exitCode);
+        return new String(log.toByteArray(), UTF8);
+    }
+
+    @Test
+    public void shouldDecodeUtf16Output() throws Exception {
+        byte[] text = OUTPUT.getBytes("UTF-16LE");
+        byte[] output = new byte[text.length + 2];
+        output[0] = (byte) 0xFF;
+        output[1] = (byte) 0xFE;
+        System.arraycopy(text, 0, output, 2, text.length);
+
+        assertEquals(OUTPUT, run(output, CP1252));
+        assertEquals(1, annotator.getNumberOfErrors());
+        assertEquals(1, annotator.getNumberOfWarnings());
+    }
+
+    @Test
+    public void shouldTranscodeTheOutputCharset() throws Exception {
+        assertEquals(OUTPUT, run(OUTPUT.getBytes(CP1252), CP1252));
+        assertEquals(1, annotator.getNumberOfErrors());
+        assertEquals(1, annotator.getNumberOfWarnings());
+    }
+}
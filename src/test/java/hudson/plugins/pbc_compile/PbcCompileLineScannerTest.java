@@ -0,0 +1,108 @@
+package hudson.plugins.pbc_compile;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PbcCompileLineScannerTest {
+
+    private static final Pattern SUMMARY_WARNINGS = Pattern.compile(".*?(\\d+)\\sWarning\\(s\\).*");
+    private static final Pattern SUMMARY_ERRORS = Pattern.compile(".*?(\\d+)\\sError\\(s\\).*");
+
+    private static int scan(PbcCompileLineScanner scanner, String line, Charset charset) {
+        byte[] b = (line + "\r\n").getBytes(charset);
+        return scanner.scan(b, b.length);
+    }
+
+    @Test
+    public void shouldClassifyTypicalLines() {
+        Charset utf8 = Charset.forName("UTF-8");
+        PbcCompileLineScanner scanner = new PbcCompileLineScanner(utf8);
+
+        assertEquals(0, scan(scanner, "Compiling w_main", utf8));
+        assertEquals(PbcCompileLineScanner.ERROR, scan(scanner, "w_main.of_init Error C0001: Illegal data type", utf8));
+        assertEquals(PbcCompileLineScanner.ERROR, scan(scanner, "app.pbl(w_main) error 1: Illegal data type", utf8));
+        assertEquals(PbcCompileLineScanner.WARNING, scan(scanner, "w_main.of_init(12,4): Warning C0014: Undefined variable", utf8));
+        assertEquals(PbcCompileLineScanner.WARNING, scan(scanner, "n_cst(7): warning 42: Unreferenced variable", utf8));
+        assertEquals(0, scan(scanner, "Error(s) ahead", utf8));
+
+        assertEquals(PbcCompileLineScanner.SUMMARY_WARNINGS, scan(scanner, "    12 Warning(s)", utf8));
+        assertEquals(12, scanner.getSummaryCount());
+        assertEquals(PbcCompileLineScanner.SUMMARY_ERRORS, scan(scanner, "    3 Error(s)", utf8));
+        assertEquals(3, scanner.getSummaryCount());
+    }
+
+    @Test
+    public void shouldExposeWarningOffsets() {
+        Charset utf8 = Charset.forName("UTF-8");
+        PbcCompileLineScanner scanner = new PbcCompileLineScanner(utf8);
+        String line = "w_main.of_init(12,4): Warning C0014: Undefined variable";
+
+        assertEquals(PbcCompileLineScanner.WARNING, scan(scanner, line, utf8));
+        assertEquals("w_main.of_init", line.substring(0, scanner.getWarningStart()));
+        assertEquals("12", line.substring(scanner.getWarningLineStart(), scanner.getWarningLineEnd()));
+        assertEquals("4", line.substring(scanner.getWarningColumnStart(), scanner.getWarningColumnEnd()));
+        assertEquals("C0014", line.substring(scanner.getWarningCodeStart(), scanner.getWarningCodeEnd()));
+        assertEquals("Undefined variable", line.substring(scanner.getWarningMessageStart(), scanner.getLength()));
+    }
+
+    @Test
+    public void shouldDetectAsciiCompatibleCharsets() {
+        assertTrue(PbcCompileLineScanner.isAsciiCompatible(Charset.forName("UTF-8")));
+        assertTrue(PbcCompileLineScanner.isAsciiCompatible(Charset.forName("windows-1252")));
+        assertTrue(PbcCompileLineScanner.isAsciiCompatible(Charset.forName("ISO-8859-1")));
+        assertFalse(PbcCompileLineScanner.isAsciiCompatible(Charset.forName("UTF-16")));
+    }
+
+    @Test
+    public void shouldAgreeWithPatterns() {
+        String[] tokens = { "Error", "error", "Warning", "warning", "(", "(12", ",3", ")", ":", " ", "\t", "C",
+                "AB", "12", "x", "w_main", "\r", "Warning(s)", "Error(s)", "0 ", "\u00e9" };
+        Random random = new Random(42);
+        for (String name : new String[] { "UTF-8", "windows-1252", "UTF-16" }) {
+            Charset charset = Charset.forName(name);
+            PbcCompileLineScanner scanner = new PbcCompileLineScanner(charset);
+            for (int n = 0; n < 50000; n++) {
+                StringBuilder sb = new StringBuilder();
+                int count = random.nextInt(12);
+                for (int i = 0; i < count; i++) {
+                    sb.append(tokens[random.nextInt(tokens.length)]);
+                }
+                String line = sb.toString();
+                String trimmed = line.replaceAll("[\r\n]+$", "");
+
+                int expected = 0;
+                int summaryCount = -1;
+                if (PbcCompileErrorNote.PATTERN.matcher(trimmed).matches()) {
+                    expected |= PbcCompileLineScanner.ERROR;
+                }
+                if (PbcCompileWarningNote.PATTERN.matcher(trimmed).matches()) {
+                    expected |= PbcCompileLineScanner.WARNING;
+                }
+                Matcher m = SUMMARY_WARNINGS.matcher(trimmed);
+                if (m.matches()) {
+                    expected |= PbcCompileLineScanner.SUMMARY_WARNINGS;
+                    summaryCount = Integer.parseInt(m.group(1));
+                } else {
+                    m = SUMMARY_ERRORS.matcher(trimmed);
+                    if (m.matches()) {
+                        expected |= PbcCompileLineScanner.SUMMARY_ERRORS;
+                        summaryCount = Integer.parseInt(m.group(1));
+                    }
+                }
+
+                assertEquals(name + ": " + line, expected, scan(scanner, line, charset));
+                if (summaryCount >= 0) {
+                    assertEquals(name + ": " + line, summaryCount, scanner.getSummaryCount());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package hudson.plugins.pbc_compile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PbcCompileOutputCacheTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File cache;
+    private File ws;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = tmp.newFolder("cache");
+        ws = tmp.newFolder("ws");
+    }
+
+    private static File write(File dir, String path, String content) throws IOException {
+        File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String read(File dir, String path) throws IOException {
+        return new String(Files.readAllBytes(new File(dir, path).toPath()), UTF8);
+    }
+
+    private boolean publish(String hash, long maxBytes, String... paths) throws Exception {
+        List<String> outputs = new ArrayList<String>();
+        for (String path : paths) {
+            outputs.add(new File(ws, path).getAbsolutePath());
+        }
+        return new PbcCompileOutputCache.Publish(cache.getPath(), hash, outputs, 0, 0, maxBytes).invoke(ws, null);
+    }
+
+    private int restore(String hash, File target) throws Exception {
+        int[] restored = new PbcCompileOutputCache.Restore(cache.getPath(), hash).invoke(target, null);
+        return restored == null ? -1 : restored[0];
+    }
+
+    @Test
+    public void shouldRestoreWhatWasPublished() throws Exception {
+        write(ws, "app/app.exe", "executable");
+        write(ws, "app/app.pbd", "dynamic library");
+        // Outside of the workspace, not cached
+        File outside = write(tmp.getRoot(), "other.exe", "other");
+        List<String> outputs = Arrays.asList(new File(ws, "app/app.exe").getAbsolutePath(),
+                new File(ws, "app/app.pbd").getAbsolutePath(), outside.getAbsolutePath());
+        assertTrue(new PbcCompileOutputCache.Publish(cache.getPath(), "aa01", outputs, 3, 1, 0).invoke(ws, null));
+        assertFalse(publish("aa01", 0, "app/app.exe"));
+
+        File other = tmp.newFolder("other");
+        write(other, "app/app.exe", "stale executable");
+        // The warnings and errors of the compile are restored along with its outputs
+        assertArrayEquals(new int[] {2, 3, 1},
+                new PbcCompileOutputCache.Restore(cache.getPath(), "aa01").invoke(other, null));
+        assertEquals("executable", read(other, "app/app.exe"));
+        assertEquals("dynamic library", read(other, "app/app.pbd"));
+        assertEquals(-1, restore("bb02", other));
+
+        // Entries published before the counts were kept still restore
+        File entry = PbcCompileOutputCache.entryDir(cache, "aa01");
+        assertTrue(new File(entry, PbcCompileOutputCache.RESULT).delete());
+        assertArrayEquals(new int[] {2, 0, 0},
+                new PbcCompileOutputCache.Restore(cache.getPath(), "aa01").invoke(other, null));
+    }
+
+    @Test
+    public void shouldRejectACorruptedEntry() throws Exception {
+        write(ws, "app/app.exe", "executable");
+        write(ws, "app/app.pbd", "dynamic library");
+        assertTrue(publish("aa01", 0, "app/app.exe", "app/app.pbd"));
+        File entry = PbcCompileOutputCache.entryDir(cache, "aa01");
+        write(new File(entry, PbcCompileOutputCache.FILES), "app/app.pbd", "dynamic librarx");
+
+        File other = tmp.newFolder("other");
+        write(other, "app/app.exe", "stale executable");
+        assertEquals(-1, restore("aa01", other));
+        // Nothing was replaced, nothing left behind, and the entry is gone
+        assertEquals("stale executable", read(other, "app/app.exe"));
+        assertEquals(Arrays.asList("app.exe"), Arrays.asList(new File(other, "app").list()));
+        assertFalse(entry.exists());
+        assertEquals(-1, restore("aa01", other));
+    }
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedEntries() throws Exception {
+        // 100 bytes each
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append('x');
+        }
+        long now = System.currentTimeMillis();
+        String[] hashes = { "aa01", "bb02", "cc03" };
+        for (int i = 0; i < hashes.length; i++) {
+            write(ws, "app/app.exe", sb.toString());
+            assertTrue(publish(hashes[i], 0, "app/app.exe"));
+            // bb02 is the oldest, then aa01
+            long age = i == 1 ? 300000 : i == 0 ? 200000 : 100000;
+            assertTrue(new File(PbcCompileOutputCache.entryDir(cache, hashes[i]), PbcCompileOutputCache.MANIFEST)
+                    .setLastModified(now - age));
+        }
+        assertTrue(publish("dd04", 250, "app/app.exe"));
+
+        assertFalse(PbcCompileOutputCache.entryDir(cache, "bb02").exists());
+        assertFalse(PbcCompileOutputCache.entryDir(cache, "aa01").exists());
+        assertTrue(PbcCompileOutputCache.entryDir(cache, "cc03").isDirectory());
+        assertTrue(PbcCompileOutputCache.entryDir(cache, "dd04").isDirectory());
+        List<String> index = Files.readAllLines(new File(cache, PbcCompileOutputCache.INDEX).toPath(), UTF8);
+        assertEquals(2, index.size());
+        assertTrue(index.contains("cc03 100"));
+        assertTrue(index.contains("dd04 100"));
+    }
+
+    @Test
+    public void shouldRefusePathsOutsideOfTheWorkspace() throws Exception {
+        assertTrue(PbcCompileOutputCache.isRelative("app/app.exe"));
+        assertTrue(PbcCompileOutputCache.isRelative("app/..app.exe"));
+        assertFalse(PbcCompileOutputCache.isRelative("../app.exe"));
+        assertFalse(PbcCompileOutputCache.isRelative("app\\..\\..\\app.exe"));
+        assertFalse(PbcCompileOutputCache.isRelative("/etc/app.exe"));
+        assertFalse(PbcCompileOutputCache.isRelative("C:\\app.exe"));
+        assertFalse(PbcCompileOutputCache.isRelative(""));
+
+        // A manifest written by hand, pointing out of the workspace
+        write(ws, "app.exe", "executable");
+        String sha = PbcCompileFingerprint.toHex(PbcCompileFingerprint.digest(new File(ws, "app.exe")));
+        File entry = PbcCompileOutputCache.entryDir(cache, "aa01");
+        write(new File(entry, PbcCompileOutputCache.FILES), "app.exe", "executable");
+        write(entry, PbcCompileOutputCache.MANIFEST, sha + " 10 ../escaped.exe\n");
+
+        File other = tmp.newFolder("other");
+        assertEquals(-1, restore("aa01", other));
+        assertFalse(new File(tmp.getRoot(), "escaped.exe").exists());
+        assertFalse(entry.exists());
+    }
+}
@@ -0,0 +1,74 @@
+package hudson.plugins.pbc_compile;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+public class PbcCompileOutputDecoderTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset CP1252 = Charset.forName("windows-1252");
+
+    /** Writes the bytes in chunks of the given size */
+    private static String decode(byte[] b, int chunk, Charset source, Charset target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PbcCompileOutputDecoder decoder = new PbcCompileOutputDecoder(out, source, target);
+        for (int i = 0; i < b.length; i += chunk) {
+            decoder.write(b, i, Math.min(chunk, b.length - i));
+        }
+        decoder.finish();
+        return new String(out.toByteArray(), target);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    @Test
+    public void shouldPassThroughTheLogEncoding() throws IOException {
+        String text = "w_main.of_init Error C0001: Ill\u00e9gal\r\n";
+        assertEquals(text, decode(text.getBytes(UTF8), 1, UTF8, UTF8));
+        assertEquals("", decode(new byte[0], 1, UTF8, UTF8));
+        assertEquals("\u00ef", decode(new byte[] { (byte) 0xEF }, 1, CP1252, CP1252));
+    }
+
+    @Test
+    public void shouldTranscodeTheConfiguredEncoding() throws IOException {
+        String text = "Compiling w_caf\u00e9\r\n";
+        for (int chunk : new int[] { 1, 2, 5, 4096 }) {
+            assertEquals(text, decode(text.getBytes(CP1252), chunk, CP1252, UTF8));
+            assertEquals(text, decode(text.getBytes(UTF8), chunk, UTF8, CP1252));
+        }
+    }
+
+    @Test
+    public void shouldDetectByteOrderMarks() throws IOException {
+        String text = "n_cst(7): warning 42: \u00c9t\u00e9\r\n";
+        byte[] utf8 = concat(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF }, text.getBytes(UTF8));
+        byte[] utf16le = concat(new byte[] { (byte) 0xFF, (byte) 0xFE }, text.getBytes(Charset.forName("UTF-16LE")));
+        byte[] utf16be = concat(new byte[] { (byte) 0xFE, (byte) 0xFF }, text.getBytes(Charset.forName("UTF-16BE")));
+        for (int chunk : new int[] { 1, 3, 4096 }) {
+            assertEquals(text, decode(utf8, chunk, CP1252, CP1252));
+            assertEquals(text, decode(utf8, chunk, CP1252, UTF8));
+            assertEquals(text, decode(utf16le, chunk, CP1252, UTF8));
+            assertEquals(text, decode(utf16be, chunk, UTF8, CP1252));
+        }
+    }
+
+    @Test
+    public void shouldHandleLongOutput() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("Compiling w_object_").append(i).append(" \u00e9\u00e8\r\n");
+        }
+        String text = sb.toString();
+        assertEquals(text, decode(text.getBytes(CP1252), 777, CP1252, UTF8));
+    }
+}
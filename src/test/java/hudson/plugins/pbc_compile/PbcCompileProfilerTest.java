@@ -0,0 +1,104 @@
+package hudson.plugins.pbc_compile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PbcCompileProfilerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static void line(PbcCompileProfiler profiler, String line, long millis) {
+        byte[] b = (line + "\r\n").getBytes(UTF8);
+        profiler.onLine(b, b.length, UTF8, TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void shouldTimeObjectsFromProgressLines() {
+        PbcCompileProfiler profiler = new PbcCompileProfiler();
+        line(profiler, "Regenerating library: app.pbl", 0);
+        line(profiler, "  Compiling w_main", 100);
+        line(profiler, "w_main.of_init Error C0001: Illegal data type", 150);
+        line(profiler, "COMPILING Object: n_cst (common.pbl)...", 400);
+        // Other verbs, or verbs as part of a word, are no progress lines
+        line(profiler, "Compilings w_other", 450);
+        line(profiler, "Creating_temp w_other", 460);
+        line(profiler, "Compiled w_other", 470);
+        line(profiler, "Building w_caf\u00e9", 500);
+        profiler.finish(TimeUnit.MILLISECONDS.toNanos(550));
+
+        List<PbcCompileProfiler.Entry> entries = profiler.getEntries();
+        assertEquals(3, entries.size());
+        assertEquals("w_main", entries.get(0).getName());
+        assertEquals("app.pbl", entries.get(0).getLibrary());
+        assertEquals(300, entries.get(0).getMillis());
+        assertEquals("n_cst", entries.get(1).getName());
+        assertEquals("common.pbl", entries.get(1).getLibrary());
+        assertEquals(100, entries.get(1).getMillis());
+        assertEquals("w_caf\u00e9", entries.get(2).getName());
+        assertEquals(50, entries.get(2).getMillis());
+    }
+
+    @Test
+    public void shouldIgnoreOutputWithoutProgressLines() {
+        PbcCompileProfiler profiler = new PbcCompileProfiler();
+        line(profiler, "", 0);
+        line(profiler, "   ", 0);
+        line(profiler, "Compiling", 0);
+        line(profiler, "    3 Error(s)", 10);
+        profiler.finish(20);
+        assertEquals(0, profiler.size());
+    }
+
+    @Test
+    public void shouldReadWhatWasWritten() throws Exception {
+        PbcCompileProfiler profiler = new PbcCompileProfiler();
+        line(profiler, "Compiling w_main (app.pbl)", 0);
+        line(profiler, "Compiling n_cst (app.pbl)", 100);
+        profiler.finish(TimeUnit.MILLISECONDS.toNanos(400));
+        File file = tmp.newFile();
+        profiler.write(file);
+
+        List<PbcCompileProfiler.Entry> entries = PbcCompileProfiler.read(file);
+        assertEquals(2, entries.size());
+        assertEquals("n_cst", entries.get(0).getName());
+        assertEquals("app.pbl", entries.get(0).getLibrary());
+        assertEquals(300, entries.get(0).getMillis());
+        assertEquals("w_main", entries.get(1).getName());
+    }
+
+    @Test
+    public void shouldRejectDamagedFiles() throws Exception {
+        File file = tmp.newFile();
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(0x50424350);
+            out.writeInt(1);
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeInt(0);
+        } finally {
+            out.close();
+        }
+        try {
+            PbcCompileProfiler.read(file);
+            fail("Read a damaged file");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package hudson.plugins.pbc_compile;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class PbcCompileResourceSamplerTest {
+
+    @Test
+    public void shouldSampleTheProcessTreeOfTheCookie() throws Exception {
+        assumeTrue(new File("/proc/self/stat").isFile());
+        // A stub compile: a shell busy in a child shell, so that the tree has two levels
+        ProcessBuilder pb = new ProcessBuilder("sh", "-c",
+                "sh -c 'i=0; while [ $i -lt 200000 ]; do i=$((i+1)); done'; sleep 0.3");
+        pb.environment().put(PbcCompileResourceSampler.COOKIE, "test-cookie");
+        pb.redirectErrorStream(true);
+        PbcCompileResourceSampler sampler = new PbcCompileResourceSampler("test-cookie",
+                new PbcCompileResourceSampler.ProcProbe(), 100);
+        Process process = pb.start();
+        process.getOutputStream().close();
+        do {
+            sampler.sample();
+            Thread.sleep(50);
+        } while (isAlive(process));
+        sampler.sample();
+        PbcCompileResourceUsage usage = sampler.stop();
+
+        assertEquals(0, process.waitFor());
+        assertTrue(usage.getSamples() > 0);
+        assertTrue(usage.getPeakProcesses() >= 2);
+        assertTrue(usage.getPeakWorkingSet() > 0);
+        assertTrue(usage.getCpuMillis() > 0);
+        assertTrue(usage.getAverageWorkingSet() <= usage.getPeakWorkingSet());
+        assertTrue(usage.getSeries().size() > 0 && usage.getSeries().size() <= usage.getSamples());
+    }
+
+    @Test
+    public void shouldKeepTheSeriesBounded() {
+        PbcCompileResourceUsage usage = new PbcCompileResourceUsage();
+        for (int i = 1; i <= 1000; i++) {
+            usage.add(i * 1000L, 1, i * 500L, i == 333 ? 1 << 30 : 1 << 20, i, 2 * i);
+        }
+        usage.finish(1000, 5);
+
+        List<PbcCompileResourceUsage.Point> series = usage.getSeries();
+        assertTrue(series.size() <= PbcCompileResourceUsage.MAX_POINTS);
+        assertEquals(1000000L, series.get(series.size() - 1).getMillis());
+        assertEquals(500000L, series.get(series.size() - 1).getCpuMillis());
+        assertEquals(1 << 30, usage.getPeakWorkingSet());
+        long highest = 0;
+        for (PbcCompileResourceUsage.Point point : series) {
+            highest = Math.max(highest, point.getWorkingSet());
+        }
+        assertEquals(1 << 30, highest);
+        assertEquals(50, usage.getAverageCpu());
+        assertEquals(50, usage.getPeakCpu());
+        assertEquals(1000, usage.getSamples());
+    }
+
+    private static boolean isAlive(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+}
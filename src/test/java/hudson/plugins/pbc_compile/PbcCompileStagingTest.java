@@ -0,0 +1,158 @@
+package hudson.plugins.pbc_compile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PbcCompileStagingTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File ws;
+    private File staging;
+
+    @Before
+    public void setUp() throws Exception {
+        ws = tmp.newFolder("ws");
+        staging = tmp.newFolder("staging");
+        write(ws, "app.pbt", "appname \"app\";");
+        write(ws, "app/app.pbl", "app library");
+        write(ws, "common/common.pbl", "common library");
+    }
+
+    private static void write(File dir, String path, String content) throws IOException {
+        File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<String> lines(File dir, String path) throws IOException {
+        return Files.readAllLines(new File(dir, path).toPath(), Charset.forName("UTF-8"));
+    }
+
+    private static String read(File dir, String path) throws IOException {
+        return lines(dir, path).get(0);
+    }
+
+    private PbcCompileStaging.Stats sync() throws Exception {
+        return new PbcCompileStaging.Sync(staging.getPath()).invoke(ws, null);
+    }
+
+    private PbcCompileStaging.Stats copyBack() throws Exception {
+        return new PbcCompileStaging.CopyBack(staging.getPath()).invoke(ws, null);
+    }
+
+    /** Moves the timestamp of a file, without changing its content */
+    private static void touch(File dir, String path) {
+        File file = new File(dir, path);
+        assertTrue(file.setLastModified(file.lastModified() + 10000));
+    }
+
+    @Test
+    public void shouldCopyNothingTheSecondTime() throws Exception {
+        PbcCompileStaging.Stats first = sync();
+        assertEquals(3, first.files);
+        assertEquals(3, first.copied);
+        assertEquals("app library", read(staging, "app/app.pbl"));
+
+        PbcCompileStaging.Stats second = sync();
+        assertEquals(3, second.files);
+        assertEquals(0, second.copied);
+        assertEquals(0, second.hashed);
+        assertEquals(0, second.deleted);
+    }
+
+    @Test
+    public void shouldHashButNotCopyTouchedFiles() throws Exception {
+        sync();
+        touch(ws, "app/app.pbl");
+
+        PbcCompileStaging.Stats stats = sync();
+        assertEquals(1, stats.hashed);
+        assertEquals(0, stats.copied);
+        // The new timestamp is recorded
+        assertEquals(0, sync().hashed);
+    }
+
+    @Test
+    public void shouldCopyChangedFiles() throws Exception {
+        sync();
+        // Same size, another timestamp
+        write(ws, "app/app.pbl", "APP LIBRARY");
+        touch(ws, "app/app.pbl");
+        write(ws, "common/common.pbl", "common library, longer");
+
+        PbcCompileStaging.Stats stats = sync();
+        assertEquals(2, stats.copied);
+        assertEquals("APP LIBRARY", read(staging, "app/app.pbl"));
+        assertEquals("common library, longer", read(staging, "common/common.pbl"));
+    }
+
+    @Test
+    public void shouldDeleteFilesGoneFromTheWorkspace() throws Exception {
+        sync();
+        assertTrue(new File(ws, "common/common.pbl").delete());
+
+        PbcCompileStaging.Stats stats = sync();
+        assertEquals(1, stats.deleted);
+        assertEquals(0, stats.copied);
+        assertFalse(new File(staging, "common/common.pbl").exists());
+        assertEquals(Arrays.asList("app.pbt", "app/app.pbl"),
+                Arrays.asList(PbcCompileStaging.list(staging).keySet().toArray()));
+    }
+
+    @Test
+    public void shouldStartOverFromADamagedManifest() throws Exception {
+        sync();
+        List<String> lines = lines(staging, PbcCompileStaging.MANIFEST);
+        assertEquals(3, lines.size());
+
+        write(staging, PbcCompileStaging.MANIFEST, lines.get(0) + "\ntruncated 12\n");
+        assertEquals(3, sync().copied);
+        write(staging, PbcCompileStaging.MANIFEST, lines.get(0).replaceFirst(" \\d+ ", " x "));
+        assertEquals(3, sync().copied);
+        assertEquals(0, sync().copied);
+    }
+
+    @Test
+    public void shouldCopyBackOnlyWhatPbcCreatedOrChanged() throws Exception {
+        sync();
+        // PBC writes the executable, rebuilds a library and only touches another
+        write(staging, "app/app.exe", "executable");
+        write(staging, "app/app.pbl", "app library, rebuilt");
+        touch(staging, "common/common.pbl");
+
+        PbcCompileStaging.Stats stats = copyBack();
+        assertEquals(4, stats.files);
+        assertEquals(3, stats.hashed);
+        assertEquals(2, stats.copied);
+        assertEquals("executable", read(ws, "app/app.exe"));
+        assertEquals("app library, rebuilt", read(ws, "app/app.pbl"));
+        assertEquals("common library", read(ws, "common/common.pbl"));
+
+        // Both sides agree for the next build
+        PbcCompileStaging.Stats next = sync();
+        assertEquals(0, next.copied);
+        assertEquals(0, next.deleted);
+        assertEquals(0, copyBack().copied);
+    }
+}
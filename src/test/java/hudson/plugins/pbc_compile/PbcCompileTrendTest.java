@@ -0,0 +1,60 @@
+package hudson.plugins.pbc_compile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PbcCompileTrendTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static void append(File dir, int number, int steps) throws Exception {
+        for (int i = 0; i < steps; i++) {
+            PbcCompileTrend.append(dir, new PbcCompileTrend.Record(number, 1, 2, i != 3, number * 1000L, 10));
+        }
+    }
+
+    @Test
+    public void shouldAddUpTheStepsOfTheLastBuilds() throws Exception {
+        File dir = tmp.getRoot();
+        for (int number = 1; number <= 10; number++) {
+            append(dir, number, 3);
+        }
+        // A build with more steps than are read at once
+        append(dir, 11, 600);
+
+        List<PbcCompileTrend.Record> records = PbcCompileTrend.read(dir, 4);
+        assertEquals(4, records.size());
+        assertEquals(8, records.get(0).getNumber());
+        assertEquals(3, records.get(0).getErrors());
+        assertEquals(6, records.get(0).getWarnings());
+        assertEquals(30, records.get(0).getDurationMillis());
+        assertTrue(records.get(0).isSuccess());
+        assertEquals(11, records.get(3).getNumber());
+        assertEquals(600, records.get(3).getErrors());
+        assertEquals(1200, records.get(3).getWarnings());
+        assertEquals(6000, records.get(3).getDurationMillis());
+        assertFalse(records.get(3).isSuccess());
+    }
+
+    @Test
+    public void shouldReadEveryBuildWhenThereAreFewer() throws Exception {
+        File dir = tmp.getRoot();
+        append(dir, 1, 2);
+        append(dir, 2, 5);
+
+        List<PbcCompileTrend.Record> records = PbcCompileTrend.read(dir, 10);
+        assertEquals(2, records.size());
+        assertEquals(2, records.get(0).getErrors());
+        assertEquals(5, records.get(1).getErrors());
+        assertTrue(PbcCompileTrend.read(new File(dir, "missing"), 10).isEmpty());
+    }
+}
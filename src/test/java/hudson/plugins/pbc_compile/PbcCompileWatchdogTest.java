@@ -0,0 +1,196 @@
+package hudson.plugins.pbc_compile;
+
+import hudson.Proc;
+import hudson.remoting.AsyncFutureImpl;
+import hudson.remoting.Callable;
+import hudson.remoting.Future;
+import hudson.remoting.VirtualChannel;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PbcCompileWatchdogTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final PbcCompilerConsoleAnnotator annotator = new PbcCompilerConsoleAnnotator(new ByteArrayOutputStream(),
+            UTF8);
+    private final StubProc proc = new StubProc();
+    private final StubChannel channel = new StubChannel();
+    private PbcCompileWatchdog watchdog;
+
+    @After
+    public void tearDown() {
+        if (watchdog != null) {
+            watchdog.close();
+        }
+    }
+
+    private void watch(String cookie, long timeoutMillis) {
+        annotator.setTail(PbcCompileWatchdog.TAIL);
+        watchdog = new PbcCompileWatchdog(annotator, channel, cookie, timeoutMillis, TimeUnit.MILLISECONDS);
+        watchdog.setProc(proc);
+    }
+
+    private void println(String line) throws IOException {
+        annotator.write((line + "\r\n").getBytes(UTF8));
+    }
+
+    @Test
+    public void shouldStopACompileWithoutOutput() throws Exception {
+        watch(null, 50);
+        println("Compiling w_main");
+        Thread.sleep(100);
+        watchdog.check();
+
+        assertTrue(watchdog.isStalled());
+        assertTrue(proc.killed.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("Compiling w_main"), annotator.getTail());
+    }
+
+    @Test
+    public void shouldNotStopACompileWritingOutput() throws Exception {
+        watch(null, 200);
+        Thread.sleep(150);
+        println("Compiling w_main");
+        Thread.sleep(100);
+        watchdog.check();
+
+        assertFalse(watchdog.isStalled());
+        assertTrue(proc.isAlive());
+    }
+
+    @Test
+    public void shouldNotStopACompileUsingTheCpu() throws Exception {
+        channel.interval = 10;
+        watch("cookie", 200);
+        for (int i = 0; i < 6; i++) {
+            channel.cpu += 1000;
+            Thread.sleep(60);
+            watchdog.check();
+        }
+
+        assertFalse(watchdog.isStalled());
+        assertTrue(proc.isAlive());
+    }
+
+    @Test
+    public void shouldWaitForTwoSamplesOfTheCpu() throws Exception {
+        channel.interval = 100;
+        watch("cookie", 50);
+        Thread.sleep(100);
+        // Requests the CPU time, then reads it with the interval of the sampler
+        watchdog.check();
+        Thread.sleep(50);
+        watchdog.check();
+        assertFalse(watchdog.isStalled());
+
+        Thread.sleep(150);
+        watchdog.check();
+        assertTrue(watchdog.isStalled());
+        assertTrue(proc.killed.await(5, TimeUnit.SECONDS));
+        assertEquals(channel.tree, watchdog.getProcesses());
+    }
+
+    @Test
+    public void shouldKeepTheLastLines() throws Exception {
+        annotator.setTail(3);
+        for (int i = 1; i <= 5; i++) {
+            println("Compiling w_caf\u00e9_" + i);
+        }
+        annotator.write("n_cst Warning C0014: Undefined variable".getBytes(UTF8));
+        annotator.finish();
+
+        assertEquals(Arrays.asList("Compiling w_caf\u00e9_4", "Compiling w_caf\u00e9_5",
+                "n_cst Warning C0014: Undefined variable"), annotator.getTail());
+    }
+
+    private static final class StubProc extends Proc {
+        final CountDownLatch killed = new CountDownLatch(1);
+
+        @Override
+        public boolean isAlive() {
+            return killed.getCount() > 0;
+        }
+
+        @Override
+        public void kill() {
+            killed.countDown();
+        }
+
+        @Override
+        public int join() throws InterruptedException {
+            killed.await();
+            return -1;
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+
+    /** Answers the callables of the watchdog as the sampler of the node would */
+    private static final class StubChannel implements VirtualChannel {
+        volatile long cpu;
+        volatile long interval;
+        final List<String> tree = Collections.singletonList("1234 pbc190.exe /d app.pbt");
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <V, T extends Throwable> Future<V> callAsync(Callable<V, T> callable) {
+            Object result = callable instanceof PbcCompileResourceSampler.Cpu ? new long[] { cpu, interval } : tree;
+            return new AsyncFutureImpl<V>((V) result);
+        }
+
+        @Override
+        public <V, T extends Throwable> V call(Callable<V, T> callable) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void join() {
+        }
+
+        @Override
+        public void join(long timeout) {
+        }
+
+        @Override
+        public <T> T export(Class<T> type, T instance) {
+            return instance;
+        }
+
+        @Override
+        public void syncLocalIO() {
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package hudson.plugins.pbc_compile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PbcTargetFileTest {
+
+    private static final String PBT = "Save Format v3.0(19990112)\r\n"
+            + "appname \"app\";\r\n"
+            + "applib \"app\\\\app.pbl\";\r\n"
+            + "LibList \"app\\\\app.pbl;..\\\\common\\\\common.pbl;C:\\\\pb\\\\shared.pbl;\";\r\n"
+            + "type \"pb\";\r\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static File file(String path) {
+        return new File(path.replace('\\', File.separatorChar));
+    }
+
+    @Test
+    public void shouldParseApplicationAndLibraryList() {
+        PbcTargetFile target = PbcTargetFile.parse(PBT);
+        assertEquals("app", target.getAppName());
+        assertEquals("app\\app.pbl", target.getAppLib());
+        assertEquals(Arrays.asList("app\\app.pbl", "..\\common\\common.pbl", "C:\\pb\\shared.pbl"),
+                target.getLibraries());
+    }
+
+    @Test
+    public void shouldToleratePartialTargetFiles() {
+        PbcTargetFile target = PbcTargetFile.parse("appname \"app\";\n");
+        assertEquals("app", target.getAppName());
+        assertNull(target.getAppLib());
+        assertTrue(target.getLibraries().isEmpty());
+    }
+
+    @Test
+    public void shouldResolveLibrariesAgainstTheTargetFile() {
+        File pbt = new File(tmp.getRoot(), "app.pbt");
+        assertEquals(Arrays.asList(new File(tmp.getRoot(), file("app\\app.pbl").getPath()),
+                new File(tmp.getRoot(), file("..\\common\\common.pbl").getPath()), file("C:\\pb\\shared.pbl")),
+                PbcTargetFile.parse(PBT).resolveLibraries(pbt));
+    }
+
+    @Test
+    public void shouldReadUtf16TargetFiles() throws Exception {
+        File pbt = tmp.newFile("app.pbt");
+        FileOutputStream out = new FileOutputStream(pbt);
+        try {
+            out.write(new byte[] { (byte) 0xFF, (byte) 0xFE });
+            out.write(PBT.replace("app\\\\app", "\u00e9t\u00e9\\\\app").getBytes("UTF-16LE"));
+        } finally {
+            out.close();
+        }
+        PbcTargetFile target = PbcTargetFile.parse(pbt);
+        assertEquals("\u00e9t\u00e9\\app.pbl", target.getAppLib());
+        assertEquals(3, target.getLibraries().size());
+    }
+}